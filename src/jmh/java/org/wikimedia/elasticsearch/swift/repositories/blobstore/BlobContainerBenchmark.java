@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.DeleteResult;
+import org.elasticsearch.common.settings.Settings;
+import org.javaswift.joss.model.Account;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wikimedia.elasticsearch.swift.SwiftEmulator;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAccountFactory;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end cost of the blob container operations, through the HTTP client, against an
+ * in-process Swift emulator. latencyMillis and bandwidth shape the emulated cluster;
+ * run with -t to measure concurrent snapshot threads, e.g.
+ * ./gradlew jmh -Pjmh.args='BlobContainerBenchmark -p latencyMillis=20 -t 8'
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class BlobContainerBenchmark {
+    private static final String CONTAINER = "bench";
+
+    @Param({"0", "5"})
+    public long latencyMillis;
+
+    // bytes per second per request, 0 for unlimited
+    @Param({"0", "104857600"})
+    public long bandwidth;
+
+    @Param({"1048576"})
+    public int blobSize;
+
+    // blobs under the listed path, and deleted by each delete operation
+    @Param({"1000"})
+    public int blobCount;
+
+    // send the requests through the non-blocking client
+    @Param({"false", "true"})
+    public boolean asyncTransport;
+
+    private SwiftEmulator emulator;
+    private SwiftService service;
+    private SwiftBlobStore store;
+    private BlobContainer container;
+    private BlobContainer listed;
+    private byte[] blob;
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        emulator = new SwiftEmulator(latencyMillis, bandwidth);
+        // listings must reach the emulator
+        Settings settings = Settings.builder()
+            .put(SwiftRepository.Swift.LISTING_CACHE_SIZE_SETTING.getKey(), 0)
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), asyncTransport)
+            .build();
+        service = new SwiftService(settings);
+        Account account = SwiftAccountFactory.createAccount(service, emulator.authUrl(), "bench:bench", "bench", null,
+                                                            "TEMPAUTH", null);
+        SwiftAsyncClient asyncClient = null;
+        if (service.asyncHttpClient() != null) {
+            asyncClient = new SwiftAsyncClient(account, service.asyncHttpClient(),
+                                               SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING.get(settings));
+        }
+        store = new SwiftBlobStore(settings, account, CONTAINER, new SwiftRestClient(account, service.httpClient(), false),
+                                   asyncClient);
+        container = store.blobContainer(new BlobPath().add("blobs"));
+        listed = store.blobContainer(new BlobPath().add("listed"));
+
+        blob = new byte[blobSize];
+        new Random(42).nextBytes(blob);
+        emulator.put(CONTAINER, "blobs/read", blob);
+        for (int i = 0; i < blobCount; i++) {
+            emulator.put(CONTAINER, "listed/blob-" + i, new byte[] { (byte) i });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        service.close();
+        emulator.close();
+    }
+
+    @Benchmark
+    public String writeBlob() throws IOException {
+        // a bounded set of names keeps the emulator's memory flat
+        final String name = "write-" + (sequence.incrementAndGet() & 63);
+        container.writeBlob(name, new ByteArrayInputStream(blob), blobSize, false);
+        return name;
+    }
+
+    @Benchmark
+    public long readBlob() throws IOException {
+        final byte[] buffer = new byte[8192];
+        long total = 0;
+        try (InputStream in = container.readBlob("read")) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int listBlobsByPrefix() throws IOException {
+        return listed.listBlobsByPrefix("blob-").size();
+    }
+
+    @Benchmark
+    public void deleteBlobsIgnoringIfNotExists(Deletion deletion) throws IOException {
+        deletion.container.deleteBlobsIgnoringIfNotExists(deletion.names);
+    }
+
+    @Benchmark
+    public DeleteResult deletePath(Deletion deletion) throws IOException {
+        return store.delete(deletion.path);
+    }
+
+    /**
+     * blobCount fresh blobs under a path of their own, seeded directly into the emulator before each call
+     */
+    @State(Scope.Thread)
+    public static class Deletion {
+        private static final AtomicLong PATHS = new AtomicLong();
+
+        BlobPath path;
+        BlobContainer container;
+        List<String> names;
+
+        @Setup(Level.Invocation)
+        public void seed(BlobContainerBenchmark benchmark) {
+            path = new BlobPath().add("deleted").add(Long.toString(PATHS.incrementAndGet()));
+            container = benchmark.store.blobContainer(path);
+            names = new ArrayList<>(benchmark.blobCount);
+            for (int i = 0; i < benchmark.blobCount; i++) {
+                final String name = "blob-" + i;
+                benchmark.emulator.put(CONTAINER, path.buildAsString() + name, new byte[] { (byte) i });
+                names.add(name);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of encoding and decoding blob contents, without any I/O. Scores are milliseconds per
+ * blobSize bytes, 64mb by default: multiply by 16 for the overhead per GB, e.g.
+ * ./gradlew jmh -Pjmh.args='BlobEncodingBenchmark -p compression=none'
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class BlobEncodingBenchmark {
+    @Param({"none", "deflate"})
+    public String compression;
+
+    @Param({"false", "true"})
+    public boolean encrypt;
+
+    @Param({"65536"})
+    public int frameSize;
+
+    @Param({"67108864"})
+    public int blobSize;
+
+    private SwiftEncryption encryption;
+    private byte[] blob;
+    private byte[] encoded;
+    private SwiftBlobEncoding encoding;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setup() throws IOException {
+        final Random random = new Random(42);
+        final byte[] key = new byte[32];
+        random.nextBytes(key);
+        encryption = encrypt ? new SwiftEncryption(new SecretKeySpec(key, "AES"), frameSize) : null;
+        // half random, half repeated bytes, so that compression has some work to do
+        blob = new byte[blobSize];
+        for (int i = 0; i < blobSize; i += 2048) {
+            final byte[] chunk = new byte[Math.min(1024, blobSize - i)];
+            random.nextBytes(chunk);
+            System.arraycopy(chunk, 0, blob, i, chunk.length);
+        }
+        encoding = SwiftBlobEncoding.of(SwiftCompression.fromString(compression), encryption, blobSize);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(blobSize);
+        try (InputStream in = encoding.encode(new ByteArrayInputStream(blob), encryption)) {
+            in.transferTo(out);
+        }
+        encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        try (InputStream in = encoding.encode(new ByteArrayInputStream(blob), encryption)) {
+            return drain(in);
+        }
+    }
+
+    @Benchmark
+    public long decode() throws IOException {
+        try (InputStream in = encoding.decode(new ByteArrayInputStream(encoded), encryption)) {
+            return drain(in);
+        }
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.hash.MessageDigests;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the streaming MD5 checks on uploads and downloads. Each operation streams one blob
+ * from memory, so the CPU overhead per GB is (verified - plain) * 1gb / blob_size, in ms.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ChecksumBenchmark {
+    @Param({"67108864"})
+    public int blobSize;
+
+    @Param({"8192", "102400"})
+    public int readSize;
+
+    private byte[] blob;
+    private byte[] buffer;
+    private String etag;
+
+    @Setup
+    public void setup() {
+        blob = new byte[blobSize];
+        new Random(42).nextBytes(blob);
+        buffer = new byte[readSize];
+        etag = MessageDigests.toHexString(MessageDigests.md5().digest(blob));
+    }
+
+    @Benchmark
+    public long plainRead() throws IOException {
+        return drain(new ByteArrayInputStream(blob));
+    }
+
+    @Benchmark
+    public long verifiedDownload() throws IOException {
+        return drain(new VerifyingInputStream(new ByteArrayInputStream(blob), "blob", etag, blobSize));
+    }
+
+    @Benchmark
+    public long digestedUpload() throws IOException {
+        MessageDigest md5 = MessageDigests.md5();
+        long read = drain(new DigestInputStream(new ByteArrayInputStream(blob), md5));
+        return read + md5.digest()[0];
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
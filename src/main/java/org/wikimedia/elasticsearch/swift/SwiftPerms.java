@@ -16,8 +16,11 @@
 
 package org.wikimedia.elasticsearch.swift;
 
+import java.io.IOException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 
 import org.elasticsearch.SpecialPermission;
 
@@ -34,4 +37,34 @@ public class SwiftPerms {
         }
         return callable.run();
     }
+
+    /**
+     * Same as {@link #exec(PrivilegedAction)}, for actions doing their own I/O.
+     */
+    public static <T> T execThrows(final PrivilegedExceptionAction<T> callable) throws IOException {
+        SecurityManager sm = System.getSecurityManager();
+        try {
+            if (sm != null) {
+                sm.checkPermission(new SpecialPermission());
+                return AccessController.doPrivileged(callable);
+            }
+            return callable.run();
+        } catch (PrivilegedActionException e) {
+            throw unwrap(e.getException());
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static IOException unwrap(Exception e) {
+        if (e instanceof IOException) {
+            return (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        return new IOException(e);
+    }
 }
@@ -16,26 +16,45 @@
 
 package org.wikimedia.elasticsearch.swift;
 
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.env.Environment;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.RepositoryPlugin;
 import org.elasticsearch.repositories.Repository;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
 import org.wikimedia.elasticsearch.swift.repositories.SwiftService;
+import org.wikimedia.elasticsearch.swift.stats.RestSwiftStatsAction;
+import org.wikimedia.elasticsearch.swift.stats.SwiftStatsAction;
+import org.wikimedia.elasticsearch.swift.stats.TransportSwiftStatsAction;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * Our base plugin stuff.
  */
-public class SwiftRepositoryPlugin extends Plugin implements RepositoryPlugin {
+public class SwiftRepositoryPlugin extends Plugin implements RepositoryPlugin, ActionPlugin {
+    // Node level service, so that all swift repositories share accounts and connections
+    private final SetOnce<SwiftService> swiftService = new SetOnce<>();
+
     // overridable for tests
     protected SwiftService createStorageService(Settings settings) {
         return new SwiftService(settings);
@@ -44,11 +63,33 @@ public class SwiftRepositoryPlugin extends Plugin implements RepositoryPlugin {
     @Override
     public Map<String, Repository.Factory> getRepositories(Environment env, NamedXContentRegistry namedXContentRegistry,
                                                            ClusterService clusterService) {
+        swiftService.set(createStorageService(env.settings()));
         return Collections.singletonMap(SwiftRepository.TYPE,
-                (metadata) -> new SwiftRepository(metadata, env.settings(), namedXContentRegistry, createStorageService(env.settings()),
+                (metadata) -> new SwiftRepository(metadata, env.settings(), namedXContentRegistry, swiftService.get(),
                                                   clusterService));
     }
 
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Collections.singletonList(new ActionHandler<>(SwiftStatsAction.INSTANCE, TransportSwiftStatsAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestSwiftStatsAction());
+    }
+
+    @Override
+    public void close() throws IOException {
+        SwiftService service = swiftService.get();
+        if (service != null) {
+            service.close();
+        }
+    }
+
     @Override
     public List<String> getSettingsFilter() {
         return Collections.singletonList(
@@ -58,6 +99,46 @@ public class SwiftRepositoryPlugin extends Plugin implements RepositoryPlugin {
     @Override
     public List<Setting<?>> getSettings() {
         return Arrays.asList(SwiftRepository.Swift.MINIMIZE_BLOB_EXISTS_CHECKS_SETTING,
-                             SwiftRepository.Swift.ALLOW_CACHING_SETTING);
+                             SwiftRepository.Swift.ALLOW_CACHING_SETTING,
+                             SwiftRepository.Swift.CONDITIONAL_PUT_SETTING,
+                             SwiftRepository.Swift.VERIFY_CHECKSUMS_SETTING,
+                             SwiftRepository.Swift.TRANSFER_THREADS_SETTING,
+                             SwiftRepository.Swift.BULK_DELETE_SETTING,
+                             SwiftRepository.Swift.DELETE_CONCURRENCY_SETTING,
+                             SwiftRepository.Swift.LIST_CONCURRENCY_SETTING,
+                             SwiftRepository.Swift.LISTING_CACHE_SIZE_SETTING,
+                             SwiftRepository.Swift.LISTING_CACHE_TTL_SETTING,
+                             SwiftRepository.Swift.SEGMENTED_UPLOAD_SETTING,
+                             SwiftRepository.Swift.SEGMENT_SIZE_SETTING,
+                             SwiftRepository.Swift.UPLOAD_CONCURRENCY_SETTING,
+                             SwiftRepository.Swift.READ_MAX_RETRIES_SETTING,
+                             SwiftRepository.Swift.PARALLEL_DOWNLOAD_SETTING,
+                             SwiftRepository.Swift.PARALLEL_DOWNLOAD_THRESHOLD_SETTING,
+                             SwiftRepository.Swift.DOWNLOAD_CHUNK_SIZE_SETTING,
+                             SwiftRepository.Swift.DOWNLOAD_CONCURRENCY_SETTING,
+                             SwiftRepository.Swift.DOWNLOAD_MEMORY_SETTING,
+                             SwiftRepository.Swift.TRANSFER_MEMORY_SETTING,
+                             SwiftRepository.Swift.HTTP_MAX_CONNECTIONS_SETTING,
+                             SwiftRepository.Swift.HTTP_MAX_CONNECTIONS_PER_ROUTE_SETTING,
+                             SwiftRepository.Swift.HTTP_CONNECT_TIMEOUT_SETTING,
+                             SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING,
+                             SwiftRepository.Swift.HTTP_KEEP_ALIVE_SETTING,
+                             SwiftRepository.Swift.TOKEN_TTL_SETTING,
+                             SwiftRepository.Swift.RETRY_MAX_RETRIES_SETTING,
+                             SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING,
+                             SwiftRepository.Swift.RETRY_MAX_DELAY_SETTING,
+                             SwiftRepository.Swift.RETRY_JITTER_SETTING,
+                             SwiftRepository.Swift.MAX_REQUESTS_PER_SEC_SETTING,
+                             SwiftRepository.Swift.MAX_IN_FLIGHT_READS_SETTING,
+                             SwiftRepository.Swift.MAX_IN_FLIGHT_WRITES_SETTING,
+                             SwiftRepository.Swift.MAX_IN_FLIGHT_LISTS_SETTING,
+                             SwiftRepository.Swift.MAX_IN_FLIGHT_DELETES_SETTING,
+                             SwiftRepository.Swift.MAX_IN_FLIGHT_WAIT_SETTING,
+                             SwiftRepository.Swift.SLOW_LOG_THRESHOLD_SETTING,
+                             SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING,
+                             SwiftRepository.Swift.COMPRESSION_SETTING,
+                             SwiftRepository.Swift.ENCRYPTION_KEY_SETTING,
+                             SwiftRepository.Swift.ENCRYPTION_FRAME_SIZE_SETTING,
+                             SwiftRepository.Swift.ENCRYPTION_REQUIRED_SETTING);
     }
 }
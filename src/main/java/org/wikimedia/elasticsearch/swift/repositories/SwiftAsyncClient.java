@@ -0,0 +1,684 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.javaswift.joss.model.Account;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking HTTP access to the object calls of the Swift API, authenticated with the token of an
+ * existing JOSS account. Requests return as soon as they are sent; responses complete the returned
+ * futures on the threads of the HTTP client, so a single caller can keep many requests in flight.
+ */
+public class SwiftAsyncClient {
+    // The authenticated account whose token and storage url we use
+    private final Account account;
+
+    private final HttpClient httpClient;
+
+    // Runs the re-authentications, which block
+    private final Executor executor;
+
+    // How long to wait for the response headers of requests without a body, and how long any request
+    // may go without sending or receiving a byte
+    private final Duration timeout;
+
+    /**
+     * Constructor
+     * @param account authenticated swift account
+     * @param httpClient non-blocking http client to issue requests with
+     * @param timeout how long to wait for the response to requests without a body, and for the next bytes
+     *                of any request or response body
+     */
+    public SwiftAsyncClient(Account account, HttpClient httpClient, TimeValue timeout) {
+        this.account = account;
+        this.httpClient = httpClient;
+        this.executor = httpClient.executor().orElse(ForkJoinPool.commonPool());
+        this.timeout = Duration.ofMillis(timeout.millis());
+    }
+
+    /**
+     * Check whether an object exists, with a HEAD request
+     * @param container container holding the object
+     * @param key object name
+     * @return whether the object exists
+     */
+    public CompletableFuture<Response<Boolean>> objectExists(String container, String key) {
+        HttpRequest.Builder head = request(SwiftRestClient.objectUrl(account, container, key))
+            .method("HEAD", HttpRequest.BodyPublishers.noBody());
+        return send(head, HttpResponse.BodyHandlers.discarding(), true, response -> {
+            if (response.statusCode() == HttpStatus.SC_NOT_FOUND) {
+                return false;
+            }
+            checkStatus(response);
+            return true;
+        });
+    }
+
+    /**
+     * Delete an object
+     * @param container container holding the object
+     * @param key object name
+     * @return whether the object existed
+     */
+    public CompletableFuture<Response<Boolean>> deleteObject(String container, String key) {
+        HttpRequest.Builder delete = request(SwiftRestClient.objectUrl(account, container, key)).DELETE();
+        return send(delete, HttpResponse.BodyHandlers.discarding(), true, response -> {
+            if (response.statusCode() == HttpStatus.SC_NOT_FOUND) {
+                return false;
+            }
+            checkStatus(response);
+            return true;
+        });
+    }
+
+    /**
+     * Delete a batch of objects with a single bulk-delete request
+     * @param container container holding the objects
+     * @param keys object names, at most {@link SwiftRestClient#maxDeletesPerRequest()} of them
+     * @return the outcome reported by the middleware, failed with a {@link SwiftRestClient.ResponseException} if the
+     * middleware failed the whole request
+     */
+    public CompletableFuture<Response<SwiftRestClient.BulkDeleteResponse>> bulkDelete(String container, Collection<String> keys) {
+        HttpRequest.Builder post = request(account.getPublicURL() + "?bulk-delete")
+            .header(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType())
+            .header(HttpHeaders.CONTENT_TYPE, "text/plain; charset=UTF-8")
+            .POST(HttpRequest.BodyPublishers.ofString(SwiftRestClient.bulkDeleteBody(container, keys), StandardCharsets.UTF_8));
+        return send(post, HttpResponse.BodyHandlers.ofByteArray(), true, response -> {
+            checkStatus(response);
+            return SwiftRestClient.checkBulkDelete(new SwiftRestClient.BulkDeleteResponse(
+                XContentHelper.convertToMap(XContentType.JSON.xContent(), new ByteArrayInputStream(response.body()), false)),
+                response.request().method(), response.request().uri(), transactionId(response));
+        });
+    }
+
+    /**
+     * List one page of a container
+     * @param container container to list
+     * @param prefix only list names starting with this prefix
+     * @param delimiter roll up names containing this character after the prefix into pseudo-directories, or null
+     * @param marker only list names after this one, or null
+     * @param limit maximum number of entries, at most the cluster's container_listing_limit
+     * @param consumer receives the entries, in name order, on a thread of the http client
+     * @return number of entries listed
+     */
+    public CompletableFuture<Response<Integer>> listObjects(String container, String prefix, @Nullable Character delimiter,
+                                                            @Nullable String marker, int limit,
+                                                            SwiftRestClient.ListingConsumer consumer) {
+        HttpRequest.Builder get = request(SwiftRestClient.listingUrl(account, container, prefix, delimiter, marker, limit));
+        return send(get, HttpResponse.BodyHandlers.ofByteArray(), true, response -> {
+            checkStatus(response);
+            if (response.body().length == 0) {
+                return 0;
+            }
+            try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                     DeprecationHandler.THROW_UNSUPPORTED_OPERATION, response.body())) {
+                return SwiftRestClient.parseListing(parser, consumer);
+            }
+        });
+    }
+
+    /**
+     * Upload an object with a known length. The body is read from the stream by the threads of the http client.
+     * @param container container to upload to
+     * @param key object name
+     * @param body supplies the object contents, once per attempt
+     * @param length exact number of bytes to upload, or -1 to send the body to its end, chunked
+     * @param md5 hex MD5 of the contents for Swift to verify, or null
+     * @param ifNoneMatch only create the object if it does not exist yet; Swift answers 412 otherwise
+     * @param contentType Content-Type of the object, or null to leave it to Swift
+     * @return the ETag of the stored object
+     */
+    public CompletableFuture<Response<String>> putObject(String container, String key, Supplier<InputStream> body, long length,
+                                                         @Nullable String md5, boolean ifNoneMatch, @Nullable String contentType) {
+        // the request timeout would also bound the upload, the exchange only fails it once it stalls
+        final Exchange exchange = new Exchange(false);
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> exchange.watch(body.get(), false));
+        HttpRequest.Builder put = HttpRequest.newBuilder(URI.create(SwiftRestClient.objectUrl(account, container, key)))
+            .PUT(length < 0 ? publisher : HttpRequest.BodyPublishers.fromPublisher(publisher, length));
+        if (contentType != null) {
+            put.header(HttpHeaders.CONTENT_TYPE, contentType);
+        }
+        if (md5 != null) {
+            put.header(HttpHeaders.ETAG, md5);
+        }
+        if (ifNoneMatch) {
+            put.header(HttpHeaders.IF_NONE_MATCH, "*");
+        }
+        // the stream cannot be rewound here, retries are up to the caller
+        return send(put, exchange, HttpResponse.BodyHandlers.discarding(), false, response -> {
+            checkStatus(response);
+            return response.headers().firstValue(HttpHeaders.ETAG).orElse(null);
+        });
+    }
+
+    /**
+     * Start downloading an object, or a byte range of it. The future completes once the response headers
+     * are in; the contents are then streamed as they are read.
+     * @param container container holding the object
+     * @param key object name
+     * @param start offset of the first byte to read
+     * @param end offset of the last byte to read, inclusive, or -1 to read to the end
+     * @param ifMatch only read the object if its ETag still matches this one, or null
+     * @return the open download, to be closed by the caller
+     */
+    public CompletableFuture<Response<SwiftRestClient.ObjectDownload>> getObject(String container, String key, long start, long end,
+                                                                                 @Nullable String ifMatch) {
+        HttpRequest.Builder get = request(SwiftRestClient.objectUrl(account, container, key));
+        if (start > 0 || end >= 0) {
+            get.header(HttpHeaders.RANGE, SwiftRestClient.range(start, end));
+        }
+        if (ifMatch != null) {
+            get.header(HttpHeaders.IF_MATCH, ifMatch);
+        }
+        final Exchange exchange = new Exchange(true);
+        return send(get, exchange, HttpResponse.BodyHandlers.ofInputStream(), true, response -> {
+            try {
+                checkStatus(response);
+            } catch (IOException e) {
+                discard(response);
+                throw e;
+            }
+            return new StreamedObjectDownload(response, exchange);
+        });
+    }
+
+    private HttpRequest.Builder request(String url) {
+        return HttpRequest.newBuilder(URI.create(url)).timeout(timeout);
+    }
+
+    /**
+     * Send an authenticated request. A request rejected because the token expired is replayed
+     * once with a fresh token, provided its body can be sent again.
+     * @param handler turns the response into the result, on a thread of the http client
+     */
+    private <B, T> CompletableFuture<Response<T>> send(HttpRequest.Builder request, HttpResponse.BodyHandler<B> bodyHandler,
+                                                      boolean repeatable, ResponseHandler<B, T> handler) {
+        return send(request, new Exchange(false), bodyHandler, repeatable, handler);
+    }
+
+    /**
+     * Same as {@link #send(HttpRequest.Builder, HttpResponse.BodyHandler, boolean, ResponseHandler)}, watched
+     * by an exchange. Cancelling the returned future aborts the request.
+     */
+    private <B, T> CompletableFuture<Response<T>> send(HttpRequest.Builder request, Exchange exchange,
+                                                      HttpResponse.BodyHandler<B> bodyHandler, boolean repeatable,
+                                                      ResponseHandler<B, T> handler) {
+        final CompletableFuture<Response<T>> result = new CompletableFuture<>();
+        final HttpResponse.BodyHandler<B> watched = exchange.watch(bodyHandler);
+        final String token = account.getAccess().getToken();
+        final HttpRequest first = request.copy().setHeader(SwiftRestClient.AUTH_TOKEN_HEADER, token).build();
+        exchange.start(first, result);
+        exchange.sending(httpClient.sendAsync(first, watched))
+            .thenCompose(response -> {
+                if (response.statusCode() != HttpStatus.SC_UNAUTHORIZED || !repeatable) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                discard(response);
+                return CompletableFuture.runAsync(() -> {
+                    try {
+                        SwiftRestClient.reauthenticate(account, token);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, executor).thenCompose(ignored -> exchange.sending(httpClient.sendAsync(
+                    request.setHeader(SwiftRestClient.AUTH_TOKEN_HEADER, account.getAccess().getToken()).build(), watched)));
+            })
+            .thenApply(response -> {
+                try {
+                    return new Response<>(handler.handle(response), transactionId(response), response.statusCode());
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            })
+            .whenComplete((response, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(exchange.failure(unwrap(e)));
+                } else if (!result.complete(response)) {
+                    // cancelled or timed out meanwhile
+                    release(response);
+                }
+            });
+        return result;
+    }
+
+    /**
+     * Cancel a request once a future depending on it is cancelled, e.g. by a caller that gives up waiting.
+     * If the request completed anyway, the connection its result holds is released.
+     * @param dependent future completed from the request
+     * @param request the request
+     * @return dependent
+     */
+    public static <T> CompletableFuture<T> cancelling(CompletableFuture<T> dependent, CompletableFuture<?> request) {
+        dependent.whenComplete((value, e) -> {
+            if (dependent.isCancelled() && !request.cancel(true) && !request.isCompletedExceptionally()) {
+                release(request.join());
+            }
+        });
+        return dependent;
+    }
+
+    /**
+     * Close the result of a request no one will read, if it holds a connection
+     */
+    public static void release(@Nullable Object result) {
+        if (result instanceof Response) {
+            result = ((Response<?>) result).value();
+        }
+        if (result instanceof Closeable) {
+            try {
+                ((Closeable) result).close();
+            } catch (IOException e) {
+                // the connection is dropped anyway
+            }
+        }
+    }
+
+    private static void checkStatus(HttpResponse<?> response) throws IOException {
+        int status = response.statusCode();
+        if (status < 200 || status >= 300) {
+            throw new SwiftRestClient.ResponseException(response.request().method(), response.request().uri(), status,
+                                                        transactionId(response));
+        }
+    }
+
+    @Nullable
+    private static String transactionId(HttpResponse<?> response) {
+        return response.headers().firstValue(SwiftService.TRANS_ID_HEADER).orElse(null);
+    }
+
+    /**
+     * Release the connection of a response whose body is not wanted
+     */
+    private static void discard(HttpResponse<?> response) {
+        if (response.body() instanceof InputStream) {
+            try {
+                ((InputStream) response.body()).close();
+            } catch (IOException e) {
+                // the connection is dropped anyway
+            }
+        }
+    }
+
+    /**
+     * @return the exception a future failed with, without the wrapping added by the futures
+     */
+    public static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof UncheckedIOException) {
+            return t.getCause();
+        }
+        return t;
+    }
+
+    /**
+     * Turns a response into the result of a request
+     */
+    @FunctionalInterface
+    private interface ResponseHandler<B, T> {
+        T handle(HttpResponse<B> response) throws IOException;
+    }
+
+    /**
+     * Watches the bytes a request sends and receives. Once they stall for longer than the timeout, as a
+     * socket timeout would tell, or once the caller cancels the request, the exchange aborts it: the body
+     * being uploaded fails, and the response body is cancelled, which releases its connection.
+     */
+    private final class Exchange {
+        // whether the response body is streamed to the caller after the result is returned
+        private final boolean streamed;
+        private final AtomicInteger reading = new AtomicInteger();
+        private volatile long lastProgress = System.nanoTime();
+        private volatile boolean returned;
+        private volatile boolean done;
+        private volatile String target = "";
+        @Nullable
+        private volatile IOException failure;
+        @Nullable
+        private volatile CompletableFuture<?> sending;
+        @Nullable
+        private volatile WatchedSubscriber<?> subscriber;
+        private CompletableFuture<?> result;
+
+        Exchange(boolean streamed) {
+            this.streamed = streamed;
+        }
+
+        void start(HttpRequest request, CompletableFuture<?> result) {
+            this.target = request.method() + " " + request.uri().getRawPath();
+            this.result = result;
+            progress();
+            result.whenComplete((value, e) -> {
+                if (result.isCancelled()) {
+                    abort(new IOException("Request [" + target + "] was cancelled"));
+                } else if (e != null || !streamed) {
+                    finish();
+                } else {
+                    returned = true;
+                }
+            });
+            check();
+        }
+
+        <T> CompletableFuture<T> sending(CompletableFuture<T> sending) {
+            this.sending = sending;
+            if (failure != null) {
+                sending.cancel(true);
+            }
+            return sending;
+        }
+
+        <B> HttpResponse.BodyHandler<B> watch(HttpResponse.BodyHandler<B> handler) {
+            return responseInfo -> {
+                progress();
+                final WatchedSubscriber<B> watched = new WatchedSubscriber<>(handler.apply(responseInfo), this);
+                subscriber = watched;
+                return watched;
+            };
+        }
+
+        InputStream watch(InputStream in, boolean response) {
+            return new WatchedInputStream(in, this, response);
+        }
+
+        void progress() {
+            lastProgress = System.nanoTime();
+        }
+
+        /**
+         * @return the failure the exchange aborted the request with, if any, rather than the one it caused
+         */
+        Throwable failure(Throwable e) {
+            final IOException failure = this.failure;
+            return failure == null ? e : failure;
+        }
+
+        void finish() {
+            done = true;
+        }
+
+        private void check() {
+            if (done) {
+                return;
+            }
+            final long idle = System.nanoTime() - lastProgress;
+            final long timeoutNanos = timeout.toNanos();
+            if (returned && reading.get() == 0) {
+                // the caller is not waiting for the body
+                schedule(timeoutNanos);
+            } else if (idle >= timeoutNanos) {
+                abort(new HttpTimeoutException("Request [" + target + "] made no progress for [" +
+                                               TimeValue.timeValueMillis(timeout.toMillis()) + "]"));
+            } else {
+                schedule(timeoutNanos - idle);
+            }
+        }
+
+        private void schedule(long delayNanos) {
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(this::check);
+        }
+
+        private void abort(IOException e) {
+            synchronized (this) {
+                if (failure != null || done) {
+                    return;
+                }
+                failure = e;
+            }
+            result.completeExceptionally(e);
+            final CompletableFuture<?> sending = this.sending;
+            if (sending != null) {
+                sending.cancel(true);
+            }
+            final WatchedSubscriber<?> subscriber = this.subscriber;
+            if (subscriber != null) {
+                subscriber.abort(e);
+            }
+            finish();
+        }
+    }
+
+    /**
+     * Passes a response body on to its subscriber, until the exchange aborts it
+     */
+    private static final class WatchedSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> delegate;
+        private final Exchange exchange;
+        private Flow.Subscription subscription;
+        private boolean terminated;
+
+        WatchedSubscriber(HttpResponse.BodySubscriber<T> delegate, Exchange exchange) {
+            this.delegate = delegate;
+            this.exchange = exchange;
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return delegate.getBody();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            synchronized (this) {
+                this.subscription = subscription;
+            }
+            delegate.onSubscribe(subscription);
+            final IOException failure = exchange.failure;
+            if (failure != null) {
+                abort(failure);
+            }
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            exchange.progress();
+            synchronized (this) {
+                if (!terminated) {
+                    delegate.onNext(item);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (this) {
+                if (terminated) {
+                    return;
+                }
+                terminated = true;
+            }
+            delegate.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                if (terminated) {
+                    return;
+                }
+                terminated = true;
+            }
+            delegate.onComplete();
+        }
+
+        /**
+         * Cancel the body, failing its subscriber, and waking up any read waiting for it
+         */
+        void abort(IOException e) {
+            final Flow.Subscription subscription;
+            synchronized (this) {
+                if (terminated || this.subscription == null) {
+                    // not subscribed yet, onSubscribe aborts
+                    return;
+                }
+                terminated = true;
+                subscription = this.subscription;
+            }
+            subscription.cancel();
+            delegate.onError(e);
+        }
+    }
+
+    /**
+     * Reports the reads of a body to its exchange, and fails them once the exchange is aborted
+     */
+    private static final class WatchedInputStream extends FilterInputStream {
+        private final Exchange exchange;
+        // whether this is the response body, whose end ends the exchange
+        private final boolean response;
+
+        WatchedInputStream(InputStream in, Exchange exchange, boolean response) {
+            super(in);
+            this.exchange = exchange;
+            this.response = response;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final IOException failure = exchange.failure;
+            if (failure != null) {
+                throw failure;
+            }
+            exchange.progress();
+            exchange.reading.incrementAndGet();
+            try {
+                final int read = super.read(b, off, len);
+                if (read == -1 && response) {
+                    exchange.finish();
+                }
+                return read;
+            } catch (IOException e) {
+                final Throwable cause = exchange.failure(e);
+                throw cause instanceof IOException ? (IOException) cause : e;
+            } finally {
+                exchange.reading.decrementAndGet();
+                exchange.progress();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (response) {
+                exchange.finish();
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Result of a request, along with the status and Swift transaction ID of its response
+     */
+    public static final class Response<T> {
+        private final T value;
+        @Nullable
+        private final String transactionId;
+        private final int status;
+
+        Response(T value, @Nullable String transactionId, int status) {
+            this.value = value;
+            this.transactionId = transactionId;
+            this.status = status;
+        }
+
+        public T value() {
+            return value;
+        }
+
+        @Nullable
+        public String transactionId() {
+            return transactionId;
+        }
+
+        public int status() {
+            return status;
+        }
+    }
+
+    private static final class StreamedObjectDownload implements SwiftRestClient.ObjectDownload {
+        private final HttpResponse<InputStream> response;
+        private final InputStream content;
+
+        StreamedObjectDownload(HttpResponse<InputStream> response, Exchange exchange) {
+            this.response = response;
+            this.content = exchange.watch(response.body(), true);
+        }
+
+        @Override
+        public InputStream content() {
+            return content;
+        }
+
+        @Override
+        public long contentLength() {
+            return response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1);
+        }
+
+        @Override
+        public String header(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            content.close();
+        }
+    }
+}
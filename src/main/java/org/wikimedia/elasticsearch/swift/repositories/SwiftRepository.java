@@ -20,16 +20,22 @@ import org.elasticsearch.cluster.metadata.RepositoryMetaData;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.blobstore.BlobPath;
 import org.elasticsearch.common.blobstore.BlobStore;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.SecureSetting;
+import org.elasticsearch.common.settings.SecureString;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.repositories.RepositoryException;
 import org.elasticsearch.repositories.blobstore.BlobStoreRepository;
 import org.javaswift.joss.model.Account;
 import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftBlobStore;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftCompression;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftRepositoryStats;
 
 /**
  * The blob store repository. A glorified settings wrapper.
@@ -52,12 +58,158 @@ public class SwiftRepository extends BlobStoreRepository {
         Setting<ByteSizeValue> CHUNK_SIZE_SETTING = Setting.byteSizeSetting("chunk_size", new ByteSizeValue(5,
                 ByteSizeUnit.GB));
         Setting<Boolean> COMPRESS_SETTING = Setting.boolSetting("compress", false);
+        Setting<SwiftCompression> REPOSITORY_COMPRESSION_SETTING = new Setting<>("compression",
+                                                                                 "none",
+                                                                                 SwiftCompression::fromString);
         Setting<Boolean> MINIMIZE_BLOB_EXISTS_CHECKS_SETTING = Setting.boolSetting("repository_swift.minimize_blob_exists_checks",
                                                                                    true,
                                                                                     Setting.Property.NodeScope);
         Setting<Boolean> ALLOW_CACHING_SETTING = Setting.boolSetting("repository_swift.allow_caching",
                                                                      true,
                                                                      Setting.Property.NodeScope);
+        Setting<Boolean> CONDITIONAL_PUT_SETTING = Setting.boolSetting("repository_swift.conditional_put",
+                                                                       false,
+                                                                       Setting.Property.NodeScope);
+        Setting<Boolean> VERIFY_CHECKSUMS_SETTING = Setting.boolSetting("repository_swift.verify_checksums",
+                                                                        true,
+                                                                        Setting.Property.NodeScope);
+        Setting<Integer> TRANSFER_THREADS_SETTING = Setting.intSetting("repository_swift.transfer_threads",
+                                                                       16,
+                                                                       1,
+                                                                       Setting.Property.NodeScope);
+        Setting<Boolean> BULK_DELETE_SETTING = Setting.boolSetting("repository_swift.bulk_delete",
+                                                                   true,
+                                                                   Setting.Property.NodeScope);
+        Setting<Integer> DELETE_CONCURRENCY_SETTING = Setting.intSetting("repository_swift.delete_concurrency",
+                                                                         8,
+                                                                         1,
+                                                                         Setting.Property.NodeScope);
+        Setting<Integer> LIST_CONCURRENCY_SETTING = Setting.intSetting("repository_swift.list_concurrency",
+                                                                       8,
+                                                                       1,
+                                                                       Setting.Property.NodeScope);
+        Setting<Integer> LISTING_CACHE_SIZE_SETTING = Setting.intSetting("repository_swift.listing_cache.size",
+                                                                         0,
+                                                                         0,
+                                                                         Setting.Property.NodeScope);
+        Setting<TimeValue> LISTING_CACHE_TTL_SETTING = Setting.timeSetting("repository_swift.listing_cache.ttl",
+                                                                           TimeValue.timeValueSeconds(30),
+                                                                           Setting.Property.NodeScope);
+        Setting<Boolean> SEGMENTED_UPLOAD_SETTING = Setting.boolSetting("repository_swift.segmented_upload",
+                                                                        false,
+                                                                        Setting.Property.NodeScope);
+        Setting<ByteSizeValue> SEGMENT_SIZE_SETTING = Setting.byteSizeSetting("repository_swift.segment_size",
+                                                                              new ByteSizeValue(64, ByteSizeUnit.MB),
+                                                                              new ByteSizeValue(1, ByteSizeUnit.MB),
+                                                                              new ByteSizeValue(1, ByteSizeUnit.GB),
+                                                                              Setting.Property.NodeScope);
+        Setting<Integer> UPLOAD_CONCURRENCY_SETTING = Setting.intSetting("repository_swift.upload_concurrency",
+                                                                         4,
+                                                                         1,
+                                                                         Setting.Property.NodeScope);
+        Setting<Integer> READ_MAX_RETRIES_SETTING = Setting.intSetting("repository_swift.read_max_retries",
+                                                                       3,
+                                                                       0,
+                                                                       Setting.Property.NodeScope);
+        Setting<Boolean> PARALLEL_DOWNLOAD_SETTING = Setting.boolSetting("repository_swift.parallel_download",
+                                                                         false,
+                                                                         Setting.Property.NodeScope);
+        Setting<ByteSizeValue> PARALLEL_DOWNLOAD_THRESHOLD_SETTING =
+            Setting.byteSizeSetting("repository_swift.parallel_download_threshold",
+                                    new ByteSizeValue(128, ByteSizeUnit.MB),
+                                    Setting.Property.NodeScope);
+        Setting<ByteSizeValue> DOWNLOAD_CHUNK_SIZE_SETTING = Setting.byteSizeSetting("repository_swift.download_chunk_size",
+                                                                                     new ByteSizeValue(16, ByteSizeUnit.MB),
+                                                                                     new ByteSizeValue(1, ByteSizeUnit.MB),
+                                                                                     new ByteSizeValue(1, ByteSizeUnit.GB),
+                                                                                     Setting.Property.NodeScope);
+        Setting<Integer> DOWNLOAD_CONCURRENCY_SETTING = Setting.intSetting("repository_swift.download_concurrency",
+                                                                           4,
+                                                                           1,
+                                                                           Setting.Property.NodeScope);
+        Setting<ByteSizeValue> DOWNLOAD_MEMORY_SETTING = Setting.byteSizeSetting("repository_swift.download_memory",
+                                                                                 new ByteSizeValue(256, ByteSizeUnit.MB),
+                                                                                 Setting.Property.NodeScope);
+        Setting<ByteSizeValue> TRANSFER_MEMORY_SETTING = Setting.byteSizeSetting("repository_swift.transfer_memory",
+                                                                                 new ByteSizeValue(64, ByteSizeUnit.MB),
+                                                                                 Setting.Property.NodeScope);
+        Setting<Integer> HTTP_MAX_CONNECTIONS_SETTING = Setting.intSetting("repository_swift.http.max_connections",
+                                                                           128,
+                                                                           1,
+                                                                           Setting.Property.NodeScope);
+        Setting<Integer> HTTP_MAX_CONNECTIONS_PER_ROUTE_SETTING =
+            Setting.intSetting("repository_swift.http.max_connections_per_route",
+                               64,
+                               1,
+                               Setting.Property.NodeScope);
+        Setting<TimeValue> HTTP_CONNECT_TIMEOUT_SETTING = Setting.timeSetting("repository_swift.http.connect_timeout",
+                                                                              TimeValue.timeValueSeconds(10),
+                                                                              Setting.Property.NodeScope);
+        Setting<TimeValue> HTTP_SOCKET_TIMEOUT_SETTING = Setting.timeSetting("repository_swift.http.socket_timeout",
+                                                                             TimeValue.timeValueSeconds(60),
+                                                                             Setting.Property.NodeScope);
+        Setting<TimeValue> HTTP_KEEP_ALIVE_SETTING = Setting.timeSetting("repository_swift.http.keep_alive",
+                                                                         TimeValue.timeValueSeconds(60),
+                                                                         Setting.Property.NodeScope);
+        Setting<TimeValue> TOKEN_TTL_SETTING = Setting.timeSetting("repository_swift.token_ttl",
+                                                                   TimeValue.timeValueHours(1),
+                                                                   Setting.Property.NodeScope);
+        Setting<Integer> RETRY_MAX_RETRIES_SETTING = Setting.intSetting("repository_swift.retry.max_retries",
+                                                                        3,
+                                                                        0,
+                                                                        Setting.Property.NodeScope);
+        Setting<TimeValue> RETRY_BASE_DELAY_SETTING = Setting.timeSetting("repository_swift.retry.base_delay",
+                                                                          TimeValue.timeValueMillis(100),
+                                                                          Setting.Property.NodeScope);
+        Setting<TimeValue> RETRY_MAX_DELAY_SETTING = Setting.timeSetting("repository_swift.retry.max_delay",
+                                                                         TimeValue.timeValueSeconds(10),
+                                                                         Setting.Property.NodeScope);
+        Setting<Boolean> RETRY_JITTER_SETTING = Setting.boolSetting("repository_swift.retry.jitter",
+                                                                    true,
+                                                                    Setting.Property.NodeScope);
+        Setting<Integer> MAX_REQUESTS_PER_SEC_SETTING = Setting.intSetting("repository_swift.max_requests_per_sec",
+                                                                           0,
+                                                                           0,
+                                                                           Setting.Property.NodeScope);
+        Setting<Integer> MAX_IN_FLIGHT_READS_SETTING = Setting.intSetting("repository_swift.max_in_flight.read",
+                                                                          64,
+                                                                          1,
+                                                                          Setting.Property.NodeScope);
+        Setting<Integer> MAX_IN_FLIGHT_WRITES_SETTING = Setting.intSetting("repository_swift.max_in_flight.write",
+                                                                           32,
+                                                                           1,
+                                                                           Setting.Property.NodeScope);
+        Setting<Integer> MAX_IN_FLIGHT_LISTS_SETTING = Setting.intSetting("repository_swift.max_in_flight.list",
+                                                                          16,
+                                                                          1,
+                                                                          Setting.Property.NodeScope);
+        Setting<Integer> MAX_IN_FLIGHT_DELETES_SETTING = Setting.intSetting("repository_swift.max_in_flight.delete",
+                                                                            32,
+                                                                            1,
+                                                                            Setting.Property.NodeScope);
+        Setting<TimeValue> MAX_IN_FLIGHT_WAIT_SETTING = Setting.timeSetting("repository_swift.max_in_flight.wait",
+                                                                            TimeValue.timeValueSeconds(60),
+                                                                            TimeValue.ZERO,
+                                                                            Setting.Property.NodeScope);
+        Setting<TimeValue> SLOW_LOG_THRESHOLD_SETTING = Setting.timeSetting("repository_swift.slow_log.threshold",
+                                                                            TimeValue.MINUS_ONE,
+                                                                            Setting.Property.NodeScope);
+        Setting<Boolean> ASYNC_TRANSPORT_SETTING = Setting.boolSetting("repository_swift.async_transport",
+                                                                       false,
+                                                                       Setting.Property.NodeScope);
+        Setting<SwiftCompression> COMPRESSION_SETTING = new Setting<>("repository_swift.compression",
+                                                                      "none",
+                                                                      SwiftCompression::fromString,
+                                                                      Setting.Property.NodeScope);
+        Setting<SecureString> ENCRYPTION_KEY_SETTING = SecureSetting.secureString("repository_swift.encryption.key", null);
+        Setting<ByteSizeValue> ENCRYPTION_FRAME_SIZE_SETTING = Setting.byteSizeSetting("repository_swift.encryption.frame_size",
+                                                                                       new ByteSizeValue(64, ByteSizeUnit.KB),
+                                                                                       new ByteSizeValue(1, ByteSizeUnit.KB),
+                                                                                       new ByteSizeValue(8, ByteSizeUnit.MB),
+                                                                                       Setting.Property.NodeScope);
+        Setting<Boolean> ENCRYPTION_REQUIRED_SETTING = Setting.boolSetting("repository_swift.encryption.required",
+                                                                           false,
+                                                                           Setting.Property.NodeScope);
 
 
     }
@@ -73,9 +225,15 @@ public class SwiftRepository extends BlobStoreRepository {
     // Are we compressing our snapshots?
     private final boolean compress;
 
+    // Codec blob contents are written with
+    private final SwiftCompression compression;
+
     protected final Settings settings;
     protected final SwiftService swiftService;
 
+    // The account of the blob store, given back to the service when the repository closes
+    private volatile Account account;
+
     /**
      * Constructs new BlobStoreRepository
      *
@@ -99,6 +257,7 @@ public class SwiftRepository extends BlobStoreRepository {
         this.swiftService = swiftService;
         this.chunkSize = Swift.CHUNK_SIZE_SETTING.get(metadata.settings());
         this.compress = Swift.COMPRESS_SETTING.get(metadata.settings());
+        this.compression = compression(metadata.settings(), settings);
         this.basePath = BlobPath.cleanPath();
     }
 
@@ -123,7 +282,60 @@ public class SwiftRepository extends BlobStoreRepository {
         Account account = SwiftAccountFactory.createAccount(swiftService, url, username, password, tenantName,
                 authMethod, preferredRegion);
 
-        return new SwiftBlobStore(settings, account, container);
+        try {
+            SwiftAsyncClient asyncClient = null;
+            if (swiftService.asyncHttpClient() != null) {
+                asyncClient = new SwiftAsyncClient(account, swiftService.asyncHttpClient(),
+                                                   Swift.HTTP_SOCKET_TIMEOUT_SETTING.get(settings));
+            }
+            final SwiftBlobStore blobStore = new SwiftBlobStore(settings, account, container,
+                                                                new SwiftRestClient(account, swiftService.httpClient(), false),
+                                                                asyncClient, swiftService.encryptionKey(), compression);
+            this.account = account;
+            return blobStore;
+        } catch (RuntimeException e) {
+            swiftService.releaseAccount(account);
+            throw e;
+        }
+    }
+
+    /**
+     * Codec of the blobs a repository writes: its own compression setting, or else the node's
+     * @param repositorySettings settings of the repository
+     * @param nodeSettings global settings
+     * @return the codec
+     */
+    static SwiftCompression compression(Settings repositorySettings, Settings nodeSettings) {
+        if (Swift.REPOSITORY_COMPRESSION_SETTING.exists(repositorySettings)) {
+            return Swift.REPOSITORY_COMPRESSION_SETTING.get(repositorySettings);
+        }
+        return Swift.COMPRESSION_SETTING.get(nodeSettings);
+    }
+
+    /**
+     * Close the blob store, and give its account back to the service
+     */
+    @Override
+    protected void doClose() {
+        try {
+            super.doClose();
+        } finally {
+            final Account account = this.account;
+            if (account != null) {
+                this.account = null;
+                swiftService.releaseAccount(account);
+            }
+        }
+    }
+
+    /**
+     * Request statistics of the repository on this node
+     * @return the statistics, or null if the repository has not accessed Swift yet
+     */
+    @Nullable
+    public SwiftRepositoryStats stats() {
+        BlobStore blobStore = getBlobStore();
+        return blobStore == null ? null : ((SwiftBlobStore) blobStore).stats();
     }
 
     /**
@@ -0,0 +1,730 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.javaswift.joss.exception.CommandException;
+import org.javaswift.joss.model.Account;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Plain HTTP access to the parts of the Swift API that JOSS does not cover,
+ * authenticated with the token of an existing JOSS account.
+ */
+public class SwiftRestClient implements Closeable {
+    static final String AUTH_TOKEN_HEADER = "X-Auth-Token";
+    static final String COPY_FROM_HEADER = "X-Copy-From";
+
+    // The authenticated account whose token and storage url we use
+    private final Account account;
+
+    private final CloseableHttpClient httpClient;
+
+    // Whether the http client is ours to close
+    private final boolean ownsHttpClient;
+
+    /**
+     * Constructor
+     * @param account authenticated swift account
+     */
+    public SwiftRestClient(Account account) {
+        this(account, HttpClients.custom().useSystemProperties().build(), true);
+    }
+
+    /**
+     * Constructor
+     * @param account authenticated swift account
+     * @param httpClient http client to issue requests with
+     * @param ownsHttpClient close the http client along with this client
+     */
+    public SwiftRestClient(Account account, CloseableHttpClient httpClient, boolean ownsHttpClient) {
+        this.account = account;
+        this.httpClient = httpClient;
+        this.ownsHttpClient = ownsHttpClient;
+    }
+
+    /**
+     * @return the account this client authenticates as
+     */
+    public Account account() {
+        return account;
+    }
+
+    /**
+     * Fetch the cluster capabilities advertised by the proxy at /info
+     * @return parsed info document
+     */
+    public Map<String, Object> clusterInfo() throws IOException {
+        HttpGet get = new HttpGet(URI.create(account.getPublicURL()).resolve("/info"));
+        return httpClient.execute(get, response -> {
+            checkStatus(get, response.getStatusLine().getStatusCode());
+            return parseJson(response.getEntity());
+        });
+    }
+
+    /**
+     * @return the maximum number of objects a bulk-delete request may carry, or 0 if the
+     * cluster does not advertise the bulk-delete middleware
+     */
+    public int maxDeletesPerRequest() throws IOException {
+        Object bulkDelete = clusterInfo().get("bulk_delete");
+        if (bulkDelete instanceof Map) {
+            Object max = ((Map<?, ?>) bulkDelete).get("max_deletes_per_request");
+            if (max instanceof Number) {
+                return ((Number) max).intValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the maximum number of entries of a container listing page, or 0 if the cluster does not advertise it
+     */
+    public int containerListingLimit() throws IOException {
+        Object swift = clusterInfo().get("swift");
+        if (swift instanceof Map) {
+            Object limit = ((Map<?, ?>) swift).get("container_listing_limit");
+            if (limit instanceof Number) {
+                return ((Number) limit).intValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Delete a batch of objects with a single bulk-delete request
+     * @param container container holding the objects
+     * @param keys object names, at most {@link #maxDeletesPerRequest()} of them
+     * @return the outcome reported by the middleware
+     * @throws ResponseException if the middleware failed the whole request, e.g. with a 413 for a batch too large
+     */
+    public BulkDeleteResponse bulkDelete(String container, Collection<String> keys) throws IOException {
+        HttpPost post = new HttpPost(account.getPublicURL() + "?bulk-delete");
+        post.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+        post.setEntity(new StringEntity(bulkDeleteBody(container, keys), ContentType.create("text/plain", StandardCharsets.UTF_8)));
+        return execute(post, response -> {
+            checkStatus(post, response.getStatusLine().getStatusCode());
+            return checkBulkDelete(new BulkDeleteResponse(parseJson(response.getEntity())), post.getMethod(), post.getURI(), null);
+        });
+    }
+
+    /**
+     * The bulk-delete middleware answers 200 once it starts streaming its response, and reports how the
+     * request went in the body instead. Failures of the whole request are turned into the exception their
+     * status would have raised; failures of single objects are left for the caller to report.
+     */
+    static BulkDeleteResponse checkBulkDelete(BulkDeleteResponse response, String method, URI uri, @Nullable String transactionId)
+            throws ResponseException {
+        final int status = response.status();
+        if ((status < 200 || status >= 300) && response.errors().isEmpty()) {
+            throw new ResponseException(method, uri, status, transactionId);
+        }
+        return response;
+    }
+
+    /**
+     * List one page of a container
+     * @param container container to list
+     * @param prefix only list names starting with this prefix
+     * @param delimiter roll up names containing this character after the prefix into pseudo-directories, or null
+     * @param marker only list names after this one, or null
+     * @param limit maximum number of entries, at most the cluster's container_listing_limit
+     * @param consumer receives the entries, in name order
+     * @return number of entries listed
+     */
+    public int listObjects(String container, String prefix, @Nullable Character delimiter, @Nullable String marker, int limit,
+                           ListingConsumer consumer) throws IOException {
+        HttpGet get = new HttpGet(listingUrl(account, container, prefix, delimiter, marker, limit));
+        return execute(get, response -> {
+            checkStatus(get, response.getStatusLine().getStatusCode());
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                return 0;
+            }
+            try (InputStream in = entity.getContent();
+                 XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                     DeprecationHandler.THROW_UNSUPPORTED_OPERATION, in)) {
+                return parseListing(parser, consumer);
+            }
+        });
+    }
+
+    /**
+     * Stream the entries of a JSON container listing to the consumer, without materializing them
+     */
+    static int parseListing(XContentParser parser, ListingConsumer consumer) throws IOException {
+        if (parser.nextToken() != XContentParser.Token.START_ARRAY) {
+            throw new IOException("Unexpected container listing, expected an array but got [" + parser.currentToken() + "]");
+        }
+        int count = 0;
+        while (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+            String name = null;
+            String subdir = null;
+            long bytes = 0;
+            String contentType = null;
+            while (parser.nextToken() != XContentParser.Token.END_OBJECT) {
+                String field = parser.currentName();
+                XContentParser.Token token = parser.nextToken();
+                if ("name".equals(field)) {
+                    name = parser.text();
+                } else if ("subdir".equals(field)) {
+                    subdir = parser.text();
+                } else if ("bytes".equals(field)) {
+                    bytes = parser.longValue();
+                } else if ("content_type".equals(field)) {
+                    contentType = parser.text();
+                } else if (token == XContentParser.Token.START_OBJECT || token == XContentParser.Token.START_ARRAY) {
+                    parser.skipChildren();
+                }
+            }
+            if (subdir != null) {
+                consumer.subdir(subdir);
+            } else if (name != null) {
+                consumer.object(name, bytes, contentType);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Upload an object with a known length
+     * @param container container to upload to
+     * @param key object name
+     * @param entity object contents
+     * @param md5 hex MD5 of the contents for Swift to verify, or null
+     * @return the ETag of the stored object
+     */
+    public String putObject(String container, String key, HttpEntity entity, @Nullable String md5) throws IOException {
+        return putObject(container, key, entity, md5, false);
+    }
+
+    /**
+     * Upload an object with a known length
+     * @param container container to upload to
+     * @param key object name
+     * @param entity object contents
+     * @param md5 hex MD5 of the contents for Swift to verify, or null
+     * @param ifNoneMatch only create the object if it does not exist yet; Swift answers 412 otherwise
+     * @return the ETag of the stored object
+     */
+    public String putObject(String container, String key, HttpEntity entity, @Nullable String md5, boolean ifNoneMatch)
+            throws IOException {
+        HttpPut put = new HttpPut(objectUrl(account, container, key));
+        if (md5 != null) {
+            put.setHeader(HttpHeaders.ETAG, md5);
+        }
+        if (ifNoneMatch) {
+            put.setHeader(HttpHeaders.IF_NONE_MATCH, "*");
+        }
+        put.setEntity(entity);
+        return execute(put, response -> {
+            checkStatus(put, response.getStatusLine().getStatusCode());
+            EntityUtils.consumeQuietly(response.getEntity());
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            return etag == null ? null : etag.getValue();
+        });
+    }
+
+    /**
+     * Copy an object server-side, within a container
+     * @param container container holding both objects
+     * @param sourceKey name of the object to copy
+     * @param key name of the copy
+     * @param ifNoneMatch only create the copy if it does not exist yet; Swift answers 412 otherwise
+     * @return the ETag of the copy
+     */
+    public String copyObject(String container, String sourceKey, String key, boolean ifNoneMatch) throws IOException {
+        HttpPut put = new HttpPut(objectUrl(account, container, key));
+        put.setHeader(COPY_FROM_HEADER, encodePath("/" + container + "/" + sourceKey));
+        if (ifNoneMatch) {
+            put.setHeader(HttpHeaders.IF_NONE_MATCH, "*");
+        }
+        put.setEntity(new ByteArrayEntity(new byte[0]));
+        return execute(put, response -> {
+            checkStatus(put, response.getStatusLine().getStatusCode());
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            return etag == null ? null : etag.getValue();
+        });
+    }
+
+    /**
+     * Commit a Static Large Object manifest, making the listed segments readable as one object
+     * @param container container of the large object
+     * @param key name of the large object
+     * @param manifest JSON array of segment descriptions (path, etag, size_bytes)
+     * @param ifNoneMatch only create the object if it does not exist yet; Swift answers 412 otherwise
+     * @param contentType Content-Type of the large object, or null to leave it to Swift
+     * @return the ETag of the large object, the MD5 of the concatenated segment ETags
+     */
+    public String putStaticLargeObjectManifest(String container, String key, BytesReference manifest, boolean ifNoneMatch,
+                                               @Nullable String contentType) throws IOException {
+        HttpPut put = new HttpPut(objectUrl(account, container, key) + "?multipart-manifest=put");
+        if (ifNoneMatch) {
+            put.setHeader(HttpHeaders.IF_NONE_MATCH, "*");
+        }
+        if (contentType != null) {
+            // takes precedence over the type of the manifest entity
+            put.setHeader(HttpHeaders.CONTENT_TYPE, contentType);
+        }
+        put.setEntity(new ByteArrayEntity(BytesReference.toBytes(manifest), ContentType.APPLICATION_JSON));
+        return execute(put, response -> {
+            checkStatus(put, response.getStatusLine().getStatusCode());
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            return etag == null ? null : etag.getValue();
+        });
+    }
+
+    /**
+     * Read the ETag of an object
+     * @param container container holding the object
+     * @param key object name
+     * @return the ETag of the object, or null if it does not exist
+     */
+    @Nullable
+    public String headObject(String container, String key) throws IOException {
+        HttpHead head = new HttpHead(objectUrl(account, container, key));
+        return execute(head, response -> {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_FOUND) {
+                return null;
+            }
+            checkStatus(head, status);
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            return etag == null ? null : etag.getValue();
+        });
+    }
+
+    /**
+     * Get the headers of an object, without its contents
+     * @param container container holding the object
+     * @param key object name
+     * @return the response headers, by case-insensitive name, or null if the object does not exist
+     */
+    @Nullable
+    public Map<String, String> objectHeaders(String container, String key) throws IOException {
+        HttpHead head = new HttpHead(objectUrl(account, container, key));
+        return execute(head, response -> {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_FOUND) {
+                return null;
+            }
+            checkStatus(head, status);
+            final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Header header : response.getAllHeaders()) {
+                headers.putIfAbsent(header.getName(), header.getValue());
+            }
+            return headers;
+        });
+    }
+
+    /**
+     * Start downloading an object, or a byte range of it
+     * @param container container holding the object
+     * @param key object name
+     * @param start offset of the first byte to read
+     * @param end offset of the last byte to read, inclusive, or -1 to read to the end
+     * @param ifMatch only read the object if its ETag still matches this one, or null
+     * @return the open download, to be closed by the caller
+     */
+    public ObjectDownload getObject(String container, String key, long start, long end, @Nullable String ifMatch)
+            throws IOException {
+        HttpGet get = new HttpGet(objectUrl(account, container, key));
+        if (start > 0 || end >= 0) {
+            get.setHeader(HttpHeaders.RANGE, range(start, end));
+        }
+        if (ifMatch != null) {
+            get.setHeader(HttpHeaders.IF_MATCH, ifMatch);
+        }
+        CloseableHttpResponse response = executeForResponse(get);
+        try {
+            checkStatus(get, response.getStatusLine().getStatusCode());
+            return new HttpObjectDownload(response);
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    static String objectUrl(Account account, String container, String key) {
+        return account.getPublicURL() + encodePath("/" + container + "/" + key);
+    }
+
+    static String listingUrl(Account account, String container, String prefix, @Nullable Character delimiter,
+                             @Nullable String marker, int limit) {
+        StringBuilder url = new StringBuilder(account.getPublicURL()).append(encodePath("/" + container))
+            .append("?format=json&limit=").append(limit)
+            .append("&prefix=").append(encodeParameter(prefix));
+        if (delimiter != null) {
+            url.append("&delimiter=").append(encodeParameter(delimiter.toString()));
+        }
+        if (marker != null) {
+            url.append("&marker=").append(encodeParameter(marker));
+        }
+        return url.toString();
+    }
+
+    static String bulkDeleteBody(String container, Collection<String> keys) {
+        StringBuilder body = new StringBuilder();
+        for (String key : keys) {
+            body.append(encodePath("/" + container + "/" + key)).append('\n');
+        }
+        return body.toString();
+    }
+
+    /**
+     * @return Range header value for the bytes from start to end inclusive, end being -1 for the end of the object
+     */
+    static String range(long start, long end) {
+        return "bytes=" + start + "-" + (end >= 0 ? Long.toString(end) : "");
+    }
+
+    /**
+     * Execute a request against the storage url, authenticated with the account token
+     */
+    <T> T execute(HttpUriRequest request, ResponseHandler<T> handler) throws IOException {
+        try (CloseableHttpResponse response = executeForResponse(request)) {
+            try {
+                return handler.handleResponse(response);
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+        }
+    }
+
+    /**
+     * Execute an authenticated request. A request rejected because the token expired is
+     * replayed once with a fresh token, provided its body can be sent again.
+     */
+    private CloseableHttpResponse executeForResponse(HttpUriRequest request) throws IOException {
+        final String token = request(request);
+        CloseableHttpResponse response = httpClient.execute(request);
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_UNAUTHORIZED || !isRepeatable(request)) {
+            return response;
+        }
+        response.close();
+        reauthenticate(account, token);
+        request(request);
+        return httpClient.execute(request);
+    }
+
+    private String request(HttpUriRequest request) {
+        final String token = account.getAccess().getToken();
+        request.setHeader(AUTH_TOKEN_HEADER, token);
+        return token;
+    }
+
+    /**
+     * Renew the account token, unless another request already replaced the rejected one
+     */
+    static void reauthenticate(Account account, String rejectedToken) throws IOException {
+        synchronized (account) {
+            if (!rejectedToken.equals(account.getAccess().getToken())) {
+                return;
+            }
+            try {
+                account.authenticate();
+            } catch (CommandException e) {
+                throw new IOException("Unable to re-authenticate to Swift", e);
+            }
+        }
+    }
+
+    private static boolean isRepeatable(HttpUriRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ownsHttpClient) {
+            httpClient.close();
+        }
+    }
+
+    private static void checkStatus(HttpUriRequest request, int status) throws IOException {
+        if (status < 200 || status >= 300) {
+            throw new ResponseException(request, status);
+        }
+    }
+
+    private static Map<String, Object> parseJson(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return Collections.emptyMap();
+        }
+        try (InputStream in = entity.getContent()) {
+            return XContentHelper.convertToMap(XContentType.JSON.xContent(), in, false);
+        } finally {
+            EntityUtils.consumeQuietly(entity);
+        }
+    }
+
+    /**
+     * Strip the quotes Swift puts around some ETags, such as those of large objects
+     */
+    @Nullable
+    public static String unquote(@Nullable String etag) {
+        if (etag != null && etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+            return etag.substring(1, etag.length() - 1);
+        }
+        return etag;
+    }
+
+    private static String encodeParameter(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * Percent-encode each segment of an object path, keeping the separators
+     */
+    static String encodePath(String path) {
+        StringBuilder encoded = new StringBuilder(path.length() + 16);
+        String[] segments = path.split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) {
+                encoded.append('/');
+            }
+            encoded.append(URLEncoder.encode(segments[i], StandardCharsets.UTF_8).replace("+", "%20"));
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Receives the entries of a container listing
+     */
+    public interface ListingConsumer {
+        /**
+         * An object
+         * @param name object name
+         * @param bytes object size
+         * @param contentType object Content-Type, or null if not listed
+         */
+        void object(String name, long bytes, @Nullable String contentType);
+
+        /**
+         * A pseudo-directory, when listing with a delimiter
+         * @param prefix the common prefix, ending with the delimiter
+         */
+        void subdir(String prefix);
+    }
+
+    /**
+     * A request that Swift answered with a non-2xx status
+     */
+    public static class ResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        @Nullable
+        private final String transactionId;
+
+        ResponseException(HttpUriRequest request, int status) {
+            this(request.getMethod(), request.getURI(), status, null);
+        }
+
+        ResponseException(String method, URI uri, int status, @Nullable String transactionId) {
+            super("Swift request [" + method + " " + uri + "] failed with status [" + status + "]");
+            this.status = status;
+            this.transactionId = transactionId;
+        }
+
+        /**
+         * @return the HTTP status returned by Swift
+         */
+        public int status() {
+            return status;
+        }
+
+        /**
+         * @return the Swift transaction ID of the response, when the client recorded it
+         */
+        @Nullable
+        public String transactionId() {
+            return transactionId;
+        }
+    }
+
+    /**
+     * An object being downloaded, holding the HTTP connection until closed
+     */
+    public interface ObjectDownload extends Closeable {
+        /**
+         * @return the object contents, as returned by Swift
+         */
+        InputStream content() throws IOException;
+
+        /**
+         * @return number of bytes in this response, or -1 if unknown
+         */
+        long contentLength();
+
+        /**
+         * @return the ETag of the whole object
+         */
+        @Nullable
+        default String etag() {
+            return header(HttpHeaders.ETAG);
+        }
+
+        /**
+         * @return the value of a response header, or null
+         */
+        @Nullable
+        String header(String name);
+    }
+
+    private static class HttpObjectDownload implements ObjectDownload {
+        private final CloseableHttpResponse response;
+
+        HttpObjectDownload(CloseableHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public InputStream content() throws IOException {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? new ByteArrayInputStream(new byte[0]) : entity.getContent();
+        }
+
+        @Override
+        public long contentLength() {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? 0 : entity.getContentLength();
+        }
+
+        @Override
+        public String header(String name) {
+            Header header = response.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.close();
+        }
+    }
+
+    /**
+     * Outcome of a bulk-delete request
+     */
+    public static class BulkDeleteResponse {
+        private final int status;
+        private final long deleted;
+        private final long notFound;
+        private final List<String> errors;
+
+        BulkDeleteResponse(Map<String, Object> body) {
+            this.status = asStatus(body.get("Response Status"));
+            this.deleted = asLong(body.get("Number Deleted"));
+            this.notFound = asLong(body.get("Number Not Found"));
+            List<String> errors = new ArrayList<>();
+            Object errorList = body.get("Errors");
+            if (errorList instanceof List) {
+                for (Object error : (List<?>) errorList) {
+                    errors.add(String.valueOf(error));
+                }
+            }
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        private static long asLong(Object value) {
+            return value instanceof Number ? ((Number) value).longValue() : 0;
+        }
+
+        // "413 Request Entity Too Large"
+        private static int asStatus(Object value) {
+            if (value == null) {
+                return HttpStatus.SC_OK;
+            }
+            final String status = value.toString().trim();
+            final int space = status.indexOf(' ');
+            try {
+                return Integer.parseInt(space < 0 ? status : status.substring(0, space));
+            } catch (NumberFormatException e) {
+                return HttpStatus.SC_INTERNAL_SERVER_ERROR;
+            }
+        }
+
+        /**
+         * @return status of the whole request, as reported in the response body
+         */
+        public int status() {
+            return status;
+        }
+
+        /**
+         * @return number of objects deleted
+         */
+        public long deleted() {
+            return deleted;
+        }
+
+        /**
+         * @return number of objects that did not exist
+         */
+        public long notFound() {
+            return notFound;
+        }
+
+        /**
+         * @return per-object failures, as reported by the middleware
+         */
+        public List<String> errors() {
+            return errors;
+        }
+    }
+}
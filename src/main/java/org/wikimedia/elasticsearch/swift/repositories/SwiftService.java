@@ -16,10 +16,34 @@
 
 package org.wikimedia.elasticsearch.swift.repositories;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.SecureString;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.javaswift.joss.client.factory.AccountConfig;
 import org.javaswift.joss.client.factory.AccountFactory;
 import org.javaswift.joss.client.factory.AuthenticationMethod;
@@ -27,12 +51,74 @@ import org.javaswift.joss.exception.CommandException;
 import org.javaswift.joss.model.Account;
 import org.wikimedia.elasticsearch.swift.SwiftPerms;
 
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
 public class SwiftService extends AbstractLifecycleComponent {
-    // The account we'll be connecting to Swift with
-    private Account swiftUser;
+    private static final Logger logger = LogManager.getLogger(SwiftService.class);
+
+    private static final String AUTH_TOKEN_HEADER = "X-Auth-Token";
+    private static final String AUTH_TOKEN_EXPIRES_HEADER = "X-Auth-Token-Expires";
+    private static final String KEYSTONE_SUBJECT_TOKEN_HEADER = "X-Subject-Token";
+    private static final String KEYSTONE_TOKENS_PATH = "/tokens";
+
+    public static final String TRANS_ID_HEADER = "X-Trans-Id";
+
+    // Transaction ID of the last Swift response received by each thread, only tracked for the slow log
+    private static final ThreadLocal<String> TRANSACTION_ID = new ThreadLocal<>();
+
+    // Status of the last Swift response received by each thread
+    private static final ThreadLocal<Integer> STATUS = new ThreadLocal<>();
+
+    // Retry delay after a failed token renewal
+    private static final long RENEWAL_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // Authenticated accounts, shared by all repositories using the same credentials
+    private final ConcurrentMap<AccountKey, CachedAccount> accounts = new ConcurrentHashMap<>();
 
     private final boolean allowCaching;
 
+    // Lifetime assumed for tokens whose expiry the auth service does not announce
+    private final long tokenTtlMillis;
+
+    // Announced token expiries, captured from auth responses by token
+    private final ConcurrentMap<String, Long> tokenExpiries = new ConcurrentHashMap<>();
+
+    // Pooled HTTP client shared by JOSS and our own raw requests
+    private final CloseableHttpClient httpClient;
+
+    // Runs re-authentications, off the request path
+    private final ScheduledThreadPoolExecutor authScheduler;
+
+    // Non-blocking HTTP client and the threads completing its requests. Null unless the async transport is enabled.
+    @Nullable
+    private final HttpClient asyncHttpClient;
+    @Nullable
+    private final ExecutorService asyncExecutor;
+
+    // Key blobs are encrypted with, read from the keystore while it is open. Null to store them in clear.
+    @Nullable
+    private final SecretKey encryptionKey;
+
     /**
      * Constructor
      *
@@ -43,6 +129,219 @@ public class SwiftService extends AbstractLifecycleComponent {
     public SwiftService(Settings settings) {
         allowCaching = settings.getAsBoolean(SwiftRepository.Swift.ALLOW_CACHING_SETTING.getKey(),
                                              true);
+        tokenTtlMillis = SwiftRepository.Swift.TOKEN_TTL_SETTING.get(settings).millis();
+        httpClient = createHttpClient(settings, tokenExpiries, this::renewIfOverdue);
+        authScheduler = new ScheduledThreadPoolExecutor(1, EsExecutors.daemonThreadFactory(settings, "swift_auth"));
+        authScheduler.setRemoveOnCancelPolicy(true);
+        if (SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.get(settings)) {
+            asyncExecutor = EsExecutors.newScaling("swift_async", 0, EsExecutors.numberOfProcessors(settings), 30, TimeUnit.SECONDS,
+                EsExecutors.daemonThreadFactory(settings, "swift_async"), new ThreadContext(settings));
+            asyncHttpClient = createAsyncHttpClient(settings, asyncExecutor);
+        } else {
+            asyncExecutor = null;
+            asyncHttpClient = null;
+        }
+        encryptionKey = loadEncryptionKey(settings);
+    }
+
+    /**
+     * Decode repository_swift.encryption.key, a base64 AES-256 key
+     */
+    @Nullable
+    private static SecretKey loadEncryptionKey(Settings settings) {
+        if (!SwiftRepository.Swift.ENCRYPTION_KEY_SETTING.exists(settings)) {
+            return null;
+        }
+        final byte[] key;
+        try (SecureString encoded = SwiftRepository.Swift.ENCRYPTION_KEY_SETTING.get(settings)) {
+            key = Base64.getDecoder().decode(encoded.toString().trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("[" + SwiftRepository.Swift.ENCRYPTION_KEY_SETTING.getKey() + "] is not valid base64", e);
+        }
+        if (key.length != 32) {
+            throw new IllegalArgumentException("[" + SwiftRepository.Swift.ENCRYPTION_KEY_SETTING.getKey() + "] must be 32 bytes, got [" +
+                                               key.length + "]");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Build the non-blocking HTTP client of the async transport. Its connections are only bounded by
+     * the in-flight caps of the repositories using it.
+     */
+    private static HttpClient createAsyncHttpClient(Settings settings, ExecutorService executor) {
+        final HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofMillis(SwiftRepository.Swift.HTTP_CONNECT_TIMEOUT_SETTING.get(settings).millis()))
+            .executor(executor);
+        return SwiftPerms.exec(builder::build);
+    }
+
+    /**
+     * Build the HTTP client used for all Swift requests, sized so that concurrent snapshot
+     * and restore threads do not queue up on the JOSS default pool.
+     * @param tokenExpiries receives the token expiries announced by the auth service
+     * @param tokenUsed called with the token of each authenticated request
+     */
+    private static CloseableHttpClient createHttpClient(Settings settings, ConcurrentMap<String, Long> tokenExpiries,
+                                                        Consumer<String> tokenUsed) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(SwiftRepository.Swift.HTTP_MAX_CONNECTIONS_SETTING.get(settings));
+        connectionManager.setDefaultMaxPerRoute(SwiftRepository.Swift.HTTP_MAX_CONNECTIONS_PER_ROUTE_SETTING.get(settings));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(Math.toIntExact(SwiftRepository.Swift.HTTP_CONNECT_TIMEOUT_SETTING.get(settings).millis()))
+            .setSocketTimeout(Math.toIntExact(SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING.get(settings).millis()))
+            .build();
+
+        final long keepAlive = SwiftRepository.Swift.HTTP_KEEP_ALIVE_SETTING.get(settings).millis();
+        final HttpClientBuilder builder = HttpClients.custom()
+            .useSystemProperties()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy((response, context) -> keepAlive)
+            .addInterceptorFirst((HttpRequestInterceptor) (request, context) -> STATUS.remove())
+            .addInterceptorLast((HttpResponseInterceptor) (response, context) -> STATUS.set(response.getStatusLine().getStatusCode()))
+            .addInterceptorFirst((HttpRequestInterceptor) (request, context) -> {
+                Header token = request.getFirstHeader(AUTH_TOKEN_HEADER);
+                if (token != null) {
+                    tokenUsed.accept(token.getValue());
+                }
+            })
+            .addInterceptorLast((HttpResponseInterceptor) (response, context) -> {
+                // TempAuth and swauth announce how long the token they hand out stays valid
+                Header token = response.getFirstHeader(AUTH_TOKEN_HEADER);
+                Header expires = response.getFirstHeader(AUTH_TOKEN_EXPIRES_HEADER);
+                if (token != null && expires != null) {
+                    try {
+                        long seconds = Long.parseLong(expires.getValue().trim());
+                        tokenExpiries.put(token.getValue(), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds));
+                    } catch (NumberFormatException e) {
+                        // ignore, the configured token ttl applies
+                    }
+                } else {
+                    captureKeystoneExpiry(response, HttpCoreContext.adapt(context).getRequest(), tokenExpiries);
+                }
+            })
+            .evictExpiredConnections()
+            .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+        if (SwiftRepository.Swift.SLOW_LOG_THRESHOLD_SETTING.get(settings).nanos() >= 0) {
+            builder.addInterceptorFirst((HttpRequestInterceptor) (request, context) -> TRANSACTION_ID.remove());
+            builder.addInterceptorLast((HttpResponseInterceptor) (response, context) -> {
+                Header transactionId = response.getFirstHeader(TRANS_ID_HEADER);
+                TRANSACTION_ID.set(transactionId == null ? null : transactionId.getValue());
+            });
+        }
+        return SwiftPerms.exec(builder::build);
+    }
+
+    /**
+     * Keystone announces when the token it hands out expires in the body of its token responses. Buffer
+     * the body to read it, and leave the copy for JOSS.
+     */
+    private static void captureKeystoneExpiry(HttpResponse response, @Nullable HttpRequest request,
+                                              ConcurrentMap<String, Long> tokenExpiries) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        if (request == null || entity == null || response.getStatusLine().getStatusCode() / 100 != 2 ||
+            !request.getRequestLine().getUri().split("\\?", 2)[0].endsWith(KEYSTONE_TOKENS_PATH)) {
+            return;
+        }
+        final byte[] body = EntityUtils.toByteArray(entity);
+        final Header contentType = entity.getContentType();
+        final ByteArrayEntity copy = new ByteArrayEntity(body);
+        copy.setContentType(contentType);
+        response.setEntity(copy);
+        try {
+            final Map<String, Object> map = XContentHelper.convertToMap(XContentType.JSON.xContent(), new ByteArrayInputStream(body),
+                                                                        false);
+            final Header subjectToken = response.getFirstHeader(KEYSTONE_SUBJECT_TOKEN_HEADER);
+            final Object token = subjectToken != null ? subjectToken.getValue() : value(map, "access", "token", "id");
+            final long expiresAt = keystoneExpiry(map);
+            if (token instanceof String && expiresAt >= 0) {
+                tokenExpiries.put((String) token, expiresAt);
+            }
+        } catch (RuntimeException e) {
+            // not a body we understand, the configured token ttl applies
+            logger.debug("Unable to read the expiry of a Keystone token", e);
+        }
+    }
+
+    /**
+     * @return when a Keystone token expires, in milliseconds since the epoch, from the body of a v3
+     * ({@code token.expires_at}) or v2 ({@code access.token.expires}) token response, or -1 if it does not tell
+     */
+    static long keystoneExpiry(Map<String, Object> body) {
+        Object expires = value(body, "token", "expires_at");
+        if (expires == null) {
+            expires = value(body, "access", "token", "expires");
+        }
+        if (!(expires instanceof String)) {
+            return -1;
+        }
+        try {
+            return OffsetDateTime.parse((String) expires).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // older releases leave out the offset, which is UTC
+            try {
+                return LocalDateTime.parse((String) expires).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+    }
+
+    @Nullable
+    private static Object value(Map<String, Object> map, String... path) {
+        Object value = map;
+        for (String key : path) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            value = ((Map<?, ?>) value).get(key);
+        }
+        return value;
+    }
+
+    /**
+     * @return the transaction ID of the last Swift response received by the current thread, or null
+     * if the request got no response or the slow log is disabled
+     */
+    @Nullable
+    public static String lastTransactionId() {
+        return TRANSACTION_ID.get();
+    }
+
+    /**
+     * @return the status of the last Swift response received by the current thread, or 0 if it got none
+     * since the last call
+     */
+    public static int takeLastStatus() {
+        final Integer status = STATUS.get();
+        STATUS.remove();
+        return status == null ? 0 : status;
+    }
+
+    /**
+     * @return the HTTP client accounts created by this service use
+     */
+    public CloseableHttpClient httpClient() {
+        return httpClient;
+    }
+
+    /**
+     * @return the non-blocking HTTP client of the async transport, or null if it is disabled
+     */
+    @Nullable
+    public HttpClient asyncHttpClient() {
+        return asyncHttpClient;
+    }
+
+    /**
+     * @return the key blobs are encrypted with, or null if repository_swift.encryption.key is not set
+     */
+    @Nullable
+    public SecretKey encryptionKey() {
+        return encryptionKey;
     }
 
     /**
@@ -58,58 +357,83 @@ public class SwiftService extends AbstractLifecycleComponent {
      *            The preferred region set
      * @return swift Account
      */
-    public synchronized Account swiftBasic(String url, String username, String password, String preferredRegion) {
-        if (swiftUser != null) {
-            return swiftUser;
-        }
+    public Account swiftBasic(String url, String username, String password, String preferredRegion) {
+        return account(new AccountKey(url, username, password, null, preferredRegion, AuthenticationMethod.BASIC));
+    }
 
-        try {
-            AccountConfig conf = getStandardConfig(url, username, password, AuthenticationMethod.BASIC,
-                    preferredRegion);
-            swiftUser = createAccount(conf);
-        } catch (CommandException ce) {
-            throw new ElasticsearchException("Unable to authenticate to Swift Basic " + url + "/" + username +
-                    "/" + password, ce);
-        }
-        return swiftUser;
+    public Account swiftKeyStone(String url, String username, String password, String tenantName,
+                                 String preferredRegion) {
+        return account(new AccountKey(url, username, password, tenantName, preferredRegion, AuthenticationMethod.KEYSTONE));
     }
 
-    private Account createAccount(final AccountConfig conf) {
-        return SwiftPerms.exec(() -> new AccountFactory(conf).createAccount());
+    public Account swiftTempAuth(String url, String username, String password, String preferredRegion) {
+        return account(new AccountKey(url, username, password, null, preferredRegion, AuthenticationMethod.TEMPAUTH));
     }
 
-    public synchronized Account swiftKeyStone(String url, String username, String password, String tenantName,
-                                              String preferredRegion) {
-        if (swiftUser != null) {
-            return swiftUser;
+    /**
+     * Get the cached account for a set of credentials, authenticating it on first use. Callers
+     * for other credentials are never held up by an authentication in progress. Each call takes
+     * a reference to the account, given back with {@link #releaseAccount(Account)}.
+     */
+    private Account account(AccountKey key) {
+        while (true) {
+            final CachedAccount cached = accounts.computeIfAbsent(key, CachedAccount::new);
+            if (!cached.retain()) {
+                // released by its last user meanwhile
+                continue;
+            }
+            try {
+                final Account account = cached.get();
+                cached.renewIfOverdue();
+                return account;
+            } catch (RuntimeException e) {
+                cached.release();
+                throw e;
+            }
         }
+    }
 
-        try {
-            AccountConfig conf = getStandardConfig(url, username, password, AuthenticationMethod.KEYSTONE,
-                    preferredRegion);
-            conf.setTenantName(tenantName);
-            swiftUser = createAccount(conf);
-        } catch (CommandException ce) {
-            throw new ElasticsearchException(
-                    "Unable to authenticate to Swift Keystone " + url + "/" + username + "/" + password + "/"
-                            + tenantName, ce);
+    /**
+     * Give back a reference to an account obtained from this service. Once no repository uses the
+     * account anymore, it is dropped from the cache and its token is no longer renewed.
+     */
+    public void releaseAccount(Account account) {
+        for (CachedAccount cached : accounts.values()) {
+            if (cached.account == account) {
+                cached.release();
+                return;
+            }
         }
-        return swiftUser;
     }
 
-    public synchronized Account swiftTempAuth(String url, String username, String password, String preferredRegion) {
-        if (swiftUser != null) {
-            return swiftUser;
+    /**
+     * Renew the token of the account a request is sent with if it is due, in case its scheduled renewal
+     * did not run in time, e.g. while the scheduler was busy or the last renewal failed
+     */
+    private void renewIfOverdue(String token) {
+        for (CachedAccount cached : accounts.values()) {
+            if (token.equals(cached.currentToken())) {
+                cached.renewIfOverdue();
+                return;
+            }
         }
+    }
 
-        try {
-            AccountConfig conf = getStandardConfig(url, username, password, AuthenticationMethod.TEMPAUTH,
-                    preferredRegion);
-            swiftUser = createAccount(conf);
-        } catch (CommandException ce) {
-            throw new ElasticsearchException("Unable to authenticate to Swift Temp", ce);
-        }
-        return swiftUser;
+    /**
+     * When to renew a token obtained at authenticatedAt: ahead of its expiry by a fifth of
+     * its lifetime, at most five minutes
+     */
+    private long renewalTime(String token, long authenticatedAt) {
+        Long announced = token == null ? null : tokenExpiries.remove(token);
+        // forget tokens JOSS obtained on its own
+        tokenExpiries.values().removeIf(expiry -> expiry < authenticatedAt);
+        long expiresAt = announced != null ? announced : authenticatedAt + tokenTtlMillis;
+        long lifetime = Math.max(0, expiresAt - authenticatedAt);
+        return expiresAt - Math.min(lifetime / 5, TimeUnit.MINUTES.toMillis(5));
+    }
+
+    private Account createAccount(final AccountConfig conf) {
+        return SwiftPerms.exec(() -> new AccountFactory(conf).setHttpClient(httpClient).createAccount());
     }
 
     private AccountConfig getStandardConfig(String url, String username, String password, AuthenticationMethod method,
@@ -122,9 +446,205 @@ public class SwiftService extends AbstractLifecycleComponent {
         conf.setAllowContainerCaching(allowCaching);
         conf.setAllowCaching(allowCaching);
         conf.setPreferredRegion(preferredRegion);
+        // let JOSS renew expired tokens on 401 for its own requests
+        conf.setAllowReauthenticate(true);
         return conf;
     }
 
+    /**
+     * Credentials identifying a cached account
+     */
+    private static final class AccountKey {
+        private final String url;
+        private final String username;
+        private final String password;
+        private final String tenantName;
+        private final String preferredRegion;
+        private final AuthenticationMethod method;
+
+        AccountKey(String url, String username, String password, String tenantName, String preferredRegion,
+                   AuthenticationMethod method) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+            this.tenantName = tenantName;
+            this.preferredRegion = preferredRegion;
+            this.method = method;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            AccountKey that = (AccountKey) o;
+            return Objects.equals(url, that.url) &&
+                Objects.equals(username, that.username) &&
+                Objects.equals(password, that.password) &&
+                Objects.equals(tenantName, that.tenantName) &&
+                Objects.equals(preferredRegion, that.preferredRegion) &&
+                method == that.method;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, username, password, tenantName, preferredRegion, method);
+        }
+
+        // never print the password
+        @Override
+        public String toString() {
+            return method + " " + url + "/" + username + (tenantName == null ? "" : "/" + tenantName);
+        }
+    }
+
+    /**
+     * An account, authenticated once and re-authenticated in the background as its token ages, for as
+     * long as a repository uses it
+     */
+    private final class CachedAccount {
+        private final AccountKey key;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile Account account;
+        private volatile long renewAt = Long.MAX_VALUE;
+        // users of the account, guarded by this; once evicted, the account is no longer cached nor renewed
+        private int references;
+        private volatile boolean evicted;
+        @Nullable
+        private ScheduledFuture<?> renewal;
+
+        CachedAccount(AccountKey key) {
+            this.key = key;
+        }
+
+        /**
+         * @return whether a reference was taken, false if the account was evicted
+         */
+        synchronized boolean retain() {
+            if (evicted) {
+                return false;
+            }
+            references++;
+            return true;
+        }
+
+        synchronized void release() {
+            assert references > 0 : "account " + key + " released more often than retained";
+            if (--references > 0) {
+                return;
+            }
+            evicted = true;
+            accounts.remove(key, this);
+            if (renewal != null) {
+                renewal.cancel(false);
+                renewal = null;
+            }
+        }
+
+        @Nullable
+        String currentToken() {
+            final Account account = this.account;
+            return account == null ? null : token(account);
+        }
+
+        void renewIfOverdue() {
+            if (System.currentTimeMillis() >= renewAt) {
+                refreshAsync();
+            }
+        }
+
+        Account get() {
+            Account account = this.account;
+            if (account == null) {
+                synchronized (this) {
+                    account = this.account;
+                    if (account == null) {
+                        final long authenticatedAt = System.currentTimeMillis();
+                        account = authenticate();
+                        this.account = account;
+                        scheduleRenewal(renewalTime(token(account), authenticatedAt));
+                    }
+                }
+            }
+            return account;
+        }
+
+        private Account authenticate() {
+            AccountConfig conf = getStandardConfig(key.url, key.username, key.password, key.method, key.preferredRegion);
+            if (key.method == AuthenticationMethod.KEYSTONE) {
+                conf.setTenantName(key.tenantName);
+            }
+            try {
+                return createAccount(conf);
+            } catch (CommandException ce) {
+                throw new ElasticsearchException("Unable to authenticate to Swift " + key, ce);
+            }
+        }
+
+        /**
+         * Renew the token of the account in place. Requests keep using the current token meanwhile.
+         */
+        void refreshAsync() {
+            if (evicted || !refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                authScheduler.execute(this::refresh);
+            } catch (RuntimeException e) {
+                refreshing.set(false);
+                logger.debug("Unable to schedule Swift token renewal", e);
+            }
+        }
+
+        private synchronized void scheduleRenewal(long when) {
+            if (evicted) {
+                return;
+            }
+            renewAt = when;
+            if (renewal != null) {
+                renewal.cancel(false);
+            }
+            try {
+                renewal = authScheduler.schedule(() -> {
+                    if (refreshing.compareAndSet(false, true)) {
+                        refresh();
+                    }
+                }, Math.max(0, when - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // shutting down
+                renewal = null;
+                logger.debug("Unable to schedule Swift token renewal", e);
+            }
+        }
+
+        private void refresh() {
+            if (evicted) {
+                refreshing.set(false);
+                return;
+            }
+            try {
+                final long authenticatedAt = System.currentTimeMillis();
+                // the rest client renews the same account on 401
+                synchronized (account) {
+                    SwiftPerms.exec(() -> account.authenticate());
+                }
+                scheduleRenewal(renewalTime(token(account), authenticatedAt));
+            } catch (RuntimeException e) {
+                logger.warn(new ParameterizedMessage("Unable to renew Swift token for [{}]", key), e);
+                scheduleRenewal(System.currentTimeMillis() + RENEWAL_RETRY_MILLIS);
+            } finally {
+                refreshing.set(false);
+            }
+        }
+    }
+
+    private static String token(Account account) {
+        return account.getAccess() == null ? null : account.getAccess().getToken();
+    }
+
     /**
      * Start the service. No-op here.
      */
@@ -140,9 +660,18 @@ public class SwiftService extends AbstractLifecycleComponent {
     }
 
     /**
-     * Close the service. No-op here.
+     * Close the service, releasing pooled connections.
      */
     @Override
     protected void doClose() throws ElasticsearchException {
+        ThreadPool.terminate(authScheduler, 10, TimeUnit.SECONDS);
+        if (asyncExecutor != null) {
+            ThreadPool.terminate(asyncExecutor, 10, TimeUnit.SECONDS);
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            throw new ElasticsearchException("Unable to close Swift HTTP client", e);
+        }
     }
 }
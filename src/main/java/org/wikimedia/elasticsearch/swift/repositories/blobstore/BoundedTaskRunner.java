@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Runs tasks on a shared executor, keeping at most a fixed number of them in flight.
+ * Meant to be driven by a single thread: submit blocks until a slot frees up, so
+ * producers (listings, stream readers) naturally overlap with the running tasks.
+ * Non-blocking tasks count against the same bound without taking an executor thread.
+ */
+final class BoundedTaskRunner<T> {
+    // Futures of the completed tasks, of both kinds
+    private final BlockingQueue<Future<T>> completed = new LinkedBlockingQueue<>();
+    private final CompletionService<T> completionService;
+    private final int maxInFlight;
+    private final List<T> results = new ArrayList<>();
+    private int inFlight;
+    private Exception failure;
+
+    BoundedTaskRunner(Executor executor, int maxInFlight) {
+        this.completionService = new ExecutorCompletionService<>(executor, completed);
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Submit a task, waiting for a free slot first
+     * @throws IOException if a previously submitted task failed
+     */
+    void submit(Callable<T> task) throws IOException {
+        awaitSlot();
+        completionService.submit(task);
+        inFlight++;
+    }
+
+    /**
+     * Start a non-blocking task, waiting for a free slot first
+     * @param task starts the task and returns its pending result
+     * @throws IOException if a previously submitted task failed
+     */
+    void submitAsync(Supplier<CompletableFuture<T>> task) throws IOException {
+        awaitSlot();
+        CompletableFuture<T> future;
+        try {
+            future = task.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        inFlight++;
+        final CompletableFuture<T> started = future;
+        started.whenComplete((result, e) -> completed.add(started));
+    }
+
+    private void awaitSlot() throws IOException {
+        while (inFlight >= maxInFlight) {
+            collectOne();
+        }
+        if (failure != null) {
+            awaitAll();
+        }
+    }
+
+    /**
+     * Wait for all submitted tasks to complete
+     * @return the results of all tasks, in completion order
+     * @throws IOException if any task failed
+     */
+    List<T> awaitAll() throws IOException {
+        while (inFlight > 0) {
+            collectOne();
+        }
+        if (failure != null) {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw new IOException(failure.getMessage(), failure);
+        }
+        return results;
+    }
+
+    private void collectOne() throws IOException {
+        Future<T> future;
+        try {
+            future = completed.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException("Interrupted while waiting for swift requests");
+            ie.initCause(e);
+            throw ie;
+        }
+        inFlight--;
+        try {
+            results.add(future.get());
+        } catch (ExecutionException e) {
+            Throwable unwrapped = SwiftAsyncClient.unwrap(e);
+            Exception cause = unwrapped instanceof Exception ? (Exception) unwrapped : e;
+            if (failure == null) {
+                failure = cause;
+            } else {
+                failure.addSuppressed(cause);
+            }
+        } catch (InterruptedException e) {
+            // cannot happen, the future is done
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.Streams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads a large blob as several concurrent ranged GETs. The first chunk is served by the
+ * GET that discovered the blob size, while the following chunks are prefetched into a
+ * fixed ring of buffers and handed back in order. The buffers are reserved from the
+ * repository-wide download memory budget and given back on close, except those of chunks
+ * still downloading, given back as each of them ends.
+ */
+class ParallelDownloadInputStream extends InputStream {
+    private final SwiftBlobStore blobStore;
+    private final String key;
+    private final String etag;
+    private final long length;
+    private final int chunkSize;
+
+    // Number of chunk buffers reserved for this stream
+    private final int reservedBuffers;
+
+    // Serves the first chunk, until it is consumed
+    private InputStream head;
+    private long headRemaining;
+
+    // Chunks being downloaded, in blob order
+    private final Deque<ChunkFetch> pending = new ArrayDeque<>();
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private long nextChunkOffset;
+
+    private Chunk current;
+    private int currentPosition;
+    // read by the chunk tasks, to give their buffer back once they end
+    private volatile boolean closed;
+
+    private ParallelDownloadInputStream(SwiftBlobStore blobStore, String key, SwiftRetryingInputStream head,
+                                        int chunkSize, int reservedBuffers) {
+        this.blobStore = blobStore;
+        this.key = key;
+        this.etag = head.etag();
+        this.length = head.length();
+        this.chunkSize = chunkSize;
+        this.reservedBuffers = reservedBuffers;
+        this.head = head;
+        this.headRemaining = Math.min(chunkSize, length);
+        this.nextChunkOffset = headRemaining;
+        scheduleChunks();
+    }
+
+    /**
+     * Switch a full blob download to parallel ranged downloads, if the download memory budget allows
+     * @param blobStore store holding the blob
+     * @param key object key
+     * @param head full GET of the blob, whose first chunk will be read sequentially
+     * @return the parallel stream, or null if no download buffers are available
+     */
+    @Nullable
+    static InputStream tryOpen(SwiftBlobStore blobStore, String key, SwiftRetryingInputStream head) {
+        final int chunkSize = blobStore.downloadChunkSizeInBytes();
+        final long chunks = (head.length() + chunkSize - 1) / chunkSize;
+        // one buffer is being read while the others are filled
+        final int wanted = (int) Math.min(blobStore.downloadConcurrency() + 1, chunks);
+        final int reserved = blobStore.reserveDownloadBuffers(wanted);
+        if (reserved < 2) {
+            blobStore.releaseDownloadBuffers(reserved);
+            return null;
+        }
+        return new ParallelDownloadInputStream(blobStore, key, head, chunkSize, reserved);
+    }
+
+    /**
+     * Keep up to reservedBuffers - 1 chunks in flight, the remaining buffer being the one read from
+     */
+    private void scheduleChunks() {
+        while (pending.size() < reservedBuffers - 1 && nextChunkOffset < length) {
+            final long offset = nextChunkOffset;
+            final int size = (int) Math.min(chunkSize, length - offset);
+            final ChunkFetch fetch = new ChunkFetch(offset, size);
+            blobStore.executor().execute(fetch);
+            pending.add(fetch);
+            nextChunkOffset += size;
+        }
+    }
+
+    private Chunk fetchChunk(long offset, int size) throws IOException {
+        if (closed) {
+            throw new InterruptedIOException("Download of [" + key + "] closed");
+        }
+        byte[] buffer = freeBuffers.poll();
+        if (buffer == null) {
+            buffer = new byte[chunkSize];
+        }
+        try (InputStream in = new SwiftRetryingInputStream(blobStore, key, offset, offset + size - 1, etag)) {
+            final int read = Streams.readFully(in, buffer, 0, size);
+            if (read != size) {
+                throw new EOFException("Blob object [" + key + "] ended at [" + (offset + read) + "], expected [" + length +
+                                       "] bytes");
+            }
+            return new Chunk(buffer, size);
+        } catch (IOException | RuntimeException e) {
+            freeBuffers.offer(buffer);
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (head != null) {
+                if (headRemaining > 0) {
+                    int read = head.read(b, off, (int) Math.min(len, headRemaining));
+                    if (read == -1) {
+                        throw new EOFException("Blob object [" + key + "] ended at [" + (chunkSize - headRemaining) +
+                                               "], expected [" + length + "] bytes");
+                    }
+                    headRemaining -= read;
+                    return read;
+                }
+                // the rest of this response is covered by the ranged downloads
+                head.close();
+                head = null;
+            }
+            if (current != null && currentPosition < current.length) {
+                int read = Math.min(len, current.length - currentPosition);
+                System.arraycopy(current.buffer, currentPosition, b, off, read);
+                currentPosition += read;
+                return read;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+        }
+    }
+
+    private boolean nextChunk() throws IOException {
+        if (current != null) {
+            freeBuffers.offer(current.buffer);
+            current = null;
+        }
+        Future<Chunk> next = pending.poll();
+        if (next == null) {
+            return false;
+        }
+        try {
+            current = next.get();
+            currentPosition = 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException("Interrupted while downloading [" + key + "]");
+            ie.initCause(e);
+            throw ie;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to download [" + key + "]", e.getCause());
+        }
+        scheduleChunks();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (head != null) {
+                head.close();
+            }
+        } finally {
+            // a chunk still downloading keeps its buffer until its task ends, cancelling does not wait for it
+            for (ChunkFetch fetch : pending) {
+                fetch.cancel(true);
+                if (!fetch.running()) {
+                    fetch.releaseBuffer();
+                }
+            }
+            blobStore.releaseDownloadBuffers(reservedBuffers - pending.size());
+            pending.clear();
+            current = null;
+            freeBuffers.clear();
+        }
+    }
+
+    /**
+     * Download of a chunk, holding one buffer of the reservation until it ends
+     */
+    private final class ChunkFetch extends FutureTask<Chunk> {
+        private final AtomicBoolean bufferReleased = new AtomicBoolean();
+        private volatile boolean started;
+        private volatile boolean ended;
+
+        ChunkFetch(long offset, int size) {
+            super(() -> fetchChunk(offset, size));
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            try {
+                super.run();
+            } finally {
+                ended = true;
+                if (closed) {
+                    releaseBuffer();
+                }
+            }
+        }
+
+        /**
+         * @return whether the chunk is downloading, its buffer then being given back by the task once it ends
+         */
+        boolean running() {
+            return started && !ended;
+        }
+
+        void releaseBuffer() {
+            if (bufferReleased.compareAndSet(false, true)) {
+                blobStore.releaseDownloadBuffers(1);
+            }
+        }
+    }
+
+    private static final class Chunk {
+        final byte[] buffer;
+        final int length;
+
+        Chunk(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A BufferedInputStream reading through a buffer borrowed from a {@link SwiftBufferPool}, which
+ * goes back to the pool when the stream is closed or released
+ */
+final class PooledBufferedInputStream extends BufferedInputStream {
+    private final SwiftBufferPool pool;
+    private byte[] pooled;
+
+    PooledBufferedInputStream(InputStream in, SwiftBufferPool pool, byte[] buffer) {
+        super(in, 1);
+        this.buf = buffer;
+        this.pool = pool;
+        this.pooled = buffer;
+    }
+
+    /**
+     * Give the buffer back without closing the underlying stream, which the caller still owns.
+     * Reading from this stream fails afterwards.
+     */
+    synchronized void release() {
+        if (pooled != null) {
+            buf = null;
+            pool.release(pooled);
+            pooled = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            release();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.javaswift.joss.model.Container;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads a blob as a Static Large Object: the stream is cut into segments that are
+ * PUT in parallel to the segments container, then a manifest stitching them together
+ * is committed under the blob's key. Readers only ever see the blob once the manifest
+ * is in place.
+ *
+ * Segments are named key/upload-id/index so that the segments of a blob can be found
+ * by prefix when the blob is deleted or overwritten.
+ */
+final class SegmentedUpload {
+    private static final Logger logger = LogManager.getLogger(SegmentedUpload.class);
+
+    // Swift's default max_manifest_segments
+    static final int MAX_SEGMENTS = 1000;
+
+    private final SwiftBlobStore blobStore;
+    private final Container segments;
+    private final String key;
+    private final String uploadPrefix;
+
+    // Fail with a 412 if the blob already exists
+    private final boolean ifNoneMatch;
+
+    // Encoding of the stream before it is cut into segments
+    private final SwiftBlobEncoding encoding;
+
+    // Segment buffers not currently being filled or uploaded. At most uploadConcurrency + 1 are ever allocated.
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor
+     * @param blobStore store to upload to, with segmented uploads enabled
+     * @param key key of the large object
+     * @param ifNoneMatch only commit the manifest if the large object does not exist yet
+     * @param encoding encoding of the blob
+     */
+    SegmentedUpload(SwiftBlobStore blobStore, String key, boolean ifNoneMatch, SwiftBlobEncoding encoding) {
+        this.blobStore = blobStore;
+        this.segments = blobStore.segments();
+        this.key = key;
+        this.uploadPrefix = key + "/" + UUIDs.randomBase64UUID() + "/";
+        this.ifNoneMatch = ifNoneMatch;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Upload the stream and commit the manifest. Segments are cut from the encoded stream, whose
+     * length is only known once it has been read to the end.
+     * @param blobContents blob contents
+     * @param blobSize exact number of bytes in the stream
+     */
+    void upload(InputStream blobContents, long blobSize) throws IOException {
+        // encryption adds a tag per frame to the bytes cut into segments
+        final int segmentSize = segmentSize(Math.max(blobSize, encoding.storedLength()));
+        final BoundedTaskRunner<Segment> runner = new BoundedTaskRunner<>(blobStore.executor(), blobStore.uploadConcurrency());
+        final List<String> submitted = new ArrayList<>();
+        try (InputStream in = encoding.encode(Streams.noCloseStream(blobContents), blobStore.encryption())) {
+            long total = 0;
+            int length;
+            do {
+                byte[] buffer = buffers.poll();
+                if (buffer == null) {
+                    buffer = new byte[segmentSize];
+                }
+                length = Streams.readFully(in, buffer);
+                if (length == 0 && total > 0) {
+                    buffers.offer(buffer);
+                    break;
+                }
+                final String name = uploadPrefix + String.format(Locale.ROOT, "%08d", submitted.size());
+                final byte[] contents = buffer;
+                final int contentLength = length;
+                submitted.add(name);
+                runner.submit(() -> putSegment(name, contents, contentLength));
+                total += length;
+            } while (length == segmentSize);
+
+            // the encoders check the length of their source themselves
+            if (encoding.plain() && total != blobSize) {
+                throw new IOException("Blob [" + key + "] was expected to be [" + blobSize + "] bytes, got [" + total + "]");
+            }
+
+            List<Segment> uploaded = new ArrayList<>(runner.awaitAll());
+            uploaded.sort(Comparator.comparing(segment -> segment.name));
+            final BytesReference manifest = manifest(uploaded);
+            // the ETag of a large object is the MD5 of its segment ETags
+            final MessageDigest md5 = MessageDigests.md5();
+            for (Segment segment : uploaded) {
+                md5.update(segment.etag.getBytes(StandardCharsets.US_ASCII));
+            }
+            final String expected = MessageDigests.toHexString(md5.digest());
+            final AtomicInteger attempts = new AtomicInteger();
+            String etag;
+            try {
+                etag = blobStore.retrying(SwiftOperation.WRITE, key, () -> {
+                    attempts.incrementAndGet();
+                    return blobStore.restClient().putStaticLargeObjectManifest(blobStore.swift().getName(), key, manifest,
+                                                                               ifNoneMatch, encoding.contentType());
+                });
+            } catch (SwiftRestClient.ResponseException e) {
+                // an earlier attempt may have committed the manifest and lost its response
+                if (!ifNoneMatch || e.status() != HttpStatus.SC_PRECONDITION_FAILED || attempts.get() < 2) {
+                    throw e;
+                }
+                etag = blobStore.storedEtag(key, expected);
+                if (etag == null) {
+                    throw e;
+                }
+            }
+            // each segment was verified by Swift against the MD5 sent along
+            if (blobStore.verifyChecksums() && etag != null && !expected.equals(SwiftRestClient.unquote(etag))) {
+                throw new SwiftCorruptionException(key, expected, etag);
+            }
+        } catch (IOException | RuntimeException e) {
+            abort(runner, submitted, e);
+            throw e;
+        }
+
+        try {
+            blobStore.deleteStaleSegments(key, uploadPrefix);
+        } catch (IOException | RuntimeException e) {
+            logger.warn(new ParameterizedMessage("Unable to delete previous segments of [{}]", key), e);
+        }
+    }
+
+    /**
+     * Segment size for a blob, grown if needed to stay within the manifest segment limit
+     */
+    private int segmentSize(long blobSize) {
+        long segmentSize = Math.max(blobStore.segmentSizeInBytes(), (blobSize + MAX_SEGMENTS - 1) / MAX_SEGMENTS);
+        if (segmentSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Blob [" + key + "] of [" + blobSize + "] bytes is too large for a segmented upload");
+        }
+        return (int) segmentSize;
+    }
+
+    private Segment putSegment(String name, byte[] buffer, int length) throws IOException {
+        try {
+            MessageDigest md5 = MessageDigests.md5();
+            md5.update(buffer, 0, length);
+            final String etag = MessageDigests.toHexString(md5.digest());
+            blobStore.retrying(SwiftOperation.WRITE, name, length,
+                               () -> blobStore.restClient().putObject(segments.getName(), name,
+                                                                      new ByteArrayEntity(buffer, 0, length), etag),
+                               null);
+            blobStore.liveStats().uploaded(length);
+            return new Segment(name, etag, length);
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+    private BytesReference manifest(List<Segment> uploaded) throws IOException {
+        try (XContentBuilder builder = XContentFactory.jsonBuilder()) {
+            builder.startArray();
+            for (Segment segment : uploaded) {
+                builder.startObject()
+                    .field("path", "/" + segments.getName() + "/" + segment.name)
+                    .field("etag", segment.etag)
+                    .field("size_bytes", segment.length)
+                    .endObject();
+            }
+            builder.endArray();
+            return BytesReference.bytes(builder);
+        }
+    }
+
+    /**
+     * Best effort removal of the segments of a failed upload
+     */
+    private void abort(BoundedTaskRunner<Segment> runner, List<String> submitted, Exception cause) {
+        try {
+            runner.awaitAll();
+        } catch (IOException e) {
+            // already failing
+        }
+        Map<String, Long> orphans = new LinkedHashMap<>();
+        for (String name : submitted) {
+            orphans.put(name, 0L);
+        }
+        try {
+            blobStore.deleteObjects(segments, orphans);
+        } catch (IOException | RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    private static final class Segment {
+        final String name;
+        final String etag;
+        final long length;
+
+        Segment(String name, String etag, long length) {
+            this.name = name;
+            this.etag = etag;
+            this.length = length;
+        }
+    }
+}
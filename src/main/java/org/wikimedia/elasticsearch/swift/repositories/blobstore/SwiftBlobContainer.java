@@ -16,7 +16,14 @@
 
 package org.wikimedia.elasticsearch.swift.repositories.blobstore;
 
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.common.CheckedRunnable;
 import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.UUIDs;
 import org.elasticsearch.common.blobstore.BlobMetaData;
 import org.elasticsearch.common.blobstore.BlobPath;
 import org.elasticsearch.common.blobstore.BlobContainer;
@@ -24,28 +31,49 @@ import org.elasticsearch.common.blobstore.DeleteResult;
 import org.elasticsearch.common.blobstore.support.AbstractBlobContainer;
 import org.elasticsearch.common.blobstore.support.PlainBlobMetaData;
 import org.elasticsearch.common.collect.MapBuilder;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.unit.TimeValue;
 import org.javaswift.joss.exception.CommandException;
 import org.javaswift.joss.exception.NotFoundException;
-import org.javaswift.joss.model.Directory;
-import org.javaswift.joss.model.DirectoryOrObject;
-import org.javaswift.joss.model.StoredObject;
-import org.wikimedia.elasticsearch.swift.SwiftPerms;
+import org.javaswift.joss.headers.object.range.MidPartRange;
+import org.javaswift.joss.instructions.DownloadInstructions;
+import org.javaswift.joss.instructions.UploadInstructions;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
 import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
-import java.security.PrivilegedAction;
-import java.util.Collection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.PrivilegedExceptionAction;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * Swift's implementation of the AbstractBlobContainer
  */
 public class SwiftBlobContainer extends AbstractBlobContainer {
+    private static final Logger logger = LogManager.getLogger(SwiftBlobContainer.class);
+
+    // Prefix of the temporary blobs written by writeBlobAtomic, as FsBlobContainer names them
+    static final String TEMP_BLOB_PREFIX = "pending-";
+
+    // Temporary blobs older than this were left behind by a writer that failed, and are deleted along with other blobs
+    static final long STALE_TEMP_BLOB_AGE_MILLIS = TimeValue.timeValueHours(1).millis();
+
     // Our local swift blob store instance
     protected final SwiftBlobStore blobStore;
 
@@ -75,8 +103,14 @@ public class SwiftBlobContainer extends AbstractBlobContainer {
     /**
      * Does a blob exist? Self-explanatory.
      */
-    public boolean blobExists(final String blobName) {
-        return SwiftPerms.exec(() -> blobStore.swift().getObject(buildKey(blobName)).exists());
+    public boolean blobExists(final String blobName) throws IOException {
+        final String key = buildKey(blobName);
+        final SwiftAsyncClient asyncClient = blobStore.asyncClient();
+        if (asyncClient != null) {
+            return SwiftBlobStore.await(blobStore.async(SwiftOperation.READ, key,
+                                                        () -> asyncClient.objectExists(blobStore.swift().getName(), key)));
+        }
+        return blobStore.retrying(SwiftOperation.READ, key, () -> blobStore.swift().getObject(key).exists());
     }
 
     /**
@@ -84,15 +118,32 @@ public class SwiftBlobContainer extends AbstractBlobContainer {
      * @param blobName A blob to delete
      */
     public void deleteBlob(final String blobName) throws IOException {
-        CommandException ex = SwiftPerms.exec(() -> {
-            StoredObject object = blobStore.swift().getObject(buildKey(blobName));
+        final String key = buildKey(blobName);
+        final SwiftAsyncClient asyncClient = blobStore.asyncClient();
+        if (asyncClient != null) {
+            final boolean existed;
             try {
-                object.delete();
-                return null;
-            } catch (CommandException e) {
-                return e;
+                existed = SwiftBlobStore.await(blobStore.async(SwiftOperation.DELETE, key,
+                                                               () -> asyncClient.deleteObject(blobStore.swift().getName(), key)));
+            } finally {
+                blobStore.listingCache().invalidate(key);
             }
-        });
+            if (!existed) {
+                throw new NoSuchFileException(blobName, null, "Requested blob was not found");
+            }
+            return;
+        }
+        CommandException ex = null;
+        try {
+            blobStore.retrying(SwiftOperation.DELETE, key, () -> {
+                blobStore.swift().getObject(key).delete();
+                return null;
+            });
+        } catch (CommandException e) {
+            ex = e;
+        } finally {
+            blobStore.listingCache().invalidate(key);
+        }
 
         if (ex != null) {
             throw new NoSuchFileException(blobName, null, "Requested blob was not found " + ex);
@@ -113,18 +164,69 @@ public class SwiftBlobContainer extends AbstractBlobContainer {
 
     @Override
     public void deleteBlobsIgnoringIfNotExists(List<String> blobNames) throws IOException {
-      if (blobNames.isEmpty()) {
-        return;
-      }
+        if (blobNames.isEmpty()) {
+            return;
+        }
 
-      for(String blobName : blobNames) {
+        Map<String, Long> objects = new LinkedHashMap<>();
+        for (String blobName : blobNames) {
+            objects.put(buildKey(blobName), 0L);
+        }
         try {
-          deleteBlob(blobName);
-        } catch (NoSuchFileException e) {
+            blobStore.deleteObjects(objects);
         } catch (Exception e) {
-          throw new IOException("Exception during bulk delete", e);
+            throw new IOException("Exception during bulk delete", e);
+        }
+    }
+
+    /**
+     * Best effort removal of the temporary blobs that failed atomic writes left in this container, once they
+     * are old enough for their writers to be gone. Temporary blob names start with their creation time. Only
+     * atomic writes create them, so only they pay for the listing.
+     */
+    private void deleteStaleTempBlobs() {
+        final long staleBefore = System.currentTimeMillis() - STALE_TEMP_BLOB_AGE_MILLIS;
+        final Map<String, Long> stale = new LinkedHashMap<>();
+        try {
+            SwiftListing.list(blobStore, blobStore.swift(), keyPath + TEMP_BLOB_PREFIX, '/', page -> {
+                for (int i = 0; i < page.size(); i++) {
+                    final long created = page.isDirectory(i) ? -1 : tempBlobCreationMillis(page.name(i).substring(keyPath.length()));
+                    if (created >= 0 && created < staleBefore) {
+                        stale.put(page.name(i), page.bytes(i));
+                    }
+                }
+            });
+            if (!stale.isEmpty()) {
+                blobStore.deleteObjects(stale);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn(new ParameterizedMessage("Unable to delete stale temporary blobs under [{}]", keyPath), e);
+        }
+    }
+
+    /**
+     * @return name of a temporary blob written now by writeBlobAtomic
+     */
+    static String tempBlobName(String blobName) {
+        return TEMP_BLOB_PREFIX + System.currentTimeMillis() + "-" + blobName + "-" + UUIDs.randomBase64UUID();
+    }
+
+    /**
+     * @return when a temporary blob was written, or -1 if the name is not one of a temporary blob
+     */
+    static long tempBlobCreationMillis(String name) {
+        if (!name.startsWith(TEMP_BLOB_PREFIX)) {
+            return -1;
+        }
+        final int end = name.indexOf('-', TEMP_BLOB_PREFIX.length());
+        if (end <= TEMP_BLOB_PREFIX.length()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(TEMP_BLOB_PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
         }
-      }
     }
 
     /**
@@ -133,58 +235,86 @@ public class SwiftBlobContainer extends AbstractBlobContainer {
      * @return blobs metadata
      */
     @Override
-    public Map<String, BlobMetaData> listBlobsByPrefix(@Nullable final String blobNamePrefix) {
-        return SwiftPerms.exec(() -> {
-            MapBuilder<String, BlobMetaData> blobsBuilder = MapBuilder.newMapBuilder();
-            Collection<DirectoryOrObject> files;
-            if (blobNamePrefix != null) {
-                files = blobStore.swift().listDirectory(new Directory(buildKey(blobNamePrefix), '/'));
-            } else {
-                files = blobStore.swift().listDirectory(new Directory(keyPath, '/'));
-            }
-
-            if (files != null && !files.isEmpty()) {
-                for (DirectoryOrObject object : files) {
-                    if (object.isObject()) {
-                        String name = object.getName().substring(keyPath.length());
-                        blobsBuilder.put(name, new PlainBlobMetaData(name, object.getAsObject().getContentLength()));
-                    }
+    public Map<String, BlobMetaData> listBlobsByPrefix(@Nullable final String blobNamePrefix) throws IOException {
+        final String prefix = blobNamePrefix == null ? keyPath : buildKey(blobNamePrefix);
+        final SwiftListingCache cache = blobStore.listingCache();
+        final Map<String, BlobMetaData> cached = cache.get(keyPath, prefix);
+        if (cached != null) {
+            return cached;
+        }
+        final long version = cache.version();
+        final MapBuilder<String, BlobMetaData> blobsBuilder = MapBuilder.newMapBuilder();
+        SwiftListing.list(blobStore, blobStore.swift(), prefix, '/', page -> {
+            for (int i = 0; i < page.size(); i++) {
+                if (!page.isDirectory(i)) {
+                    String name = page.name(i).substring(keyPath.length());
+                    blobsBuilder.put(name, new PlainBlobMetaData(name, page.bytes(i)));
                 }
             }
-            return blobsBuilder.immutableMap();
         });
+        final Map<String, BlobMetaData> blobs = blobsBuilder.immutableMap();
+        cache.put(keyPath, prefix, blobs, version);
+        return blobs;
     }
 
     @Override
     public Map<String, BlobContainer> children() throws IOException {
-        return SwiftPerms.exec(() -> {
-            MapBuilder<String, BlobContainer> blobContainerBuilder = MapBuilder.newMapBuilder();
-            String path = path().buildAsString();
-            Collection<DirectoryOrObject> files = blobStore.swift().listDirectory(new Directory(path, '/'));
-
-            if (files != null && !files.isEmpty()) {
-                for (DirectoryOrObject directory : files) {
-                    String name = directory.getName();
-                    String indexKey = name.substring(keyPath.length(), name.length() - 1);
-
-                    if (! blobContainerBuilder.containsKey(indexKey)) {
-                        BlobPath p = new BlobPath();
-                        p = p.add(directory.getName());
-                        blobContainerBuilder.put(indexKey, new SwiftBlobContainer(p, blobStore));
-                    }
+        final String path = path().buildAsString();
+        final MapBuilder<String, BlobContainer> blobContainerBuilder = MapBuilder.newMapBuilder();
+        SwiftListing.list(blobStore, blobStore.swift(), path, '/', page -> {
+            for (int i = 0; i < page.size(); i++) {
+                if (!page.isDirectory(i)) {
+                    continue;
+                }
+                String name = page.name(i);
+                String indexKey = name.substring(keyPath.length(), name.length() - 1);
 
+                if (! blobContainerBuilder.containsKey(indexKey)) {
+                    blobContainerBuilder.put(indexKey, new SwiftBlobContainer(path().add(indexKey), blobStore));
                 }
             }
-
-            return blobContainerBuilder.immutableMap();
         });
+
+        return blobContainerBuilder.immutableMap();
+    }
+
+    /**
+     * List the blobs of every child container in one pass. Children are listed concurrently,
+     * up to list_concurrency at a time, which matters for paths with thousands of children
+     * such as the indices of a repository.
+     * @return blobs metadata of each child, by child name
+     */
+    public Map<String, Map<String, BlobMetaData>> listChildrenBlobs() throws IOException {
+        final Map<String, BlobContainer> children = children();
+        final BoundedTaskRunner<Tuple<String, Map<String, BlobMetaData>>> runner =
+            new BoundedTaskRunner<>(blobStore.executor(), blobStore.listConcurrency());
+        try {
+            for (Map.Entry<String, BlobContainer> child : children.entrySet()) {
+                runner.submit(() -> new Tuple<>(child.getKey(), child.getValue().listBlobs()));
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                runner.awaitAll();
+            } catch (IOException inFlight) {
+                if (inFlight != e) {
+                    e.addSuppressed(inFlight);
+                }
+            }
+            throw e;
+        }
+
+        final MapBuilder<String, Map<String, BlobMetaData>> childrenBlobs = MapBuilder.newMapBuilder();
+        for (Tuple<String, Map<String, BlobMetaData>> child : runner.awaitAll()) {
+            childrenBlobs.put(child.v1(), child.v2());
+        }
+        return childrenBlobs.immutableMap();
     }
 
     /**
      * Get all the blobs
      */
     @Override
-    public Map<String, BlobMetaData> listBlobs() {
+    public Map<String, BlobMetaData> listBlobs() throws IOException {
         return listBlobsByPrefix(null);
     }
 
@@ -198,17 +328,256 @@ public class SwiftBlobContainer extends AbstractBlobContainer {
     }
 
     /**
-     * Fetch a given blob into a BufferedInputStream
+     * Fetch a given blob. Through the rest client the stream reads straight from the connection into the
+     * caller's buffer; JOSS downloads go through a pooled transfer buffer, given back when the stream is closed.
      * @param blobName The blob name to read
      * @return a stream
      */
     @Override
     public InputStream readBlob(final String blobName) throws IOException {
+        if (blobStore.restClient() != null) {
+            final String key = buildKey(blobName);
+            final SwiftRetryingInputStream stream = new SwiftRetryingInputStream(blobStore, key, 0, -1, null);
+            if (blobStore.parallelDownloadThreshold() >= 0 && stream.length() > blobStore.parallelDownloadThreshold()) {
+                final InputStream parallel = ParallelDownloadInputStream.tryOpen(blobStore, key, stream);
+                if (parallel != null) {
+                    return decoded(key, stream, verifying(key, stream, parallel));
+                }
+            }
+            return decoded(key, stream, verifying(key, stream, stream));
+        }
+        return decoded(jossEncoding(blobName), openBlob(blobName, new DownloadInstructions()));
+    }
+
+    /**
+     * Decode a download according to the Content-Type of its object
+     * @param source the download
+     * @param in the stream to decode, reading from source; closed if it cannot be decoded
+     */
+    private InputStream decoded(String key, SwiftRetryingInputStream source, InputStream in) throws IOException {
+        final SwiftBlobEncoding encoding;
         try {
-            final InputStream is = SwiftPerms.exec(
-                    (PrivilegedAction<InputStream>) () -> new BufferedInputStream(
-                            blobStore.swift().getObject(buildKey(blobName)).downloadObjectAsInputStream(),
-                            blobStore.bufferSizeInBytes()));
+            encoding = blobStore.encoding(key, source.contentType());
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return decoded(encoding, in);
+    }
+
+    /**
+     * Decode a download
+     * @param encoding encoding of the downloaded object
+     * @param in the stream to decode; closed if it cannot be decoded
+     */
+    private InputStream decoded(SwiftBlobEncoding encoding, InputStream in) throws IOException {
+        try {
+            return encoding.decode(in, blobStore.encryption());
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Encoding of a blob read through JOSS, whose downloads do not expose their headers. The HEAD
+     * it takes is only sent while the repository compresses or encrypts.
+     */
+    private SwiftBlobEncoding jossEncoding(final String blobName) throws IOException {
+        if (blobStore.compression() == SwiftCompression.NONE && blobStore.encryption() == null) {
+            return SwiftBlobEncoding.parse(null);
+        }
+        final String key = buildKey(blobName);
+        try {
+            return blobStore.encoding(key, blobStore.retrying(SwiftOperation.READ, key,
+                                                              () -> blobStore.swift().getObject(key).getContentType()));
+        } catch (NotFoundException e) {
+            NoSuchFileException e2 = new NoSuchFileException("Blob object [" + blobName + "] not found.");
+            e2.initCause(e);
+            throw e2;
+        }
+    }
+
+    /**
+     * Check a full download against the blob's ETag, when it is the MD5 of the contents
+     */
+    private InputStream verifying(String key, SwiftRetryingInputStream source, InputStream in) {
+        if (!blobStore.verifyChecksums() || source.etag() == null || source.largeObject() || source.length() < 0) {
+            return in;
+        }
+        return new VerifyingInputStream(in, key, source.etag(), source.length());
+    }
+
+    /**
+     * Fetch a byte range of a given blob, with a single ranged GET. Encrypted blobs take a second one for
+     * the frames holding the range, compressed blobs are downloaded from the start. While the repository
+     * compresses or encrypts, a HEAD tells the encoding of the object before any GET.
+     * <p>
+     * Elasticsearch 7.7's {@link BlobContainer} only reads whole blobs, so this is an API of the Swift
+     * container alone. Ranges are sent through the rest client; the JOSS fallback only addresses the
+     * first 2GB of a blob.
+     * @param blobName The blob name to read
+     * @param position offset of the first byte to read
+     * @param length number of bytes to read
+     * @return a stream, cut short if the blob ends before position + length
+     */
+    public InputStream readBlob(final String blobName, final long position, final long length) throws IOException {
+        if (position < 0L) {
+            throw new IllegalArgumentException("position must be non-negative");
+        }
+        if (length < 0L) {
+            throw new IllegalArgumentException("length must be non-negative");
+        }
+        if (length == 0L) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (blobStore.restClient() != null) {
+            final String key = buildKey(blobName);
+            if (blobStore.compression() != SwiftCompression.NONE || blobStore.encryption() != null) {
+                return encodedRange(blobName, key, position, length);
+            }
+            String etag = null;
+            try {
+                final SwiftRetryingInputStream range = new SwiftRetryingInputStream(blobStore, key, position,
+                                                                                    Math.addExact(position, length - 1), null);
+                final SwiftBlobEncoding encoding;
+                try {
+                    encoding = blobStore.encoding(key, range.contentType());
+                } catch (IOException e) {
+                    range.close();
+                    throw e;
+                }
+                if (encoding.plain()) {
+                    return range;
+                }
+                // the range is of the encoded bytes
+                etag = range.etag();
+                range.close();
+                if (!encoding.compressed()) {
+                    return decryptedRange(key, etag, encoding, position, length);
+                }
+            } catch (SwiftRestClient.ResponseException e) {
+                if (e.status() != HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                    throw e;
+                }
+                // past the end of the stored bytes, which is not the end of a compressed blob
+            }
+            return decodedRange(key, etag, position, length);
+        }
+        final SwiftBlobEncoding encoding = jossEncoding(blobName);
+        if (!encoding.plain()) {
+            return SwiftBlobEncoding.range(decoded(encoding, openBlob(blobName, new DownloadInstructions())), position, length);
+        }
+        final long end = Math.addExact(position, length - 1);
+        if (end > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Blob [" + blobName + "] can only be read up to byte [" + Integer.MAX_VALUE +
+                                               "] without the rest client, range ends at [" + end + "]");
+        }
+        try {
+            return openBlob(blobName, new DownloadInstructions().setRange(new MidPartRange((int) position, (int) end)));
+        } catch (CommandException e) {
+            if (e.getHttpStatusCode() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // position is past the end of the blob
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read a byte range of a blob that is likely encoded. The range is of the decoded bytes, so that a ranged
+     * GET of the same bytes of the object would be wasted on a compressed blob, and cut short on an encrypted one.
+     */
+    private InputStream encodedRange(final String blobName, final String key, final long position, final long length)
+            throws IOException {
+        final Map<String, String> headers = blobStore.retrying(SwiftOperation.READ, key,
+            () -> blobStore.restClient().objectHeaders(blobStore.swift().getName(), key));
+        if (headers == null) {
+            throw new NoSuchFileException("Blob object [" + blobName + "] not found.");
+        }
+        final String etag = headers.get(HttpHeaders.ETAG);
+        final SwiftBlobEncoding encoding = blobStore.encoding(key, headers.get(HttpHeaders.CONTENT_TYPE));
+        if (encoding.compressed()) {
+            return decodedRange(key, etag, position, length);
+        }
+        if (!encoding.plain()) {
+            return decryptedRange(key, etag, encoding, position, length);
+        }
+        try {
+            return new SwiftRetryingInputStream(blobStore, key, position, Math.addExact(position, length - 1), etag);
+        } catch (SwiftRestClient.ResponseException e) {
+            if (e.status() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // position is past the end of the blob
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read a byte range of a blob by downloading its object from the start, and decoding it if it is encoded
+     * @param etag ETag the object must have, or null for any
+     */
+    private InputStream decodedRange(final String key, @Nullable final String etag, final long position, final long length)
+            throws IOException {
+        final SwiftRetryingInputStream stream = new SwiftRetryingInputStream(blobStore, key, 0, -1, etag);
+        try {
+            final SwiftBlobEncoding encoding = blobStore.encoding(key, stream.contentType());
+            if (encoding.plain()) {
+                // a plain blob shorter than position
+                stream.close();
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            return SwiftBlobEncoding.range(encoding.decode(stream, blobStore.encryption()), position, length);
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read a byte range of an encrypted blob stored without compression, by downloading and decrypting the
+     * frames holding it. The download extends one byte into the next frame, whose presence tells whether
+     * the last frame downloaded is the last of the object.
+     * @param etag ETag the object must have
+     */
+    private InputStream decryptedRange(final String key, final String etag, final SwiftBlobEncoding encoding, final long position,
+                                       final long length) throws IOException {
+        long end = Math.addExact(position, length);
+        if (encoding.blobLength() >= 0) {
+            if (position >= encoding.blobLength()) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            end = Math.min(end, encoding.blobLength());
+        }
+        final long firstFrame = encoding.frame(position);
+        final long lastFrame = encoding.frame(end - 1);
+        final SwiftRetryingInputStream frames;
+        try {
+            frames = new SwiftRetryingInputStream(blobStore, key, encoding.frameOffset(firstFrame), encoding.frameOffset(lastFrame + 1),
+                                                  etag);
+        } catch (SwiftRestClient.ResponseException e) {
+            if (e.status() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // position is past the end of the blob
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            throw e;
+        }
+        try {
+            return SwiftBlobEncoding.range(encoding.decrypt(frames, blobStore.encryption(), firstFrame, lastFrame - firstFrame + 1),
+                                           position - encoding.frameStart(firstFrame), length);
+        } catch (IOException | RuntimeException e) {
+            frames.close();
+            throw e;
+        }
+    }
+
+    private InputStream openBlob(final String blobName, final DownloadInstructions instructions) throws IOException {
+        final String key = buildKey(blobName);
+        try {
+            final InputStream is = blobStore.retrying(SwiftOperation.READ, key, () -> blobStore.transferBuffers().buffered(
+                            blobStore.liveStats().counting(
+                                blobStore.swift().getObject(key).downloadObjectAsInputStream(instructions))));
 
             if (null == is) {
                 throw new NoSuchFileException("Blob object [" + blobName + "] not found.");
@@ -225,17 +594,247 @@ public class SwiftBlobContainer extends AbstractBlobContainer {
     @Override
     public void writeBlob(final String blobName, final InputStream in, final long blobSize, boolean failIfAlreadyExists)
                 throws IOException {
-        if (failIfAlreadyExists && blobExistsCheckAllowed && blobExists(blobName)) {
-            throw new FileAlreadyExistsException("blob [" + blobName + "] already exists, cannot overwrite");
+        // a conditional PUT replaces the HEAD, and cannot race with another writer
+        final boolean ifNoneMatch = failIfAlreadyExists && blobStore.conditionalPut();
+        if (failIfAlreadyExists && !ifNoneMatch && blobExistsCheckAllowed && blobExists(blobName)) {
+            throw alreadyExists(blobName, null);
+        }
+        final String key = buildKey(blobName);
+        try {
+            upload(key, in, blobSize, ifNoneMatch);
+        } catch (SwiftRestClient.ResponseException e) {
+            if (ifNoneMatch && e.status() == HttpStatus.SC_PRECONDITION_FAILED) {
+                throw alreadyExists(blobName, e);
+            }
+            throw e;
+        } finally {
+            blobStore.listingCache().invalidate(key);
         }
-        SwiftPerms.exec(() -> {
-            blobStore.swift().getObject(buildKey(blobName)).uploadObject(in);
+    }
+
+    /**
+     * Upload a blob
+     * @param ifNoneMatch fail with a 412 if the blob exists; requires the rest client
+     */
+    private void upload(final String key, final InputStream in, final long blobSize, final boolean ifNoneMatch) throws IOException {
+        final SwiftBlobEncoding encoding = blobStore.newEncoding(blobSize);
+        if (blobStore.segments() != null && blobSize > blobStore.segmentSizeInBytes()) {
+            new SegmentedUpload(blobStore, key, ifNoneMatch, encoding).upload(in, blobSize);
+            return;
+        }
+        if (blobStore.restClient() != null) {
+            putObject(key, in, encoding, ifNoneMatch, blobStore.verifyChecksums());
+            return;
+        }
+        final InputStream stream = replayable(in, blobSize);
+        final PrivilegedExceptionAction<Void> upload = () -> {
+            if (encoding.plain()) {
+                blobStore.swift().getObject(key).uploadObject(Streams.noCloseStream(stream));
+                return null;
+            }
+            try (InputStream encoded = encoding.encode(Streams.noCloseStream(stream), blobStore.encryption())) {
+                final UploadInstructions instructions = new UploadInstructions(encoded);
+                instructions.setContentType(encoding.contentType());
+                blobStore.swift().getObject(key).uploadObject(instructions);
+            }
             return null;
-        });
+        };
+        try {
+            if (stream.markSupported()) {
+                stream.mark(Integer.MAX_VALUE);
+                blobStore.retrying(SwiftOperation.WRITE, key, blobSize, upload, stream::reset);
+            } else {
+                blobStore.limited(SwiftOperation.WRITE, key, blobSize, upload);
+            }
+        } finally {
+            releaseReplayBuffer(stream);
+        }
+        blobStore.liveStats().uploaded(blobSize);
+    }
+
+    /**
+     * Upload a blob with a single PUT through the rest client, or the async client when enabled. Encoded
+     * blobs are encoded as they are sent, compressed ones with chunked encoding since their length is not
+     * known up front.
+     * @param encoding encoding of the blob
+     * @param ifNoneMatch fail with a 412 if the blob exists
+     * @param verify check the ETag returned by Swift against the MD5 of the bytes sent, computed as they are sent
+     * @return the ETag of the stored object
+     */
+    private String putObject(final String key, final InputStream in, final SwiftBlobEncoding encoding, final boolean ifNoneMatch,
+                             final boolean verify) throws IOException {
+        final SwiftRestClient restClient = blobStore.restClient();
+        final String container = blobStore.swift().getName();
+        final long blobSize = encoding.blobLength();
+        final String contentType = encoding.contentType();
+        final long contentLength = encoding.storedLength();
+        final InputStream replayable = replayable(in, blobSize);
+        final MessageDigest md5 = verify ? MessageDigests.md5() : null;
+        final AtomicInteger attempts = new AtomicInteger();
+        // each attempt encodes the blob from where rewind left it
+        final Supplier<InputStream> body = () -> {
+            attempts.incrementAndGet();
+            final InputStream encoded = encoding.encode(Streams.noCloseStream(replayable), blobStore.encryption());
+            return md5 == null ? encoded : new DigestInputStream(encoded, md5);
+        };
+        final boolean retryable = replayable.markSupported();
+        final CheckedRunnable<IOException> rewind = () -> {
+            replayable.reset();
+            if (md5 != null) {
+                md5.reset();
+            }
+        };
+        if (retryable) {
+            replayable.mark(Integer.MAX_VALUE);
+        }
+        final SwiftAsyncClient asyncClient = blobStore.asyncClient();
+        String etag;
+        try {
+            if (asyncClient != null) {
+                final Supplier<CompletableFuture<SwiftAsyncClient.Response<String>>> upload = () -> asyncClient.putObject(container,
+                    key, body, contentLength, null, ifNoneMatch, contentType);
+                etag = SwiftBlobStore.await(retryable ? blobStore.async(SwiftOperation.WRITE, key, blobSize, upload, rewind) :
+                                            blobStore.limitedAsync(SwiftOperation.WRITE, key, blobSize, upload));
+            } else {
+                final PrivilegedExceptionAction<String> upload = () -> {
+                    try (InputStream stream = body.get()) {
+                        final SwiftUploadEntity entity = new SwiftUploadEntity(stream, contentLength, blobStore.transferBuffers());
+                        entity.setContentType(contentType);
+                        return restClient.putObject(container, key, entity, null, ifNoneMatch);
+                    }
+                };
+                etag = retryable ? blobStore.retrying(SwiftOperation.WRITE, key, blobSize, upload, rewind) :
+                    blobStore.limited(SwiftOperation.WRITE, key, blobSize, upload);
+            }
+        } catch (SwiftRestClient.ResponseException e) {
+            if (!ifNoneMatch || e.status() != HttpStatus.SC_PRECONDITION_FAILED || !retryable || attempts.get() < 2) {
+                throw e;
+            }
+            // an earlier attempt may have stored the blob and lost its response
+            replayable.reset();
+            final String sent = encodedMd5(replayable, encoding);
+            etag = blobStore.storedEtag(key, sent);
+            if (etag == null) {
+                throw e;
+            }
+            blobStore.liveStats().uploaded(blobSize);
+            return etag;
+        } finally {
+            releaseReplayBuffer(replayable);
+        }
+        blobStore.liveStats().uploaded(blobSize);
+        if (md5 != null) {
+            final String expected = MessageDigests.toHexString(md5.digest());
+            if (!expected.equals(SwiftRestClient.unquote(etag))) {
+                throw new SwiftCorruptionException(key, expected, etag);
+            }
+        }
+        return SwiftRestClient.unquote(etag);
+    }
+
+    /**
+     * @return the hex MD5 of a blob once encoded, which is what a PUT of it stores
+     */
+    private String encodedMd5(InputStream in, SwiftBlobEncoding encoding) throws IOException {
+        final MessageDigest md5 = MessageDigests.md5();
+        try (InputStream encoded = new DigestInputStream(encoding.encode(Streams.noCloseStream(in), blobStore.encryption()), md5)) {
+            encoded.transferTo(OutputStream.nullOutputStream());
+        }
+        return MessageDigests.toHexString(md5.digest());
+    }
+
+    /**
+     * A stream that can be rewound to retry an upload: the blob stream itself if it supports
+     * mark/reset, or a copy of blobs small enough to fit in a transfer buffer. The buffer is taken
+     * from the pool, or allocated to the size of the blob while the pool is exhausted, so that
+     * small uploads are retried either way. A pooled buffer must be given back with
+     * {@link #releaseReplayBuffer(InputStream)} once the upload is over.
+     */
+    private InputStream replayable(InputStream in, long blobSize) {
+        if (in.markSupported() || blobSize >= blobStore.bufferSizeInBytes()) {
+            return in;
+        }
+        final InputStream buffered = blobStore.transferBuffers().buffered(in);
+        if (buffered != in || blobSize < 0) {
+            return buffered;
+        }
+        // one byte more than the blob, for the read that finds its end not to drop the mark
+        return new BufferedInputStream(in, Math.toIntExact(blobSize + 1));
     }
 
+    private static void releaseReplayBuffer(InputStream replayable) {
+        if (replayable instanceof PooledBufferedInputStream) {
+            ((PooledBufferedInputStream) replayable).release();
+        }
+    }
+
+    /**
+     * Write a blob so that readers either see the previous version or the complete new one. The blob is
+     * uploaded under a temporary name, its ETag checked against the MD5 of what was sent, and only
+     * then copied server-side to its final name.
+     */
     @Override
     public void writeBlobAtomic(String blobName, InputStream inputStream, long blobSize, boolean failIfAlreadyExists) throws IOException {
-        writeBlob(blobName, inputStream, blobSize, failIfAlreadyExists);
+        final SwiftRestClient restClient = blobStore.restClient();
+        if (restClient == null || (blobStore.segments() != null && blobSize > blobStore.segmentSizeInBytes())) {
+            // JOSS cannot copy objects; large objects only become visible once their manifest is committed anyway
+            writeBlob(blobName, inputStream, blobSize, failIfAlreadyExists);
+            return;
+        }
+
+        final boolean ifNoneMatch = failIfAlreadyExists && blobStore.conditionalPut();
+        if (failIfAlreadyExists && !ifNoneMatch && blobExistsCheckAllowed && blobExists(blobName)) {
+            throw alreadyExists(blobName, null);
+        }
+        final String container = blobStore.swift().getName();
+        final String key = buildKey(blobName);
+        final String tempKey = buildKey(tempBlobName(blobName));
+        try {
+            // always verified, a corrupted temporary object must never be copied
+            final String etag = putObject(tempKey, inputStream, blobStore.newEncoding(blobSize), false, true);
+            final AtomicInteger attempts = new AtomicInteger();
+            String copied;
+            try {
+                copied = blobStore.retrying(SwiftOperation.WRITE, key, () -> {
+                    attempts.incrementAndGet();
+                    return restClient.copyObject(container, tempKey, key, ifNoneMatch);
+                });
+            } catch (SwiftRestClient.ResponseException e) {
+                // an earlier attempt may have made the copy and lost its response
+                if (!ifNoneMatch || e.status() != HttpStatus.SC_PRECONDITION_FAILED || attempts.get() < 2) {
+                    throw e;
+                }
+                copied = blobStore.storedEtag(key, etag);
+                if (copied == null) {
+                    throw e;
+                }
+            }
+            if (copied != null && !etag.equals(SwiftRestClient.unquote(copied))) {
+                throw new SwiftCorruptionException(key, etag, copied);
+            }
+        } catch (SwiftRestClient.ResponseException e) {
+            if (ifNoneMatch && e.status() == HttpStatus.SC_PRECONDITION_FAILED) {
+                throw alreadyExists(blobName, e);
+            }
+            throw e;
+        } finally {
+            try {
+                blobStore.deleteObjects(blobStore.swift(), Collections.singletonMap(tempKey, 0L));
+            } catch (IOException | RuntimeException e) {
+                logger.warn(new ParameterizedMessage("Unable to delete temporary blob [{}]", tempKey), e);
+            }
+            blobStore.listingCache().invalidate(tempKey);
+            blobStore.listingCache().invalidate(key);
+        }
+        deleteStaleTempBlobs();
+    }
+
+    private static FileAlreadyExistsException alreadyExists(String blobName, @Nullable Exception cause) {
+        FileAlreadyExistsException e = new FileAlreadyExistsException("blob [" + blobName + "] already exists, cannot overwrite");
+        if (cause != null) {
+            e.initCause(cause);
+        }
+        return e;
     }
+
 }
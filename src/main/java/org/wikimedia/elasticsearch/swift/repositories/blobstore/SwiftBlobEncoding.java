@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * How a blob is stored in its object: compressed, encrypted, or as it is. An encoded object is stored
+ * with a Content-Type recording its encoding and the length of its blob, which Swift returns both
+ * with the object and in container listings, unlike X-Object-Meta headers. Objects are decoded
+ * according to their own Content-Type, whatever the repository currently writes.
+ */
+final class SwiftBlobEncoding {
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    private static final String CODEC_PARAMETER = "es_codec";
+    private static final String CIPHER_PARAMETER = "es_cipher";
+    private static final String FRAME_PARAMETER = "es_frame";
+    private static final String SALT_PARAMETER = "es_salt";
+    private static final String LENGTH_PARAMETER = "es_length";
+
+    private final SwiftCompression compression;
+    // null when the object is not encrypted
+    private final byte[] salt;
+    private final int frameSize;
+    // -1 when not recorded
+    private final long blobLength;
+
+    /**
+     * Constructor
+     * @param compression codec of the object
+     * @param salt salt the key of the object is derived from, or null if it is not encrypted
+     * @param frameSize bytes of plaintext per encrypted frame
+     * @param blobLength size of the blob, or -1 if unknown
+     */
+    SwiftBlobEncoding(SwiftCompression compression, @Nullable byte[] salt, int frameSize, long blobLength) {
+        this.compression = compression;
+        this.salt = salt;
+        this.frameSize = frameSize;
+        this.blobLength = blobLength;
+    }
+
+    /**
+     * @return the encoding of a new blob of blobSize bytes
+     * @param encryption encryption of the repository, or null to store the blob in clear
+     */
+    static SwiftBlobEncoding of(SwiftCompression compression, @Nullable SwiftEncryption encryption, long blobSize) {
+        if (encryption == null) {
+            return new SwiftBlobEncoding(compression, null, 0, blobSize);
+        }
+        return new SwiftBlobEncoding(compression, encryption.newSalt(), encryption.frameSize(), blobSize);
+    }
+
+    /**
+     * @return the encoding an object was stored with
+     */
+    static SwiftBlobEncoding parse(@Nullable String contentType) throws IOException {
+        final String codec = parameter(contentType, CODEC_PARAMETER);
+        SwiftCompression compression = SwiftCompression.NONE;
+        if (codec != null) {
+            try {
+                compression = SwiftCompression.fromString(codec);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Blob encoded with unsupported codec [" + codec + "]", e);
+            }
+        }
+        final long blobLength = blobLength(contentType, -1);
+        final String cipher = parameter(contentType, CIPHER_PARAMETER);
+        if (cipher == null) {
+            return new SwiftBlobEncoding(compression, null, 0, blobLength);
+        }
+        if (!SwiftEncryption.CIPHER.equals(cipher)) {
+            throw new IOException("Blob encrypted with unsupported cipher [" + cipher + "]");
+        }
+        try {
+            final int frameSize = Integer.parseInt(String.valueOf(parameter(contentType, FRAME_PARAMETER)));
+            final byte[] salt = Base64.getUrlDecoder().decode(String.valueOf(parameter(contentType, SALT_PARAMETER)));
+            // the frame size sizes the decryption buffers, and must not be taken from the object unchecked
+            if (frameSize < SwiftEncryption.MIN_FRAME_SIZE || frameSize > SwiftEncryption.MAX_FRAME_SIZE) {
+                throw new IllegalArgumentException("frame size must be between [" + SwiftEncryption.MIN_FRAME_SIZE + "] and [" +
+                                                   SwiftEncryption.MAX_FRAME_SIZE + "]");
+            }
+            return new SwiftBlobEncoding(compression, salt, frameSize, blobLength);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Encrypted blob with invalid Content-Type [" + contentType + "]", e);
+        }
+    }
+
+    /**
+     * @return the size of the blob held by an object, as listed with its Content-Type
+     */
+    static long blobLength(@Nullable String contentType, long storedBytes) {
+        final String length = parameter(contentType, LENGTH_PARAMETER);
+        if (length != null) {
+            try {
+                return Long.parseLong(length);
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        return storedBytes;
+    }
+
+    @Nullable
+    private static String parameter(@Nullable String contentType, String name) {
+        if (contentType == null || contentType.indexOf(';') < 0) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            final int equals = parameter.indexOf('=');
+            if (equals > 0 && parameter.substring(0, equals).trim().equals(name)) {
+                return parameter.substring(equals + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the Content-Type of the object, or null to leave it to Swift
+     */
+    @Nullable
+    String contentType() {
+        if (plain()) {
+            return null;
+        }
+        final StringBuilder contentType = new StringBuilder(CONTENT_TYPE);
+        if (compressed()) {
+            contentType.append(';').append(CODEC_PARAMETER).append('=').append(compression.name().toLowerCase(Locale.ROOT));
+        }
+        if (encrypted()) {
+            contentType.append(';').append(CIPHER_PARAMETER).append('=').append(SwiftEncryption.CIPHER)
+                .append(';').append(FRAME_PARAMETER).append('=').append(frameSize)
+                .append(';').append(SALT_PARAMETER).append('=').append(Base64.getUrlEncoder().withoutPadding().encodeToString(salt));
+        }
+        return contentType.append(';').append(LENGTH_PARAMETER).append('=').append(blobLength).toString();
+    }
+
+    boolean plain() {
+        return !compressed() && !encrypted();
+    }
+
+    boolean compressed() {
+        return compression != SwiftCompression.NONE;
+    }
+
+    boolean encrypted() {
+        return salt != null;
+    }
+
+    /**
+     * @return size of the blob, or -1 if the object does not record it
+     */
+    long blobLength() {
+        return blobLength;
+    }
+
+    /**
+     * @return size of the object, or -1 if it is only known once encoded
+     */
+    long storedLength() {
+        if (compressed() || blobLength < 0) {
+            return -1;
+        }
+        return encrypted() ? SwiftEncryption.encryptedLength(blobLength, frameSize) : blobLength;
+    }
+
+    /**
+     * Encode a blob as it is read, compressing then encrypting it. Closing the encoded stream releases
+     * the codec and cipher but leaves the source open.
+     * @param in blob contents, of exactly blobLength bytes
+     * @param encryption encryption of the repository, required if the blob is encrypted
+     */
+    InputStream encode(InputStream in, @Nullable SwiftEncryption encryption) {
+        final InputStream compressed = compression.encode(in, blobLength);
+        if (!encrypted()) {
+            return compressed;
+        }
+        // the encrypted stream closes its source, which must outlive it when it is the blob itself
+        return encryption.encrypt(compressed == in ? Streams.noCloseStream(in) : compressed,
+                                  compressed() ? -1 : blobLength, salt, frameSize);
+    }
+
+    /**
+     * Decode the contents of an object stored with this encoding. Closing the decoded stream closes the source.
+     * @param encryption encryption of the repository, required if the blob is encrypted
+     */
+    InputStream decode(InputStream in, @Nullable SwiftEncryption encryption) throws IOException {
+        InputStream decrypted = in;
+        if (encrypted()) {
+            decrypted = decrypt(in, encryption, 0, -1);
+        }
+        return compression.decode(decrypted);
+    }
+
+    /**
+     * Decrypt whole frames of an object stored without compression. Closing the decrypted stream closes the source.
+     * @param in object contents from the start of firstFrame, and the first byte after the last frame, if any
+     * @param frames number of frames to decrypt, or -1 to decrypt to the end of the object
+     */
+    InputStream decrypt(InputStream in, @Nullable SwiftEncryption encryption, long firstFrame, long frames) throws IOException {
+        if (encryption == null) {
+            throw new IOException("Blob is encrypted but repository_swift.encryption.key is not set");
+        }
+        return encryption.decrypt(in, salt, frameSize, firstFrame, frames);
+    }
+
+    /**
+     * @return index of the encrypted frame holding a byte of the blob
+     */
+    long frame(long position) {
+        return position / frameSize;
+    }
+
+    /**
+     * @return offset in the object of an encrypted frame
+     */
+    long frameOffset(long frame) {
+        return Math.multiplyExact(frame, SwiftEncryption.sealedFrameSize(frameSize));
+    }
+
+    /**
+     * @return offset in the blob of the first byte of an encrypted frame
+     */
+    long frameStart(long frame) {
+        return frame * frameSize;
+    }
+
+    /**
+     * Cut a byte range out of a decoded stream
+     * @param decoded the decoded stream, closed with the range
+     * @param skip number of bytes to skip from the start of the decoded stream
+     * @param length number of bytes to return, fewer if the stream ends before
+     */
+    static InputStream range(InputStream decoded, long skip, long length) throws IOException {
+        long remaining = skip;
+        while (remaining > 0) {
+            final long skipped = decoded.skip(remaining);
+            if (skipped <= 0) {
+                if (decoded.read() == -1) {
+                    decoded.close();
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+        return new FilterInputStream(decoded) {
+            private long left = length;
+
+            @Override
+            public int read() throws IOException {
+                if (left <= 0) {
+                    return -1;
+                }
+                final int b = super.read();
+                if (b != -1) {
+                    left--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (left <= 0) {
+                    return -1;
+                }
+                final int read = super.read(b, off, (int) Math.min(len, left));
+                if (read > 0) {
+                    left -= read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                final long skipped = super.skip(Math.min(n, left));
+                left -= skipped;
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+}
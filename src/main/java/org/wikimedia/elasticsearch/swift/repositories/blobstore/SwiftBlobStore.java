@@ -16,6 +16,11 @@
 
 package org.wikimedia.elasticsearch.swift.repositories.blobstore;
 
+import org.apache.http.HttpStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.CheckedRunnable;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.blobstore.BlobContainer;
 import org.elasticsearch.common.blobstore.BlobPath;
 import org.elasticsearch.common.blobstore.BlobStore;
@@ -23,27 +28,133 @@ import org.elasticsearch.common.blobstore.DeleteResult;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
-import org.javaswift.joss.exception.CommandException;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.javaswift.joss.exception.NotFoundException;
 import org.javaswift.joss.model.Account;
 import org.javaswift.joss.model.Container;
-import org.javaswift.joss.model.DirectoryOrObject;
 import org.javaswift.joss.model.StoredObject;
 import org.wikimedia.elasticsearch.swift.SwiftPerms;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftService;
 
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * Our blob store
  */
 public class SwiftBlobStore implements BlobStore {
+    private static final Logger logger = LogManager.getLogger(SwiftBlobStore.class);
+
+    // Objects per listing page, Swift's default container_listing_limit; less if the cluster announces a lower limit
+    static final int LIST_PAGE_SIZE = 10000;
+
+    // Large object segments go to a sibling container, as the swift CLI does
+    static final String SEGMENTS_CONTAINER_SUFFIX = "_segments";
+
     // How much to buffer our blobs by
     private final int bufferSizeInBytes;
 
+    // Buffers of bufferSizeInBytes that blob contents are streamed through, up to transfer_memory in total
+    private final SwiftBufferPool transferBuffers;
+
     // Our Swift container. This is important.
     private final Container swift;
 
     private final Settings settings;
 
+    // Raw HTTP access for the calls JOSS lacks. Null when only JOSS may be used, e.g. with mock accounts.
+    @Nullable
+    private final SwiftRestClient restClient;
+
+    // Non-blocking HTTP access for the async transport. Null when it is disabled.
+    @Nullable
+    private final SwiftAsyncClient asyncClient;
+
+    // Threads running concurrent requests on behalf of a single blob store call
+    private final ExecutorService executor;
+
+    private final int deleteConcurrency;
+
+    private final int listConcurrency;
+
+    // Container holding large object segments. Null unless segmented uploads are enabled.
+    @Nullable
+    private final Container segments;
+
+    private final long segmentSizeInBytes;
+
+    private final int uploadConcurrency;
+
+    private final int readMaxRetries;
+
+    // Blobs above this size are downloaded as concurrent ranged GETs, -1 to disable
+    private final long parallelDownloadThreshold;
+
+    private final int downloadChunkSizeInBytes;
+
+    private final int downloadConcurrency;
+
+    // Chunk buffers that parallel downloads may hold at once, across the whole repository
+    private final Semaphore downloadBuffers;
+
+    private final SwiftRetryPolicy retryPolicy;
+
+    private final SwiftRequestLimiter limiter;
+
+    private final SwiftListingCache listingCache;
+
+    private final SwiftStats stats = new SwiftStats();
+
+    private final SwiftSlowLog slowLog;
+
+    // Whether blob contents are checked against their ETag on upload and download
+    private final boolean verifyChecksums;
+
+    // Whether uploads that must not overwrite are sent with If-None-Match: *
+    private final boolean conditionalPut;
+
+    // Codec new blobs are written with
+    private final SwiftCompression compression;
+
+    // Encryption of new blobs, and of the encrypted ones read; null without a key
+    @Nullable
+    private final SwiftEncryption encryption;
+
+    // Whether blobs stored without encryption are refused on read
+    private final boolean encryptionRequired;
+
+    // Objects per bulk-delete request; 0 when bulk-delete is unavailable, -1 until probed
+    private volatile int bulkDeleteSize = -1;
+
+    // The cluster's container_listing_limit; -1 when it is not announced, 0 until probed
+    private volatile int listingLimit = 0;
+
     /**
      * Constructor. Sets up the container mostly.
      * @param settings Settings for our repository. Only care about buffer size.
@@ -51,8 +162,92 @@ public class SwiftBlobStore implements BlobStore {
      * @param container swift container
      */
     public SwiftBlobStore(Settings settings, final Account auth, final String container) {
+        this(settings, auth, container, null);
+    }
+
+    /**
+     * Constructor. Sets up the container mostly.
+     * @param settings Settings for our repository
+     * @param auth swift account info
+     * @param container swift container
+     * @param restClient raw HTTP client authenticated as auth, or null to use JOSS only
+     */
+    public SwiftBlobStore(Settings settings, final Account auth, final String container, @Nullable SwiftRestClient restClient) {
+        this(settings, auth, container, restClient, null);
+    }
+
+    /**
+     * Constructor. Sets up the container mostly.
+     * @param settings Settings for our repository
+     * @param auth swift account info
+     * @param container swift container
+     * @param restClient raw HTTP client authenticated as auth, or null to use JOSS only
+     * @param asyncClient non-blocking HTTP client authenticated as auth, or null to only block; requires restClient
+     */
+    public SwiftBlobStore(Settings settings, final Account auth, final String container, @Nullable SwiftRestClient restClient,
+                          @Nullable SwiftAsyncClient asyncClient) {
+        this(settings, auth, container, restClient, asyncClient, null);
+    }
+
+    /**
+     * Constructor. Sets up the container mostly.
+     * @param settings Settings for our repository
+     * @param auth swift account info
+     * @param container swift container
+     * @param restClient raw HTTP client authenticated as auth, or null to use JOSS only
+     * @param asyncClient non-blocking HTTP client authenticated as auth, or null to only block; requires restClient
+     * @param encryptionKey AES-256 key blobs are encrypted with, or null to store them in clear
+     */
+    public SwiftBlobStore(Settings settings, final Account auth, final String container, @Nullable SwiftRestClient restClient,
+                          @Nullable SwiftAsyncClient asyncClient, @Nullable SecretKey encryptionKey) {
+        this(settings, auth, container, restClient, asyncClient, encryptionKey, SwiftRepository.Swift.COMPRESSION_SETTING.get(settings));
+    }
+
+    /**
+     * Constructor. Sets up the container mostly.
+     * @param settings Settings for our repository
+     * @param auth swift account info
+     * @param container swift container
+     * @param restClient raw HTTP client authenticated as auth, or null to use JOSS only
+     * @param asyncClient non-blocking HTTP client authenticated as auth, or null to only block; requires restClient
+     * @param encryptionKey AES-256 key blobs are encrypted with, or null to store them in clear
+     * @param compression codec new blobs are written with
+     */
+    public SwiftBlobStore(Settings settings, final Account auth, final String container, @Nullable SwiftRestClient restClient,
+                          @Nullable SwiftAsyncClient asyncClient, @Nullable SecretKey encryptionKey, SwiftCompression compression) {
+        this.encryptionRequired = SwiftRepository.Swift.ENCRYPTION_REQUIRED_SETTING.get(settings);
+        if (encryptionRequired && encryptionKey == null) {
+            throw new IllegalArgumentException("[" + SwiftRepository.Swift.ENCRYPTION_REQUIRED_SETTING.getKey() + "] requires [" +
+                                               SwiftRepository.Swift.ENCRYPTION_KEY_SETTING.getKey() + "]");
+        }
         this.settings = settings;
+        this.restClient = restClient;
+        this.asyncClient = restClient == null ? null : asyncClient;
         this.bufferSizeInBytes = (int)settings.getAsBytesSize("buffer_size", new ByteSizeValue(100, ByteSizeUnit.KB)).getBytes();
+        this.transferBuffers = new SwiftBufferPool(bufferSizeInBytes,
+                                                   SwiftRepository.Swift.TRANSFER_MEMORY_SETTING.get(settings).getBytes());
+        this.deleteConcurrency = SwiftRepository.Swift.DELETE_CONCURRENCY_SETTING.get(settings);
+        this.listConcurrency = SwiftRepository.Swift.LIST_CONCURRENCY_SETTING.get(settings);
+        this.executor = EsExecutors.newScaling("swift_transfer", 0, SwiftRepository.Swift.TRANSFER_THREADS_SETTING.get(settings),
+                30, TimeUnit.SECONDS, EsExecutors.daemonThreadFactory(settings, "swift_transfer"), new ThreadContext(settings));
+        this.segmentSizeInBytes = SwiftRepository.Swift.SEGMENT_SIZE_SETTING.get(settings).getBytes();
+        this.uploadConcurrency = SwiftRepository.Swift.UPLOAD_CONCURRENCY_SETTING.get(settings);
+        this.readMaxRetries = SwiftRepository.Swift.READ_MAX_RETRIES_SETTING.get(settings);
+        this.parallelDownloadThreshold = SwiftRepository.Swift.PARALLEL_DOWNLOAD_SETTING.get(settings) ?
+            SwiftRepository.Swift.PARALLEL_DOWNLOAD_THRESHOLD_SETTING.get(settings).getBytes() : -1;
+        this.downloadChunkSizeInBytes = (int) SwiftRepository.Swift.DOWNLOAD_CHUNK_SIZE_SETTING.get(settings).getBytes();
+        this.downloadConcurrency = SwiftRepository.Swift.DOWNLOAD_CONCURRENCY_SETTING.get(settings);
+        this.downloadBuffers = new Semaphore((int) Math.min(Integer.MAX_VALUE,
+            SwiftRepository.Swift.DOWNLOAD_MEMORY_SETTING.get(settings).getBytes() / downloadChunkSizeInBytes));
+        this.retryPolicy = new SwiftRetryPolicy(settings);
+        this.limiter = new SwiftRequestLimiter(settings);
+        this.listingCache = new SwiftListingCache(settings);
+        this.slowLog = new SwiftSlowLog(settings);
+        this.verifyChecksums = SwiftRepository.Swift.VERIFY_CHECKSUMS_SETTING.get(settings);
+        this.conditionalPut = restClient != null && SwiftRepository.Swift.CONDITIONAL_PUT_SETTING.get(settings);
+        this.compression = compression;
+        this.encryption = encryptionKey == null ? null : new SwiftEncryption(encryptionKey,
+            (int) SwiftRepository.Swift.ENCRYPTION_FRAME_SIZE_SETTING.get(settings).getBytes());
         swift = SwiftPerms.exec(() -> {
             Container swift = auth.getContainer(container);
             if (!swift.exists()) {
@@ -61,6 +256,18 @@ public class SwiftBlobStore implements BlobStore {
             }
             return swift;
         });
+
+        if (SwiftRepository.Swift.SEGMENTED_UPLOAD_SETTING.get(settings) && restClient != null) {
+            segments = SwiftPerms.exec(() -> {
+                Container segments = auth.getContainer(container + SEGMENTS_CONTAINER_SUFFIX);
+                if (!segments.exists()) {
+                    segments.create();
+                }
+                return segments;
+            });
+        } else {
+            segments = null;
+        }
     }
 
     /**
@@ -77,6 +284,361 @@ public class SwiftBlobStore implements BlobStore {
         return bufferSizeInBytes;
     }
 
+    /**
+     * @return pool of the buffers blob contents are streamed through
+     */
+    SwiftBufferPool transferBuffers() {
+        return transferBuffers;
+    }
+
+    /**
+     * @return the raw HTTP client, or null if only JOSS may be used
+     */
+    @Nullable
+    SwiftRestClient restClient() {
+        return restClient;
+    }
+
+    /**
+     * @return the non-blocking HTTP client, or null if the async transport is disabled
+     */
+    @Nullable
+    SwiftAsyncClient asyncClient() {
+        return asyncClient;
+    }
+
+    /**
+     * @return the container for large object segments, or null if segmented uploads are disabled
+     */
+    @Nullable
+    Container segments() {
+        return segments;
+    }
+
+    /**
+     * @return size of large object segments
+     */
+    long segmentSizeInBytes() {
+        return segmentSizeInBytes;
+    }
+
+    /**
+     * @return number of child containers listed at once
+     */
+    int listConcurrency() {
+        return listConcurrency;
+    }
+
+    /**
+     * @return number of segments uploaded at once per blob
+     */
+    int uploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    /**
+     * @return number of times a download is resumed after a failure
+     */
+    int readMaxRetries() {
+        return readMaxRetries;
+    }
+
+    /**
+     * @return size above which blobs are downloaded in parallel, or -1 if parallel downloads are disabled
+     */
+    long parallelDownloadThreshold() {
+        return parallelDownloadThreshold;
+    }
+
+    /**
+     * @return size of the ranges fetched by parallel downloads
+     */
+    int downloadChunkSizeInBytes() {
+        return downloadChunkSizeInBytes;
+    }
+
+    /**
+     * @return number of ranged GETs in flight per parallel download
+     */
+    int downloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    /**
+     * Reserve chunk buffers for a parallel download, taking fewer if the download memory budget is short
+     * @param wanted number of buffers wanted
+     * @return number of buffers reserved, possibly 0
+     */
+    int reserveDownloadBuffers(int wanted) {
+        for (int count = wanted; count > 0; count--) {
+            if (downloadBuffers.tryAcquire(count)) {
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Give back buffers reserved with {@link #reserveDownloadBuffers(int)}
+     */
+    void releaseDownloadBuffers(int count) {
+        if (count > 0) {
+            downloadBuffers.release(count);
+        }
+    }
+
+    /**
+     * @return executor for concurrent requests
+     */
+    Executor executor() {
+        return executor;
+    }
+
+    /**
+     * @return retry policy for Swift requests
+     */
+    SwiftRetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return whether blob contents are checked against their ETag
+     */
+    boolean verifyChecksums() {
+        return verifyChecksums;
+    }
+
+    /**
+     * @return whether uploads that must not overwrite an existing blob use conditional PUTs
+     */
+    boolean conditionalPut() {
+        return conditionalPut;
+    }
+
+    /**
+     * @return codec new blobs are written with
+     */
+    SwiftCompression compression() {
+        return compression;
+    }
+
+    /**
+     * @return encryption of the repository, or null if it has no key
+     */
+    @Nullable
+    SwiftEncryption encryption() {
+        return encryption;
+    }
+
+    /**
+     * @return whether blobs stored without encryption are refused on read
+     */
+    boolean encryptionRequired() {
+        return encryptionRequired;
+    }
+
+    /**
+     * @return the encoding a stored object was written with
+     * @throws IOException if it cannot be decoded, or is not encrypted while encryption is required
+     */
+    SwiftBlobEncoding encoding(String key, @Nullable String contentType) throws IOException {
+        final SwiftBlobEncoding encoding = SwiftBlobEncoding.parse(contentType);
+        if (encryptionRequired && !encoding.encrypted()) {
+            throw new IOException("Blob [" + key + "] is not encrypted, and [" +
+                                  SwiftRepository.Swift.ENCRYPTION_REQUIRED_SETTING.getKey() + "] is set");
+        }
+        return encoding;
+    }
+
+    /**
+     * @return the encoding of a new blob
+     */
+    SwiftBlobEncoding newEncoding(long blobSize) {
+        return SwiftBlobEncoding.of(compression, encryption, blobSize);
+    }
+
+    /**
+     * @return cache of blob listings
+     */
+    SwiftListingCache listingCache() {
+        return listingCache;
+    }
+
+    /**
+     * @return request statistics of this store
+     */
+    public SwiftRepositoryStats stats() {
+        return stats.snapshot(retryPolicy, limiter, transferBuffers);
+    }
+
+    /**
+     * @return live request counters of this store
+     */
+    SwiftStats liveStats() {
+        return stats;
+    }
+
+    /**
+     * @return number of Swift requests of a given class retried so far
+     */
+    public long retries(SwiftOperation operation) {
+        return retryPolicy.retries(operation);
+    }
+
+    /**
+     * Run a Swift request with the plugin's permissions, retrying it on transient failures
+     * @param operation class of the request
+     * @param target object or prefix the request is about
+     * @param request the request, safe to run again
+     */
+    <T> T retrying(SwiftOperation operation, String target, PrivilegedExceptionAction<T> request) throws IOException {
+        return retrying(operation, target, -1, request, null);
+    }
+
+    /**
+     * Same as {@link #retrying(SwiftOperation, String, PrivilegedExceptionAction)}, for requests that
+     * need some state restored before running again
+     * @param bytes bytes the request sends, or -1 if unknown
+     * @param rewind run before each retry, e.g. to reset the stream of an upload
+     */
+    <T> T retrying(SwiftOperation operation, String target, long bytes, PrivilegedExceptionAction<T> request,
+                   @Nullable CheckedRunnable<IOException> rewind) throws IOException {
+        return retryPolicy.run(operation, target, () -> limited(operation, target, bytes, request), rewind);
+    }
+
+    /**
+     * Run a single Swift request with the plugin's permissions, once the repository's request limits allow it
+     * @param operation class of the request
+     * @param target object or prefix the request is about
+     * @param bytes bytes the request sends or asks for, or -1 if unknown
+     * @param request the request
+     */
+    <T> T limited(SwiftOperation operation, String target, long bytes, PrivilegedExceptionAction<T> request) throws IOException {
+        return limiter.execute(operation, () -> {
+            final long start = System.nanoTime();
+            Exception failure = null;
+            try {
+                return SwiftPerms.execThrows(request);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+                throw e;
+            } finally {
+                final long elapsed = System.nanoTime() - start;
+                stats.record(operation, elapsed, failure);
+                slowLog.maybeLog(operation, target, bytes, elapsed, SwiftService.lastTransactionId(), failure);
+            }
+        });
+    }
+
+    /**
+     * Send a Swift request on the non-blocking client, retrying it on transient failures
+     * @param operation class of the request
+     * @param target object or prefix the request is about
+     * @param request sends the request, safe to call again
+     * @return the pending result of the first successful attempt
+     */
+    <T> CompletableFuture<T> async(SwiftOperation operation, String target,
+                                   Supplier<CompletableFuture<SwiftAsyncClient.Response<T>>> request) {
+        return async(operation, target, -1, request, null);
+    }
+
+    /**
+     * Same as {@link #async(SwiftOperation, String, Supplier)}, for requests that need some state restored
+     * before being sent again
+     * @param bytes bytes the request sends, or -1 if unknown
+     * @param rewind run before each retry, e.g. to reset the stream of an upload
+     */
+    <T> CompletableFuture<T> async(SwiftOperation operation, String target, long bytes,
+                                   Supplier<CompletableFuture<SwiftAsyncClient.Response<T>>> request,
+                                   @Nullable CheckedRunnable<IOException> rewind) {
+        return retryPolicy.runAsync(operation, target, () -> limitedAsync(operation, target, bytes, request), rewind, executor);
+    }
+
+    /**
+     * Send a single Swift request on the non-blocking client, once the repository's request limits allow it.
+     * The calling thread waits for the limits only, never for the response.
+     * @param operation class of the request
+     * @param target object or prefix the request is about
+     * @param bytes bytes the request sends or asks for, or -1 if unknown
+     * @param request sends the request
+     * @return the pending result of the request
+     */
+    <T> CompletableFuture<T> limitedAsync(SwiftOperation operation, String target, long bytes,
+                                          Supplier<CompletableFuture<SwiftAsyncClient.Response<T>>> request) {
+        final CompletableFuture<SwiftAsyncClient.Response<T>> limited;
+        try {
+            limited = limiter.executeAsync(operation, () -> {
+                final long start = System.nanoTime();
+                CompletableFuture<SwiftAsyncClient.Response<T>> sent;
+                try {
+                    sent = SwiftPerms.exec((PrivilegedAction<CompletableFuture<SwiftAsyncClient.Response<T>>>) request::get);
+                } catch (RuntimeException e) {
+                    sent = CompletableFuture.failedFuture(e);
+                }
+                return SwiftAsyncClient.cancelling(sent.handle((response, e) -> {
+                    final long elapsed = System.nanoTime() - start;
+                    if (e == null) {
+                        stats.record(operation, elapsed, null);
+                        slowLog.maybeLog(operation, target, bytes, elapsed, response.transactionId(), null);
+                        return response;
+                    }
+                    final Throwable cause = SwiftAsyncClient.unwrap(e);
+                    final Exception failure = cause instanceof Exception ? (Exception) cause : new CompletionException(cause);
+                    stats.record(operation, elapsed, failure);
+                    slowLog.maybeLog(operation, target, bytes, elapsed, failure instanceof SwiftRestClient.ResponseException ?
+                        ((SwiftRestClient.ResponseException) failure).transactionId() : null, failure);
+                    throw new CompletionException(cause);
+                }), sent);
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return SwiftAsyncClient.cancelling(limited.thenApply(SwiftAsyncClient.Response::value), limited);
+    }
+
+    /**
+     * Wait for a request sent on the non-blocking client
+     * @return the result of the request
+     * @throws IOException what the request failed with
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // aborts the request, or releases the connection of a download that is already in
+            if (!future.cancel(true) && !future.isCompletedExceptionally()) {
+                SwiftAsyncClient.release(future.join());
+            }
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException("Interrupted while waiting for a swift request");
+            ie.initCause(e);
+            throw ie;
+        } catch (ExecutionException e) {
+            final Throwable cause = SwiftAsyncClient.unwrap(e);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * @return log of slow requests
+     */
+    SwiftSlowLog slowLog() {
+        return slowLog;
+    }
+
+    /**
+     * @return number of Swift requests of a given class in flight
+     */
+    public int inFlight(SwiftOperation operation) {
+        return limiter.inFlight(operation);
+    }
+
     /**
      * Factory for getting blob containers for a path
      * @param path The blob path to search
@@ -87,66 +649,382 @@ public class SwiftBlobStore implements BlobStore {
     }
 
     /**
-     * Delete an arbitrary BlobPath from our store.
+     * Check whether an object was stored with the given ETag, after a conditional PUT was answered
+     * 412 on a retry: that is what a lost response to an earlier attempt looks like.
+     * @param key object name
+     * @param expected unquoted ETag the object must have
+     * @return the unquoted ETag if the object matches, null if it differs or does not exist
+     */
+    @Nullable
+    String storedEtag(String key, String expected) throws IOException {
+        final String etag = SwiftRestClient.unquote(retrying(SwiftOperation.READ, key, () -> restClient.headObject(swift.getName(), key)));
+        return expected.equals(etag) ? etag : null;
+    }
+
+    /**
+     * Delete an arbitrary BlobPath from our store. Everything under the path is listed flat, page by page,
+     * and each page is handed to the delete pipeline while the next one is being fetched.
      * @param path The blob path to delete
      * @return deleteResult The delete result
      */
-    public DeleteResult delete(final BlobPath path) {
-        DeleteResult deleteResult;
+    public DeleteResult delete(final BlobPath path) throws IOException {
+        final String keyPath = path.buildAsString();
         try {
-            deleteResult = SwiftPerms.exec(() -> {
-                String keyPath = path.buildAsString();
-                long bytesDeleted = 0;
-                long blobsDeleted = 0;
+            return doDelete(keyPath);
+        } finally {
+            listingCache.invalidatePrefix(keyPath);
+        }
+    }
 
-                if (keyPath.isEmpty() || keyPath.endsWith("/")) {
-                    return deleteByPrefix(keyPath.isEmpty() ? swift.listDirectory() : swift.listDirectory(keyPath, '/', "", 100));
-                } else {
-                    StoredObject obj = swift.getObject(keyPath);
-                    if (obj.exists()) {
-                        blobsDeleted += 1;
-                        bytesDeleted += obj.getContentLength();
-                        obj.delete();
+    private DeleteResult doDelete(final String keyPath) throws IOException {
+        if (keyPath.isEmpty() || keyPath.endsWith("/")) {
+            DeleteResult deleteResult = deleteByPrefix(swift, keyPath, key -> true);
+            if (segments != null) {
+                deleteByPrefix(segments, keyPath, key -> true);
+            }
+            return deleteResult;
+        }
+
+        DeleteResult deleteResult = retrying(SwiftOperation.DELETE, keyPath, () -> {
+            StoredObject obj = swift.getObject(keyPath);
+            if (!obj.exists()) {
+                return DeleteResult.ZERO;
+            }
+            long bytesDeleted = obj.getContentLength();
+            obj.delete();
+            return new DeleteResult(1, bytesDeleted);
+        });
+        deleteSegments(Collections.singleton(keyPath));
+        return deleteResult;
+    }
+
+    private DeleteResult deleteByPrefix(final Container container, final String prefix, Predicate<String> filter)
+            throws IOException {
+        BoundedTaskRunner<DeleteResult> runner = new BoundedTaskRunner<>(executor, deleteConcurrency);
+        try {
+            SwiftListing.list(this, container, prefix, null, page -> {
+                Map<String, Long> objects = new LinkedHashMap<>();
+                for (int i = 0; i < page.size(); i++) {
+                    if (filter.test(page.name(i))) {
+                        objects.put(page.name(i), page.bytes(i));
                     }
                 }
-                return new DeleteResult(blobsDeleted, bytesDeleted);
+                submitDeletes(runner, container, objects);
             });
-        } catch (CommandException e) {
-            if (e.getMessage() != null)
-                throw e;
-            throw new CommandException(e.toString(), e);
+        } catch (IOException | RuntimeException e) {
+            try {
+                runner.awaitAll();
+            } catch (IOException inFlight) {
+                if (inFlight != e) {
+                    e.addSuppressed(inFlight);
+                }
+            }
+            throw e;
+        }
+
+        return awaitDeletes(runner);
+    }
+
+    /**
+     * Delete the segments left behind by large objects, once their manifests are gone. Segments are
+     * listed once per directory holding some of the keys.
+     * @param keys large object keys
+     */
+    private void deleteSegments(Collection<String> keys) throws IOException {
+        if (segments == null || keys.isEmpty()) {
+            return;
+        }
+        Map<String, Set<String>> directories = new LinkedHashMap<>();
+        for (String key : keys) {
+            directories.computeIfAbsent(key.substring(0, key.lastIndexOf('/') + 1), directory -> new HashSet<>()).add(key);
+        }
+        for (Map.Entry<String, Set<String>> directory : directories.entrySet()) {
+            final Set<String> owners = directory.getValue();
+            if (directory.getKey().isEmpty()) {
+                // don't list every segment of the repository for a few root blobs
+                for (String key : owners) {
+                    deleteByPrefix(segments, key + "/", segment -> true);
+                }
+            } else {
+                deleteByPrefix(segments, directory.getKey(), segment -> owners.contains(segmentOwner(segment)));
+            }
+        }
+    }
+
+    /**
+     * Delete the segments of a large object that belong to uploads other than the given one
+     * @param key large object key
+     * @param uploadPrefix segment prefix of the upload to keep
+     */
+    void deleteStaleSegments(String key, String uploadPrefix) throws IOException {
+        deleteByPrefix(segments, key + "/", segment -> !segment.startsWith(uploadPrefix));
+    }
+
+    /**
+     * @return the large object key of a segment named key/upload/index
+     */
+    private static String segmentOwner(String segment) {
+        int index = segment.lastIndexOf('/');
+        int upload = index > 0 ? segment.lastIndexOf('/', index - 1) : -1;
+        return upload > 0 ? segment.substring(0, upload) : segment;
+    }
+
+    /**
+     * Delete a set of objects, ignoring those that do not exist. Objects are sent in batches to the
+     * bulk-delete middleware when the cluster offers it, or deleted one by one otherwise; either way
+     * up to delete_concurrency requests run at once.
+     * @param objects object keys, mapped to their size in bytes if known
+     * @return deleteResult The delete result
+     */
+    DeleteResult deleteObjects(Map<String, Long> objects) throws IOException {
+        try {
+            DeleteResult deleteResult = deleteObjects(swift, objects);
+            deleteSegments(objects.keySet());
+            return deleteResult;
+        } finally {
+            for (String key : objects.keySet()) {
+                listingCache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #deleteObjects(Map)}, for any container of the account
+     */
+    DeleteResult deleteObjects(Container container, Map<String, Long> objects) throws IOException {
+        if (objects.isEmpty()) {
+            return DeleteResult.ZERO;
         }
+        BoundedTaskRunner<DeleteResult> runner = new BoundedTaskRunner<>(executor, deleteConcurrency);
+        submitDeletes(runner, container, objects);
+        return awaitDeletes(runner);
+    }
 
+    private static DeleteResult awaitDeletes(BoundedTaskRunner<DeleteResult> runner) throws IOException {
+        DeleteResult deleteResult = DeleteResult.ZERO;
+        for (DeleteResult result : runner.awaitAll()) {
+            deleteResult = deleteResult.add(result);
+        }
         return deleteResult;
     }
 
-    private DeleteResult deleteByPrefix(Collection<DirectoryOrObject> directoryOrObjects) {
-        long blobsDeleted = 0;
-        long bytesDeleted = 0;
-        DeleteResult dr;
+    private void submitDeletes(BoundedTaskRunner<DeleteResult> runner, Container container, Map<String, Long> objects)
+            throws IOException {
+        final int batchSize = bulkDeleteSize();
+        if (batchSize <= 0) {
+            for (Map.Entry<String, Long> object : objects.entrySet()) {
+                final String key = object.getKey();
+                final long size = object.getValue();
+                if (asyncClient != null) {
+                    runner.submitAsync(() -> deleteObjectAsync(container, key, size));
+                } else {
+                    runner.submit(() -> deleteObject(container, key, size));
+                }
+            }
+            return;
+        }
 
-        for (DirectoryOrObject directoryOrObject : directoryOrObjects) {
-            if (directoryOrObject.isObject()) {
+        Map<String, Long> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> object : objects.entrySet()) {
+            batch.put(object.getKey(), object.getValue());
+            if (batch.size() == batchSize) {
+                submitBulkDelete(runner, container, batch);
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            submitBulkDelete(runner, container, batch);
+        }
+    }
 
-                StoredObject obj = directoryOrObject.getAsObject();
-                bytesDeleted += obj.getContentLength();
-                blobsDeleted += 1;
-                obj.delete();
-            } else {
-                dr = deleteByPrefix(swift.listDirectory(directoryOrObject.getAsDirectory()));
-                blobsDeleted += dr.blobsDeleted();
-                bytesDeleted += dr.bytesDeleted();
+    private void submitBulkDelete(BoundedTaskRunner<DeleteResult> runner, Container container, Map<String, Long> objects)
+            throws IOException {
+        if (asyncClient == null) {
+            runner.submit(() -> bulkDelete(container, objects));
+            return;
+        }
+        runner.submitAsync(() -> bulkDeleteAsync(container, objects));
+    }
+
+    private DeleteResult deleteObject(Container container, String key, long size) throws IOException {
+        return retrying(SwiftOperation.DELETE, key, () -> {
+            try {
+                container.getObject(key).delete();
+                return new DeleteResult(1, size);
+            } catch (NotFoundException e) {
+                return DeleteResult.ZERO;
             }
+        });
+    }
+
+    private CompletableFuture<DeleteResult> deleteObjectAsync(Container container, String key, long size) {
+        return async(SwiftOperation.DELETE, key, () -> asyncClient.deleteObject(container.getName(), key))
+            .thenApply(existed -> existed ? new DeleteResult(1, size) : DeleteResult.ZERO);
+    }
+
+    /**
+     * Delete a batch with a single bulk-delete request. A batch the middleware finds too large, which it
+     * reports as a 413 in the body of a 200 response, is split in two, and later batches are kept to the
+     * size of the halves.
+     */
+    private DeleteResult bulkDelete(Container container, Map<String, Long> objects) throws IOException {
+        final SwiftRestClient.BulkDeleteResponse response;
+        try {
+            response = retrying(SwiftOperation.DELETE, container.getName(),
+                                () -> restClient.bulkDelete(container.getName(), objects.keySet()));
+        } catch (SwiftRestClient.ResponseException e) {
+            if (e.status() != HttpStatus.SC_REQUEST_TOO_LONG) {
+                throw e;
+            }
+            if (objects.size() == 1) {
+                final Map.Entry<String, Long> object = objects.entrySet().iterator().next();
+                return deleteObject(container, object.getKey(), object.getValue());
+            }
+            DeleteResult deleteResult = DeleteResult.ZERO;
+            for (Map<String, Long> half : split(objects)) {
+                deleteResult = deleteResult.add(bulkDelete(container, half));
+            }
+            return deleteResult;
         }
+        return bulkDeleteResult(response, objects);
+    }
 
-        return new DeleteResult(blobsDeleted, bytesDeleted);
+    private CompletableFuture<DeleteResult> bulkDeleteAsync(Container container, Map<String, Long> objects) {
+        return async(SwiftOperation.DELETE, container.getName(), () -> asyncClient.bulkDelete(container.getName(), objects.keySet()))
+            .handle((response, e) -> {
+                if (e == null) {
+                    try {
+                        return CompletableFuture.completedFuture(bulkDeleteResult(response, objects));
+                    } catch (IOException failure) {
+                        return CompletableFuture.<DeleteResult>failedFuture(failure);
+                    }
+                }
+                final Throwable cause = SwiftAsyncClient.unwrap(e);
+                if (!(cause instanceof SwiftRestClient.ResponseException) ||
+                    ((SwiftRestClient.ResponseException) cause).status() != HttpStatus.SC_REQUEST_TOO_LONG) {
+                    return CompletableFuture.<DeleteResult>failedFuture(cause);
+                }
+                if (objects.size() == 1) {
+                    final Map.Entry<String, Long> object = objects.entrySet().iterator().next();
+                    return deleteObjectAsync(container, object.getKey(), object.getValue());
+                }
+                final List<Map<String, Long>> halves = split(objects);
+                return bulkDeleteAsync(container, halves.get(0)).thenCombine(bulkDeleteAsync(container, halves.get(1)),
+                                                                             DeleteResult::add);
+            })
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Cut a batch rejected as too large in two, and size the following batches like the halves
+     */
+    private List<Map<String, Long>> split(Map<String, Long> objects) {
+        final int half = (objects.size() + 1) / 2;
+        if (half < bulkDeleteSize) {
+            bulkDeleteSize = half;
+        }
+        final List<Map<String, Long>> halves = new ArrayList<>(2);
+        Map<String, Long> current = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> object : objects.entrySet()) {
+            if (current.size() == half) {
+                halves.add(current);
+                current = new LinkedHashMap<>();
+            }
+            current.put(object.getKey(), object.getValue());
+        }
+        halves.add(current);
+        return halves;
+    }
+
+    /**
+     * Account for a bulk-delete the middleware carried out. Failures of the whole request were raised by
+     * the clients already; what is left to report here are the objects it could not delete.
+     */
+    private static DeleteResult bulkDeleteResult(SwiftRestClient.BulkDeleteResponse response, Map<String, Long> objects)
+            throws IOException {
+        if (!response.errors().isEmpty()) {
+            throw new IOException("Bulk delete failed for " + response.errors().size() + " of " + objects.size() +
+                                  " objects, first errors: " + response.errors().subList(0, Math.min(10, response.errors().size())));
+        }
+        final List<Long> sizes = new ArrayList<>(objects.values());
+        if (response.deleted() < sizes.size()) {
+            // the middleware only counts the objects that were gone already, so only the smallest of the
+            // batch are known to have been deleted
+            Collections.sort(sizes);
+        }
+        long bytesDeleted = 0;
+        for (int i = 0; i < Math.min(response.deleted(), sizes.size()); i++) {
+            bytesDeleted += sizes.get(i);
+        }
+        return new DeleteResult(response.deleted(), bytesDeleted);
+    }
+
+    /**
+     * @return objects per bulk-delete request, or 0 to delete objects one by one
+     */
+    private int bulkDeleteSize() {
+        int size = bulkDeleteSize;
+        if (size < 0) {
+            size = 0;
+            if (restClient != null && SwiftRepository.Swift.BULK_DELETE_SETTING.get(settings)) {
+                try {
+                    size = retrying(SwiftOperation.READ, "/info", restClient::maxDeletesPerRequest);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Unable to read bulk-delete limits from swift cluster info, deleting objects one by one", e);
+                }
+            }
+            bulkDeleteSize = size;
+        }
+        return size;
     }
 
     /**
-     * Close the store. No-op for us.
+     * @return entries asked for per listing page
+     */
+    int listPageSize() {
+        final int limit = listingLimit();
+        return limit > 0 ? Math.min(LIST_PAGE_SIZE, limit) : LIST_PAGE_SIZE;
+    }
+
+    /**
+     * @return whether a listing page holding the given number of entries may be followed by another one
+     */
+    boolean morePages(int entries) {
+        if (entries == 0) {
+            return false;
+        }
+        // a short page may be the cluster's own cap when it does not announce it
+        return entries >= listPageSize() || listingLimit() < 0;
+    }
+
+    private int listingLimit() {
+        int limit = listingLimit;
+        if (limit == 0) {
+            limit = -1;
+            if (restClient != null) {
+                try {
+                    final int announced = retrying(SwiftOperation.READ, "/info", restClient::containerListingLimit);
+                    if (announced > 0) {
+                        limit = announced;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Unable to read the listing limit from swift cluster info, paging listings to the end", e);
+                }
+            }
+            listingLimit = limit;
+        }
+        return limit;
+    }
+
+    /**
+     * Close the store, stopping the transfer threads.
      */
     @Override
-    public void close() {
+    public void close() throws IOException {
+        ThreadPool.terminate(executor, 10, TimeUnit.SECONDS);
+        if (restClient != null) {
+            restClient.close();
+        }
     }
 
     protected Settings getSettings() {
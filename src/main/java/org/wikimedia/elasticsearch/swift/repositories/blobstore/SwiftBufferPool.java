@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.Nullable;
+
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recycles the fixed-size buffers blob contents are copied through on their way to and from
+ * Swift, so that transfers do not allocate a buffer per blob. At most maxBuffers are ever
+ * allocated; once they are all lent out, callers carry on without one rather than wait, since
+ * a thread may already hold a buffer for a stream it has not closed yet.
+ */
+final class SwiftBufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final LongAdder exhausted = new LongAdder();
+
+    /**
+     * Constructor
+     * @param bufferSize size of each buffer
+     * @param maxBytes memory the buffers may take in total, lent out or idle
+     */
+    SwiftBufferPool(int bufferSize, long maxBytes) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = (int) Math.min(Integer.MAX_VALUE, maxBytes / bufferSize);
+    }
+
+    /**
+     * @return a buffer of {@link #bufferSize()} bytes, to be given back with {@link #release(byte[])},
+     * or null if all of them are in use
+     */
+    @Nullable
+    byte[] tryAcquire() {
+        byte[] buffer = free.poll();
+        if (buffer == null) {
+            if (allocated.incrementAndGet() <= maxBuffers) {
+                buffer = new byte[bufferSize];
+            } else {
+                allocated.decrementAndGet();
+                // one may have been given back since the poll
+                buffer = free.poll();
+                if (buffer == null) {
+                    exhausted.increment();
+                    return null;
+                }
+            }
+        }
+        inUse.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer obtained from {@link #tryAcquire()}. The caller must not use it anymore.
+     */
+    void release(byte[] buffer) {
+        assert buffer.length == bufferSize : "buffer of [" + buffer.length + "] bytes does not belong to the pool";
+        inUse.decrementAndGet();
+        free.offer(buffer);
+    }
+
+    /**
+     * @return the stream read through a pooled buffer returned when it is closed, or the stream
+     * itself if none is available
+     */
+    InputStream buffered(InputStream in) {
+        final byte[] buffer = tryAcquire();
+        return buffer == null ? in : new PooledBufferedInputStream(in, this, buffer);
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return bytes of the buffers currently lent out
+     */
+    long inUseBytes() {
+        return (long) inUse.get() * bufferSize;
+    }
+
+    /**
+     * @return bytes of the buffers allocated so far, lent out or idle
+     */
+    long allocatedBytes() {
+        return (long) allocated.get() * bufferSize;
+    }
+
+    long limitBytes() {
+        return (long) maxBuffers * bufferSize;
+    }
+
+    /**
+     * @return number of times a buffer was asked for while all of them were in use
+     */
+    long exhausted() {
+        return exhausted.sum();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Client-side compression of blob contents, the repository's compression setting or else
+ * repository_swift.compression. The codec of each object is recorded in its {@link SwiftBlobEncoding},
+ * so objects are decoded according to how they were stored, whatever the repository currently writes.
+ */
+public enum SwiftCompression {
+    /** Blobs are stored as they are */
+    NONE,
+    /** zlib streams, at the fastest compression level */
+    DEFLATE;
+
+    // Size of the source chunks fed to the deflater
+    private static final int ENCODE_BUFFER_SIZE = 8192;
+
+    // Size of the compressed chunks fed to the inflater
+    private static final int DECODE_BUFFER_SIZE = 8192;
+
+    /**
+     * Parse the value of compression or repository_swift.compression
+     */
+    public static SwiftCompression fromString(String value) {
+        try {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown compression [" + value + "], expected [none] or [deflate]", e);
+        }
+    }
+
+    /**
+     * Encode a blob as it is read. Closing the encoded stream releases the codec but leaves the source open.
+     * @param in blob contents
+     * @param blobSize exact number of bytes to read from the source
+     */
+    InputStream encode(InputStream in, long blobSize) {
+        if (this == NONE) {
+            return in;
+        }
+        return new DeflatingInputStream(in, blobSize);
+    }
+
+    /**
+     * Decode the contents of an object stored with this codec. Closing the decoded stream closes the source.
+     */
+    InputStream decode(InputStream in) {
+        if (this == NONE) {
+            return in;
+        }
+        return new InflaterInputStream(in, new Inflater(), DECODE_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Deflates exactly blobSize bytes of its source as they are read, without buffering the output
+     */
+    private static final class DeflatingInputStream extends InputStream {
+        private final InputStream source;
+        private final long blobSize;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] input = new byte[ENCODE_BUFFER_SIZE];
+        private long remaining;
+
+        DeflatingInputStream(InputStream source, long blobSize) {
+            this.source = source;
+            this.blobSize = blobSize;
+            this.remaining = blobSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!deflater.finished()) {
+                final int deflated = deflater.deflate(b, off, len);
+                if (deflated > 0) {
+                    return deflated;
+                }
+                if (deflater.needsInput()) {
+                    if (remaining == 0) {
+                        deflater.finish();
+                    } else {
+                        final int read = source.read(input, 0, (int) Math.min(input.length, remaining));
+                        if (read == -1) {
+                            throw new IOException("Blob stream ended after [" + (blobSize - remaining) + "] of [" + blobSize + "] bytes");
+                        }
+                        remaining -= read;
+                        deflater.setInput(input, 0, read);
+                    }
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+}
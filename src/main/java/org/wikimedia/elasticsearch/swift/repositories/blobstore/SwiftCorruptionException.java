@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import java.io.IOException;
+
+/**
+ * The bytes of a blob do not match the checksum Swift holds for it, either because the
+ * upload or the download was corrupted in transit.
+ */
+public class SwiftCorruptionException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+    private final String expected;
+    private final String actual;
+
+    /**
+     * Constructor
+     * @param key object key
+     * @param expected hex MD5 the blob should have
+     * @param actual hex MD5 or ETag that was found instead
+     */
+    public SwiftCorruptionException(String key, String expected, String actual) {
+        super("Blob object [" + key + "] is corrupted, expected MD5 [" + expected + "] but got [" + actual + "]");
+        this.key = key;
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    /**
+     * @return the key of the corrupted object
+     */
+    public String key() {
+        return key;
+    }
+
+    /**
+     * @return the hex MD5 the blob should have
+     */
+    public String expected() {
+        return expected;
+    }
+
+    /**
+     * @return the hex MD5 or ETag found instead
+     */
+    public String actual() {
+        return actual;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.io.Streams;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Client-side encryption of blob contents with AES-256-GCM, keyed by repository_swift.encryption.key.
+ * Each object is encrypted with its own key, derived from the master key and a random salt, in frames
+ * of a fixed size that are each authenticated on their own. The IV of a frame is its index and whether
+ * it is the last one, so frames can be neither reordered nor dropped from the end, and any frame can be
+ * decrypted without the ones before it: ranged and resumed reads only fetch the frames they need.
+ */
+final class SwiftEncryption {
+    // Name of the cipher in the Content-Type of encrypted objects
+    static final String CIPHER = "aes-256-gcm";
+
+    // Bounds of the frame size recorded with an object, those of repository_swift.encryption.frame_size
+    static final int MIN_FRAME_SIZE = 1024;
+    static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    private static final int SALT_BYTES = 16;
+    private static final int TAG_BYTES = 16;
+    private static final int IV_BYTES = 12;
+    private static final byte[] KEY_INFO = "swift-blob-key".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecretKey masterKey;
+    private final int frameSize;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructor
+     * @param masterKey AES-256 key the keys of the objects are derived from
+     * @param frameSize bytes of plaintext per frame of the blobs written
+     */
+    SwiftEncryption(SecretKey masterKey, int frameSize) {
+        this.masterKey = masterKey;
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * @return bytes of plaintext per frame of the blobs written
+     */
+    int frameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return a fresh salt to derive the key of a new object from
+     */
+    byte[] newSalt() {
+        final byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * @return bytes taken in the object by a full frame
+     */
+    static int sealedFrameSize(int frameSize) {
+        return frameSize + TAG_BYTES;
+    }
+
+    /**
+     * @return size of the object holding a blob of plaintextLength bytes
+     */
+    static long encryptedLength(long plaintextLength, int frameSize) {
+        final long frames = plaintextLength == 0 ? 1 : (plaintextLength + frameSize - 1) / frameSize;
+        return plaintextLength + frames * TAG_BYTES;
+    }
+
+    /**
+     * Encrypt a blob as it is read. Closing the encrypted stream closes the source.
+     * @param plaintext blob contents
+     * @param plaintextLength exact number of bytes to read from the source, or -1 to read it to its end
+     * @param salt salt of the object
+     * @param frameSize bytes of plaintext per frame
+     */
+    InputStream encrypt(InputStream plaintext, long plaintextLength, byte[] salt, int frameSize) {
+        return new EncryptingInputStream(plaintext, plaintextLength, objectKey(salt), frameSize);
+    }
+
+    /**
+     * Decrypt frames of an object as they are read. Closing the decrypted stream closes the source.
+     * @param ciphertext object contents, from the start of a frame. To tell whether the last frame read is
+     *                   the last of the object, the source must include the byte after it, if any.
+     * @param salt salt of the object
+     * @param frameSize bytes of plaintext per frame of the object
+     * @param firstFrame index of the frame the source starts at
+     * @param frames number of frames to decrypt, or -1 to decrypt to the end of the object
+     */
+    InputStream decrypt(InputStream ciphertext, byte[] salt, int frameSize, long firstFrame, long frames) {
+        return new DecryptingInputStream(ciphertext, objectKey(salt), frameSize, firstFrame, frames);
+    }
+
+    private SecretKey objectKey(byte[] salt) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(masterKey);
+            mac.update(salt);
+            return new SecretKeySpec(mac.doFinal(KEY_INFO), "AES");
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available on every JVM, and the master key was checked when it was loaded
+            throw new IllegalStateException("Unable to derive the key of an encrypted blob", e);
+        }
+    }
+
+    private static Cipher cipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM is not available", e);
+        }
+    }
+
+    private static GCMParameterSpec iv(long frame, boolean last) {
+        final byte[] iv = new byte[IV_BYTES];
+        for (int i = 0; i < Long.BYTES; i++) {
+            iv[i] = (byte) (frame >>> (Long.SIZE - Byte.SIZE * (i + 1)));
+        }
+        iv[IV_BYTES - 1] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_BYTES * Byte.SIZE, iv);
+    }
+
+    private static final class EncryptingInputStream extends InputStream {
+        private final InputStream source;
+        private final long length;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final int frameSize;
+        // a frame of plaintext, and when the length is unknown, the first byte of the next one
+        private final byte[] plain;
+        private final byte[] sealed;
+        private int carried;
+        private long consumed;
+        private long frame;
+        private int position;
+        private int limit;
+        private boolean sealedLast;
+
+        EncryptingInputStream(InputStream source, long length, SecretKey key, int frameSize) {
+            this.source = source;
+            this.length = length;
+            this.key = key;
+            this.cipher = cipher();
+            this.frameSize = frameSize;
+            this.plain = new byte[frameSize + 1];
+            this.sealed = new byte[sealedFrameSize(frameSize)];
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (sealedLast) {
+                    return -1;
+                }
+                sealNextFrame();
+            }
+            final int read = Math.min(len, limit - position);
+            System.arraycopy(sealed, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        private void sealNextFrame() throws IOException {
+            final int frameLength;
+            final boolean last;
+            if (length >= 0) {
+                frameLength = (int) Math.min(frameSize, length - consumed);
+                final int read = Streams.readFully(source, plain, 0, frameLength);
+                if (read < frameLength) {
+                    throw new IOException("Blob stream ended after [" + (consumed + read) + "] of [" + length + "] bytes");
+                }
+                consumed += frameLength;
+                last = consumed == length;
+            } else {
+                final int filled = carried + Streams.readFully(source, plain, carried, plain.length - carried);
+                last = filled <= frameSize;
+                frameLength = Math.min(filled, frameSize);
+            }
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, iv(frame, last));
+                limit = cipher.doFinal(plain, 0, frameLength, sealed, 0);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to encrypt frame [" + frame + "]", e);
+            }
+            position = 0;
+            if (length < 0 && !last) {
+                plain[0] = plain[frameSize];
+                carried = 1;
+            }
+            frame++;
+            sealedLast = last;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    private static final class DecryptingInputStream extends InputStream {
+        private final InputStream source;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final int frameSize;
+        // a sealed frame, and the first byte of the next one
+        private final byte[] sealed;
+        private final byte[] plain;
+        private int carried;
+        private long frame;
+        private long framesLeft;
+        private int position;
+        private int limit;
+        private boolean done;
+
+        DecryptingInputStream(InputStream source, SecretKey key, int frameSize, long firstFrame, long frames) {
+            this.source = source;
+            this.key = key;
+            this.cipher = cipher();
+            this.frameSize = frameSize;
+            this.sealed = new byte[sealedFrameSize(frameSize) + 1];
+            this.plain = new byte[frameSize];
+            this.frame = firstFrame;
+            this.framesLeft = frames;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (done || framesLeft == 0) {
+                    return -1;
+                }
+                openNextFrame();
+            }
+            final int read = Math.min(len, limit - position);
+            System.arraycopy(plain, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        private void openNextFrame() throws IOException {
+            final int filled = carried + Streams.readFully(source, sealed, carried, sealed.length - carried);
+            final boolean last = filled < sealed.length;
+            final int frameLength = Math.min(filled, sealedFrameSize(frameSize));
+            if (frameLength < TAG_BYTES) {
+                throw new IOException("Encrypted blob ends within frame [" + frame + "]");
+            }
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, iv(frame, last));
+                limit = cipher.doFinal(sealed, 0, frameLength, plain, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Encrypted blob failed authentication at frame [" + frame + "], it was modified, " +
+                                      "truncated, or written with another key", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to decrypt frame [" + frame + "]", e);
+            }
+            position = 0;
+            if (!last) {
+                sealed[0] = sealed[sealed.length - 1];
+                carried = 1;
+            }
+            frame++;
+            if (framesLeft > 0) {
+                framesLeft--;
+            }
+            done = last;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.Nullable;
+import org.javaswift.joss.exception.CommandException;
+import org.javaswift.joss.model.Container;
+import org.javaswift.joss.model.DirectoryOrObject;
+import org.javaswift.joss.model.StoredObject;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Lists a container page by page, with marker requests of {@link SwiftBlobStore#listPageSize()} entries.
+ * Each page is held as plain arrays of names and sizes, and the next page is fetched in the background
+ * while the current one is handed to the caller: on a transfer thread, or with the async transport,
+ * as a pending request.
+ */
+final class SwiftListing {
+
+    private SwiftListing() {
+    }
+
+    /**
+     * Handles the pages of a listing, in name order
+     */
+    interface PageConsumer {
+        void accept(Page page) throws IOException;
+    }
+
+    /**
+     * List everything under a prefix
+     * @param blobStore store to issue the requests with
+     * @param container container to list
+     * @param prefix only list names starting with this prefix
+     * @param delimiter roll up names containing this character after the prefix into pseudo-directories, or null
+     * @param consumer receives the pages, on the calling thread
+     */
+    static void list(SwiftBlobStore blobStore, Container container, String prefix, @Nullable Character delimiter,
+                     PageConsumer consumer) throws IOException {
+        Page page = fetch(blobStore, container, prefix, delimiter, null);
+        while (true) {
+            Future<Page> next = null;
+            if (blobStore.morePages(page.size())) {
+                next = prefetch(blobStore, container, prefix, delimiter, page.last());
+            }
+            try {
+                consumer.accept(page);
+            } catch (IOException | RuntimeException e) {
+                if (next != null) {
+                    next.cancel(true);
+                }
+                throw e;
+            }
+            if (next == null) {
+                return;
+            }
+            if (next instanceof FutureTask) {
+                // fetch the page here if no transfer thread picked it up yet; a no-op otherwise
+                ((FutureTask<Page>) next).run();
+            }
+            page = await(next, prefix);
+        }
+    }
+
+    /**
+     * Start fetching the page after a marker
+     */
+    private static Future<Page> prefetch(SwiftBlobStore blobStore, Container container, String prefix,
+                                         @Nullable Character delimiter, String marker) {
+        if (blobStore.asyncClient() != null) {
+            return fetchAsync(blobStore, container, prefix, delimiter, marker);
+        }
+        final FutureTask<Page> task = new FutureTask<>(() -> fetch(blobStore, container, prefix, delimiter, marker));
+        try {
+            blobStore.executor().execute(task);
+        } catch (RejectedExecutionException e) {
+            // fetched by the caller instead
+        }
+        return task;
+    }
+
+    private static Page await(Future<Page> task, String prefix) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException("Interrupted while listing [" + prefix + "]");
+            ie.initCause(e);
+            throw ie;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Unable to list [" + prefix + "]", e.getCause());
+        }
+    }
+
+    private static Page fetch(SwiftBlobStore blobStore, Container container, String prefix, @Nullable Character delimiter,
+                              @Nullable String marker) throws IOException {
+        if (blobStore.asyncClient() != null) {
+            return SwiftBlobStore.await(fetchAsync(blobStore, container, prefix, delimiter, marker));
+        }
+        final Page page = new Page();
+        final SwiftRestClient restClient = blobStore.restClient();
+        try {
+            if (restClient != null) {
+                blobStore.retrying(SwiftOperation.LIST, prefix, () -> {
+                    page.clear();
+                    return restClient.listObjects(container.getName(), prefix, delimiter, marker, blobStore.listPageSize(), page);
+                });
+            } else if (delimiter != null) {
+                Collection<DirectoryOrObject> entries = blobStore.retrying(SwiftOperation.LIST, prefix,
+                    () -> container.listDirectory(prefix, delimiter, marker == null ? "" : marker, blobStore.listPageSize()));
+                for (DirectoryOrObject entry : entries) {
+                    if (entry.isObject()) {
+                        page.object(entry.getName(), entry.getAsObject().getContentLength(), entry.getAsObject().getContentType());
+                    } else {
+                        page.subdir(entry.getName());
+                    }
+                }
+            } else {
+                Collection<StoredObject> entries = blobStore.retrying(SwiftOperation.LIST, prefix,
+                    () -> container.list(prefix, marker == null ? "" : marker, blobStore.listPageSize()));
+                for (StoredObject entry : entries) {
+                    page.object(entry.getName(), entry.getContentLength(), entry.getContentType());
+                }
+            }
+        } catch (CommandException e) {
+            throw new IOException("Unable to list [" + prefix + "] after [" + marker + "]", e);
+        }
+        return page;
+    }
+
+    private static CompletableFuture<Page> fetchAsync(SwiftBlobStore blobStore, Container container, String prefix,
+                                                      @Nullable Character delimiter, @Nullable String marker) {
+        final Page page = new Page();
+        final SwiftAsyncClient asyncClient = blobStore.asyncClient();
+        return blobStore.async(SwiftOperation.LIST, prefix, () -> {
+            page.clear();
+            return asyncClient.listObjects(container.getName(), prefix, delimiter, marker, blobStore.listPageSize(), page);
+        }).thenApply(count -> page);
+    }
+
+    /**
+     * One page of a listing: object names with the sizes of the blobs they hold, and pseudo-directories
+     */
+    static final class Page implements SwiftRestClient.ListingConsumer {
+        private static final long DIRECTORY = -1;
+
+        private String[] names = new String[16];
+        private long[] sizes = new long[16];
+        private int size;
+
+        @Override
+        public void object(String name, long bytes, @Nullable String contentType) {
+            add(name, SwiftBlobEncoding.blobLength(contentType, bytes));
+        }
+
+        @Override
+        public void subdir(String prefix) {
+            add(prefix, DIRECTORY);
+        }
+
+        private void add(String name, long bytes) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                sizes = Arrays.copyOf(sizes, size * 2);
+            }
+            names[size] = name;
+            sizes[size] = bytes;
+            size++;
+        }
+
+        private void clear() {
+            Arrays.fill(names, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * @return number of entries
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return full name of an object, or prefix of a pseudo-directory ending with the delimiter
+         */
+        String name(int index) {
+            return names[index];
+        }
+
+        /**
+         * @return size of the blob held by an object, before it was encoded
+         */
+        long bytes(int index) {
+            return sizes[index];
+        }
+
+        /**
+         * @return whether an entry is a pseudo-directory
+         */
+        boolean isDirectory(int index) {
+            return sizes[index] == DIRECTORY;
+        }
+
+        /**
+         * @return the last name of the page, the marker of the next one
+         */
+        String last() {
+            return names[size - 1];
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.blobstore.BlobMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.repositories.blobstore.BlobStoreRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Results of recent blob listings, evicted least recently used first and expired after a TTL.
+ *
+ * Listings are grouped by the directory they list, which is the only one whose changes they can
+ * see: writes and deletes made through the blob store drop the listings of the object's directory.
+ * A listing that raced with such a change is never cached: each change bumps a version, and a
+ * result is only stored if the version did not move while it was being listed.
+ *
+ * Listings of repository and shard generations (index-N blobs) are never cached, as reading a
+ * stale generation would make a snapshot or a delete start from outdated metadata.
+ */
+final class SwiftListingCache {
+    private final int maxSize;
+    private final long ttlNanos;
+
+    // Directory to its listings by prefix; access ordered, for LRU eviction of whole directories
+    private final LinkedHashMap<String, Map<String, Entry>> directories = new LinkedHashMap<>(16, 0.75f, true);
+    private int size;
+    private long version;
+
+    SwiftListingCache(Settings settings) {
+        this.maxSize = SwiftRepository.Swift.LISTING_CACHE_SIZE_SETTING.get(settings);
+        this.ttlNanos = SwiftRepository.Swift.LISTING_CACHE_TTL_SETTING.get(settings).nanos();
+    }
+
+    private boolean enabled() {
+        return maxSize > 0 && ttlNanos > 0;
+    }
+
+    /**
+     * @return the version to pass to {@link #put} for a listing started now
+     */
+    synchronized long version() {
+        return version;
+    }
+
+    /**
+     * @param keyPath directory the listed names are relative to
+     * @param prefix listed prefix
+     * @return the cached listing, or null
+     */
+    @Nullable
+    synchronized Map<String, BlobMetaData> get(String keyPath, String prefix) {
+        if (!enabled()) {
+            return null;
+        }
+        final Map<String, Entry> listings = directories.get(keyPath);
+        final Entry entry = listings == null ? null : listings.get(prefix);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.createdNanos > ttlNanos) {
+            listings.remove(prefix);
+            size--;
+            if (listings.isEmpty()) {
+                directories.remove(keyPath);
+            }
+            return null;
+        }
+        return entry.blobs;
+    }
+
+    /**
+     * Cache a listing, unless something changed since it started or it lists generations
+     * @param version {@link #version()} before the listing was started
+     */
+    synchronized void put(String keyPath, String prefix, Map<String, BlobMetaData> blobs, long version) {
+        if (!enabled() || version != this.version || listsGenerations(prefix.substring(keyPath.length()), blobs)) {
+            return;
+        }
+        if (directories.computeIfAbsent(keyPath, directory -> new HashMap<>()).put(prefix, new Entry(blobs, System.nanoTime())) == null) {
+            size++;
+        }
+        final Iterator<Map<String, Entry>> eldest = directories.values().iterator();
+        while (size > maxSize && eldest.hasNext()) {
+            size -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drop the listings that could include an object
+     */
+    synchronized void invalidate(String key) {
+        version++;
+        drop(key.substring(0, key.lastIndexOf('/') + 1));
+    }
+
+    /**
+     * Drop the listings that could include an object under a path: those of the path's directory
+     * and of all the directories below it
+     */
+    synchronized void invalidatePrefix(String path) {
+        version++;
+        final String directory = path.substring(0, path.lastIndexOf('/') + 1);
+        if (directory.length() < path.length()) {
+            // a single object
+            drop(directory);
+            return;
+        }
+        final Iterator<Map.Entry<String, Map<String, Entry>>> entries = directories.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<String, Map<String, Entry>> entry = entries.next();
+            if (entry.getKey().startsWith(directory)) {
+                size -= entry.getValue().size();
+                entries.remove();
+            }
+        }
+    }
+
+    private void drop(String directory) {
+        final Map<String, Entry> listings = directories.remove(directory);
+        if (listings != null) {
+            size -= listings.size();
+        }
+    }
+
+    private static boolean listsGenerations(String prefix, Map<String, BlobMetaData> blobs) {
+        return prefix.startsWith(BlobStoreRepository.INDEX_FILE_PREFIX)
+            || blobs.keySet().stream().anyMatch(name -> name.startsWith(BlobStoreRepository.INDEX_FILE_PREFIX));
+    }
+
+    private static final class Entry {
+        final Map<String, BlobMetaData> blobs;
+        final long createdNanos;
+
+        Entry(Map<String, BlobMetaData> blobs, long createdNanos) {
+            this.blobs = blobs;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
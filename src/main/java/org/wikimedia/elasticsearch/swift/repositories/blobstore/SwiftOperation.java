@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+/**
+ * Classes of Swift requests, as retried and accounted for by the blob store
+ */
+public enum SwiftOperation {
+    /** Object GETs and HEADs */
+    READ,
+    /** Object and manifest PUTs */
+    WRITE,
+    /** Container listings */
+    LIST,
+    /** Object DELETEs and bulk-deletes */
+    DELETE
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Statistics of the Swift requests made by a repository on one node, since the repository was opened
+ */
+public final class SwiftRepositoryStats implements Writeable, ToXContentFragment {
+    // Upper bounds of the latency histogram buckets in milliseconds, followed by an unbounded bucket
+    static final long[] LATENCY_BUCKETS_MILLIS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private final long bytesUploaded;
+    private final long bytesDownloaded;
+    private final Map<SwiftOperation, OperationStats> operations;
+    private final BufferStats transferBuffers;
+
+    SwiftRepositoryStats(long bytesUploaded, long bytesDownloaded, Map<SwiftOperation, OperationStats> operations,
+                         BufferStats transferBuffers) {
+        this.bytesUploaded = bytesUploaded;
+        this.bytesDownloaded = bytesDownloaded;
+        this.operations = Collections.unmodifiableMap(operations);
+        this.transferBuffers = transferBuffers;
+    }
+
+    public SwiftRepositoryStats(StreamInput in) throws IOException {
+        this.bytesUploaded = in.readVLong();
+        this.bytesDownloaded = in.readVLong();
+        final int size = in.readVInt();
+        final Map<SwiftOperation, OperationStats> operations = new EnumMap<>(SwiftOperation.class);
+        for (int i = 0; i < size; i++) {
+            operations.put(in.readEnum(SwiftOperation.class), new OperationStats(in));
+        }
+        this.operations = Collections.unmodifiableMap(operations);
+        this.transferBuffers = new BufferStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(bytesUploaded);
+        out.writeVLong(bytesDownloaded);
+        out.writeVInt(operations.size());
+        for (Map.Entry<SwiftOperation, OperationStats> operation : operations.entrySet()) {
+            out.writeEnum(operation.getKey());
+            operation.getValue().writeTo(out);
+        }
+        transferBuffers.writeTo(out);
+    }
+
+    /**
+     * @return bytes sent in object PUTs
+     */
+    public long bytesUploaded() {
+        return bytesUploaded;
+    }
+
+    /**
+     * @return bytes received in object GETs
+     */
+    public long bytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /**
+     * @return statistics of a class of requests
+     */
+    public OperationStats operation(SwiftOperation operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * @return occupancy of the pool of transfer buffers
+     */
+    public BufferStats transferBuffers() {
+        return transferBuffers;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.humanReadableField("bytes_uploaded_in_bytes", "bytes_uploaded", new ByteSizeValue(bytesUploaded));
+        builder.humanReadableField("bytes_downloaded_in_bytes", "bytes_downloaded", new ByteSizeValue(bytesDownloaded));
+        builder.startObject("operations");
+        for (Map.Entry<SwiftOperation, OperationStats> operation : operations.entrySet()) {
+            builder.startObject(operation.getKey().name().toLowerCase(Locale.ROOT));
+            operation.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.startObject("transfer_buffers");
+        transferBuffers.toXContent(builder, params);
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * @return index of the latency histogram bucket of a request
+     */
+    static int latencyBucket(long millis) {
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MILLIS.length && millis > LATENCY_BUCKETS_MILLIS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    /**
+     * Statistics of a class of requests
+     */
+    public static final class OperationStats implements Writeable, ToXContentFragment {
+        private final long requests;
+        // request counts by HTTP status, "2xx" for successes and "error" for requests without a response
+        private final Map<String, Long> statuses;
+        private final long retries;
+        private final int inFlight;
+        private final int inFlightLimit;
+        private final long latencySumMillis;
+        private final long[] latencyBuckets;
+
+        OperationStats(long requests, Map<String, Long> statuses, long retries, int inFlight, int inFlightLimit,
+                       long latencySumMillis, long[] latencyBuckets) {
+            this.requests = requests;
+            this.statuses = Collections.unmodifiableMap(statuses);
+            this.retries = retries;
+            this.inFlight = inFlight;
+            this.inFlightLimit = inFlightLimit;
+            this.latencySumMillis = latencySumMillis;
+            this.latencyBuckets = latencyBuckets;
+        }
+
+        OperationStats(StreamInput in) throws IOException {
+            this.requests = in.readVLong();
+            this.statuses = Collections.unmodifiableMap(in.readMap(StreamInput::readString, StreamInput::readVLong));
+            this.retries = in.readVLong();
+            this.inFlight = in.readVInt();
+            this.inFlightLimit = in.readVInt();
+            this.latencySumMillis = in.readVLong();
+            this.latencyBuckets = in.readVLongArray();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(requests);
+            out.writeMap(statuses, StreamOutput::writeString, StreamOutput::writeVLong);
+            out.writeVLong(retries);
+            out.writeVInt(inFlight);
+            out.writeVInt(inFlightLimit);
+            out.writeVLong(latencySumMillis);
+            out.writeVLongArray(latencyBuckets);
+        }
+
+        /**
+         * @return number of requests completed, retries included
+         */
+        public long requests() {
+            return requests;
+        }
+
+        /**
+         * @return number of completed requests by HTTP status
+         */
+        public Map<String, Long> statuses() {
+            return statuses;
+        }
+
+        public long retries() {
+            return retries;
+        }
+
+        public int inFlight() {
+            return inFlight;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("requests", requests);
+            builder.field("statuses", statuses);
+            builder.field("retries", retries);
+            builder.field("in_flight", inFlight);
+            builder.field("in_flight_limit", inFlightLimit);
+            builder.startObject("latency");
+            builder.field("sum_millis", latencySumMillis);
+            builder.startObject("histogram");
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                builder.field(i < LATENCY_BUCKETS_MILLIS.length ? Long.toString(LATENCY_BUCKETS_MILLIS[i]) : "inf",
+                              latencyBuckets[i]);
+            }
+            builder.endObject();
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    /**
+     * Occupancy of a buffer pool
+     */
+    public static final class BufferStats implements Writeable, ToXContentFragment {
+        private final long inUseBytes;
+        private final long allocatedBytes;
+        private final long limitBytes;
+        private final long exhausted;
+
+        BufferStats(long inUseBytes, long allocatedBytes, long limitBytes, long exhausted) {
+            this.inUseBytes = inUseBytes;
+            this.allocatedBytes = allocatedBytes;
+            this.limitBytes = limitBytes;
+            this.exhausted = exhausted;
+        }
+
+        BufferStats(StreamInput in) throws IOException {
+            this.inUseBytes = in.readVLong();
+            this.allocatedBytes = in.readVLong();
+            this.limitBytes = in.readVLong();
+            this.exhausted = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(inUseBytes);
+            out.writeVLong(allocatedBytes);
+            out.writeVLong(limitBytes);
+            out.writeVLong(exhausted);
+        }
+
+        /**
+         * @return bytes of the buffers lent out to transfers
+         */
+        public long inUseBytes() {
+            return inUseBytes;
+        }
+
+        /**
+         * @return bytes of the buffers allocated, lent out or idle
+         */
+        public long allocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return number of times a transfer found all buffers in use and went without one
+         */
+        public long exhausted() {
+            return exhausted;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.humanReadableField("in_use_in_bytes", "in_use", new ByteSizeValue(inUseBytes));
+            builder.humanReadableField("allocated_in_bytes", "allocated", new ByteSizeValue(allocatedBytes));
+            builder.humanReadableField("limit_in_bytes", "limit", new ByteSizeValue(limitBytes));
+            builder.field("exhausted", exhausted);
+            return builder;
+        }
+    }
+}
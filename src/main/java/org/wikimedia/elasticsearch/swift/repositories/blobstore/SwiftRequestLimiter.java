@@ -0,0 +1,292 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.apache.http.HttpStatus;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.javaswift.joss.exception.CommandException;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftService;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps a repository from flooding the Swift proxies. Requests are paced by a token bucket
+ * shared by all requests of the repository, and each class of requests has its own cap on
+ * requests in flight.
+ *
+ * Both limits adapt to the proxies: when they answer 429 or 503, the request rate and the
+ * in-flight cap of the class are halved, then grow back while requests get a 2xx. A download
+ * gives its slot back once its response headers arrive: the ranged GETs of a parallel download
+ * must not wait behind the download they belong to.
+ */
+final class SwiftRequestLimiter {
+    // Throttling responses closer than this count as one
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    // Time for the request rate to recover from 0 to its maximum
+    private static final double RATE_RECOVERY_SECONDS = 10;
+
+    private final Map<SwiftOperation, Gate> gates = new EnumMap<>(SwiftOperation.class);
+
+    // Configured rate in requests per second, 0 when unlimited
+    private final double maxRate;
+
+    // How long a request waits for a slot before failing
+    private final TimeValue maxWait;
+
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long lastDecreaseNanos;
+
+    SwiftRequestLimiter(Settings settings) {
+        this.maxRate = SwiftRepository.Swift.MAX_REQUESTS_PER_SEC_SETTING.get(settings);
+        this.rate = maxRate;
+        // allow a second worth of requests in a burst
+        this.tokens = maxRate;
+        this.lastRefillNanos = System.nanoTime();
+        this.lastDecreaseNanos = lastRefillNanos - DECREASE_INTERVAL_NANOS;
+        this.maxWait = SwiftRepository.Swift.MAX_IN_FLIGHT_WAIT_SETTING.get(settings);
+        gates.put(SwiftOperation.READ, new Gate(SwiftOperation.READ, SwiftRepository.Swift.MAX_IN_FLIGHT_READS_SETTING.get(settings)));
+        gates.put(SwiftOperation.WRITE, new Gate(SwiftOperation.WRITE, SwiftRepository.Swift.MAX_IN_FLIGHT_WRITES_SETTING.get(settings)));
+        gates.put(SwiftOperation.LIST, new Gate(SwiftOperation.LIST, SwiftRepository.Swift.MAX_IN_FLIGHT_LISTS_SETTING.get(settings)));
+        gates.put(SwiftOperation.DELETE, new Gate(SwiftOperation.DELETE,
+                                                  SwiftRepository.Swift.MAX_IN_FLIGHT_DELETES_SETTING.get(settings)));
+    }
+
+    /**
+     * Run a single request once the limits allow it
+     * @param operation class of the request
+     * @param request the request
+     * @return the result of the request
+     * @throws IOException also if no slot frees up within the configured wait
+     */
+    <T> T execute(SwiftOperation operation, CheckedSupplier<T, IOException> request) throws IOException {
+        final Gate gate = gates.get(operation);
+        gate.acquire(maxWait);
+        final T result;
+        int status = 0;
+        try {
+            acquireToken();
+            result = request.get();
+        } catch (IOException | RuntimeException e) {
+            final boolean throttled = isThrottled(e);
+            if (throttled) {
+                slowDown();
+            }
+            gate.release(throttled, false);
+            throw e;
+        } finally {
+            status = SwiftService.takeLastStatus();
+        }
+        gate.release(false, isSuccess(status));
+        return result;
+    }
+
+    /**
+     * Start a single non-blocking request once the limits allow it. The calling thread waits for a free
+     * slot and a token, and the slot is given back when the request completes, which for a download is
+     * when its headers arrive.
+     * @param operation class of the request
+     * @param request sends the request
+     * @return the pending result of the request, cancelling it aborts the request
+     */
+    <T> CompletableFuture<SwiftAsyncClient.Response<T>> executeAsync(SwiftOperation operation,
+                                                                     Supplier<CompletableFuture<SwiftAsyncClient.Response<T>>> request)
+        throws IOException {
+        final Gate gate = gates.get(operation);
+        gate.acquire(maxWait);
+        final CompletableFuture<SwiftAsyncClient.Response<T>> future;
+        try {
+            acquireToken();
+            future = request.get();
+        } catch (IOException | RuntimeException e) {
+            gate.release(false, false);
+            throw e;
+        }
+        // completed from the request rather than chained to it, so the slot is given back even if the result is cancelled
+        final CompletableFuture<SwiftAsyncClient.Response<T>> result = new CompletableFuture<>();
+        future.whenComplete((response, e) -> {
+            if (e != null) {
+                final Throwable cause = SwiftAsyncClient.unwrap(e);
+                final boolean throttled = cause instanceof Exception && isThrottled((Exception) cause);
+                if (throttled) {
+                    slowDown();
+                }
+                gate.release(throttled, false);
+                result.completeExceptionally(cause);
+                return;
+            }
+            gate.release(false, isSuccess(response.status()));
+            if (!result.complete(response)) {
+                SwiftAsyncClient.release(response);
+            }
+        });
+        result.whenComplete((response, e) -> {
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return number of requests of a class currently in flight
+     */
+    int inFlight(SwiftOperation operation) {
+        return gates.get(operation).inFlight();
+    }
+
+    /**
+     * @return current in-flight cap of a class of requests
+     */
+    int limit(SwiftOperation operation) {
+        return gates.get(operation).limit();
+    }
+
+    private void acquireToken() throws InterruptedIOException {
+        if (maxRate <= 0) {
+            return;
+        }
+        final long waitNanos;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final double elapsed = (now - lastRefillNanos) / 1e9;
+            lastRefillNanos = now;
+            if (now - lastDecreaseNanos > TimeUnit.SECONDS.toNanos(1)) {
+                rate = Math.min(maxRate, rate + maxRate * elapsed / RATE_RECOVERY_SECONDS);
+            }
+            tokens = Math.min(maxRate, tokens + rate * elapsed);
+            // take the token now, even if it is only available later
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException ie = new InterruptedIOException("Interrupted while waiting to send a swift request");
+                ie.initCause(e);
+                throw ie;
+            }
+        }
+    }
+
+    private synchronized void slowDown() {
+        final long now = System.nanoTime();
+        if (maxRate > 0 && now - lastDecreaseNanos >= DECREASE_INTERVAL_NANOS) {
+            rate = Math.max(maxRate / 64, rate / 2);
+            lastDecreaseNanos = now;
+        }
+    }
+
+    /**
+     * @return whether a response status lets the limits grow back
+     */
+    static boolean isSuccess(int status) {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * @return whether the proxies rejected a request because they are overloaded
+     */
+    static boolean isThrottled(Exception e) {
+        int status = 0;
+        if (e instanceof SwiftRestClient.ResponseException) {
+            status = ((SwiftRestClient.ResponseException) e).status();
+        } else if (e instanceof CommandException) {
+            status = ((CommandException) e).getHttpStatusCode();
+        }
+        return status == SwiftRetryPolicy.TOO_MANY_REQUESTS || status == HttpStatus.SC_SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Cap on the requests of a class in flight: halved on throttling, raised by one after
+     * as many successful requests as the current cap. Other failures leave it as it is.
+     */
+    private static final class Gate {
+        private final SwiftOperation operation;
+        private final int max;
+        private int limit;
+        private int inFlight;
+        private int successes;
+        private long lastDecreaseNanos;
+
+        Gate(SwiftOperation operation, int max) {
+            this.operation = operation;
+            this.max = max;
+            this.limit = max;
+            this.lastDecreaseNanos = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+        }
+
+        synchronized void acquire(TimeValue maxWait) throws IOException {
+            final long deadline = System.nanoTime() + maxWait.nanos();
+            try {
+                while (inFlight >= limit) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new IOException("No slot for a swift " + operation + " request freed up within [" + maxWait + "], [" +
+                                              inFlight + "] in flight");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException ie = new InterruptedIOException("Interrupted while waiting to send a swift request");
+                ie.initCause(e);
+                throw ie;
+            }
+            inFlight++;
+        }
+
+        synchronized void release(boolean throttled, boolean succeeded) {
+            inFlight--;
+            if (throttled) {
+                final long now = System.nanoTime();
+                if (now - lastDecreaseNanos >= DECREASE_INTERVAL_NANOS) {
+                    limit = Math.max(1, limit / 2);
+                    successes = 0;
+                    lastDecreaseNanos = now;
+                }
+            } else if (succeeded && limit < max && ++successes >= limit) {
+                limit++;
+                successes = 0;
+            }
+            notifyAll();
+        }
+
+        synchronized int inFlight() {
+            return inFlight;
+        }
+
+        synchronized int limit() {
+            return limit;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.apache.http.HttpStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.common.CheckedRunnable;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.javaswift.joss.exception.CommandException;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystemException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Retries Swift requests failing with a 5xx, a 429 or a broken connection, waiting an
+ * exponentially growing delay between attempts. With jitter, each delay is drawn between
+ * half and all of its nominal value so that requests failing together do not retry together.
+ */
+final class SwiftRetryPolicy {
+    private static final Logger logger = LogManager.getLogger(SwiftRetryPolicy.class);
+
+    static final int TOO_MANY_REQUESTS = 429;
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final boolean jitter;
+
+    private final Map<SwiftOperation, LongAdder> retries = new EnumMap<>(SwiftOperation.class);
+
+    SwiftRetryPolicy(Settings settings) {
+        this.maxRetries = SwiftRepository.Swift.RETRY_MAX_RETRIES_SETTING.get(settings);
+        this.baseDelayMillis = SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING.get(settings).millis();
+        this.maxDelayMillis = Math.max(baseDelayMillis, SwiftRepository.Swift.RETRY_MAX_DELAY_SETTING.get(settings).millis());
+        this.jitter = SwiftRepository.Swift.RETRY_JITTER_SETTING.get(settings);
+        for (SwiftOperation operation : SwiftOperation.values()) {
+            retries.put(operation, new LongAdder());
+        }
+    }
+
+    /**
+     * Run a request, retrying it while it fails with a retryable error
+     * @param operation class of the request
+     * @param target object or prefix the request is about, for logging
+     * @param request the request; must be safe to run again after a failure
+     * @param rewind run before each retry, or null
+     * @return the result of the first successful attempt
+     */
+    <T> T run(SwiftOperation operation, String target, CheckedSupplier<T, IOException> request,
+              @Nullable CheckedRunnable<IOException> rewind) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            if (attempt > 1 && rewind != null) {
+                rewind.run();
+            }
+            try {
+                return request.get();
+            } catch (IOException | RuntimeException e) {
+                if (attempt > maxRetries || !isRetryable(e)) {
+                    throw e;
+                }
+                logger.debug(new ParameterizedMessage("{} of [{}] failed, attempt [{}] of [{}], retrying",
+                                                      operation, target, attempt, maxRetries + 1), e);
+                backoff(operation, attempt, target);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #run}, for non-blocking requests: no thread waits between attempts
+     * @param operation class of the request
+     * @param target object or prefix the request is about, for logging
+     * @param request sends the request; must be safe to send again after a failure
+     * @param rewind run before each retry, or null
+     * @param executor sends the retries, once their delay has elapsed
+     * @return the result of the first successful attempt
+     */
+    <T> CompletableFuture<T> runAsync(SwiftOperation operation, String target, Supplier<CompletableFuture<T>> request,
+                                      @Nullable CheckedRunnable<IOException> rewind, Executor executor) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        attemptAsync(operation, target, request, rewind, executor, 1, result);
+        return result;
+    }
+
+    private <T> void attemptAsync(SwiftOperation operation, String target, Supplier<CompletableFuture<T>> request,
+                                  @Nullable CheckedRunnable<IOException> rewind, Executor executor, int attempt,
+                                  CompletableFuture<T> result) {
+        CompletableFuture<T> future;
+        try {
+            if (attempt > 1 && rewind != null) {
+                rewind.run();
+            }
+            future = request.get();
+        } catch (IOException | RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        // cancelling the result aborts the attempt in flight
+        SwiftAsyncClient.cancelling(result, future);
+        future.whenComplete((value, e) -> {
+            if (e == null) {
+                if (!result.complete(value)) {
+                    SwiftAsyncClient.release(value);
+                }
+                return;
+            }
+            final Throwable cause = SwiftAsyncClient.unwrap(e);
+            if (result.isDone()) {
+                return;
+            }
+            if (attempt > maxRetries || !(cause instanceof Exception) || !isRetryable((Exception) cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            logger.debug(new ParameterizedMessage("{} of [{}] failed, attempt [{}] of [{}], retrying",
+                                                  operation, target, attempt, maxRetries + 1), cause);
+            retries.get(operation).increment();
+            final Runnable retry = () -> {
+                if (!result.isDone()) {
+                    attemptAsync(operation, target, request, rewind, executor, attempt + 1, result);
+                }
+            };
+            CompletableFuture.delayedExecutor(delayMillis(attempt), TimeUnit.MILLISECONDS, command -> {
+                try {
+                    executor.execute(command);
+                } catch (RejectedExecutionException rejected) {
+                    rejected.addSuppressed(cause);
+                    result.completeExceptionally(rejected);
+                }
+            }).execute(retry);
+        });
+    }
+
+    /**
+     * Wait before retrying a request, and count the retry
+     * @param operation class of the request
+     * @param attempt number of attempts made so far
+     * @param target object or prefix the request is about
+     */
+    void backoff(SwiftOperation operation, int attempt, String target) throws InterruptedIOException {
+        retries.get(operation).increment();
+        try {
+            Thread.sleep(delayMillis(attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException ie = new InterruptedIOException("Interrupted while waiting to retry [" + target + "]");
+            ie.initCause(e);
+            throw ie;
+        }
+    }
+
+    /**
+     * @return how long to wait after a given number of failed attempts
+     */
+    private long delayMillis(int attempt) {
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        if (jitter && delay > 1) {
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        }
+        return delay;
+    }
+
+    /**
+     * @return number of retries made so far for a class of requests
+     */
+    long retries(SwiftOperation operation) {
+        return retries.get(operation).sum();
+    }
+
+    /**
+     * @return whether a request failing with the given exception may succeed if sent again
+     */
+    static boolean isRetryable(Exception e) {
+        if (e instanceof SwiftRestClient.ResponseException) {
+            return isRetryableStatus(((SwiftRestClient.ResponseException) e).status());
+        }
+        if (e instanceof CommandException) {
+            int status = ((CommandException) e).getHttpStatusCode();
+            // JOSS reports I/O errors without a status
+            return status == 0 ? e.getCause() instanceof IOException : isRetryableStatus(status);
+        }
+        // missing or existing files, interruptions; timeouts are subclasses of InterruptedIOException
+        if (e instanceof FileSystemException || e.getClass() == InterruptedIOException.class) {
+            return false;
+        }
+        return e instanceof IOException;
+    }
+
+    static boolean isRetryableStatus(int status) {
+        return status == TOO_MANY_REQUESTS || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+}
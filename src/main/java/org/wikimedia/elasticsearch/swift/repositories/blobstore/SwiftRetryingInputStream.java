@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.common.Nullable;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wrapper around a Swift GET that picks up where it left off when the connection fails
+ * mid-stream: the remaining bytes are requested again with a ranged GET, conditional on
+ * the ETag of the first response so that a blob replaced in between is never spliced.
+ */
+class SwiftRetryingInputStream extends InputStream {
+    private static final Logger logger = LogManager.getLogger(SwiftRetryingInputStream.class);
+
+    private static final int MAX_SUPPRESSED_FAILURES = 10;
+    private static final String STATIC_LARGE_OBJECT_HEADER = "X-Static-Large-Object";
+    private static final String DYNAMIC_LARGE_OBJECT_HEADER = "X-Object-Manifest";
+
+    private final SwiftBlobStore blobStore;
+    private final String key;
+    private final long start;
+    private final long end;
+    private final int maxRetries;
+
+    private SwiftRestClient.ObjectDownload download;
+    private InputStream currentStream;
+    private String etag;
+    private String contentType;
+    private boolean largeObject;
+    private long currentOffset;
+    private final long length;
+    private int attempt = 1;
+    private final List<IOException> failures = new ArrayList<>();
+    private boolean closed;
+
+    // for the slow log: when the stream was opened, and the transaction ID of the first response
+    private final long openedAt;
+    private String transactionId;
+
+    /**
+     * Opens the blob
+     * @param blobStore store holding the blob, with a rest client
+     * @param key object key
+     * @param start offset of the first byte to read
+     * @param end offset of the last byte to read, inclusive, or -1 to read to the end
+     * @param etag ETag the blob must have, or null to pin the one of the first response
+     * @throws NoSuchFileException if the blob does not exist
+     */
+    SwiftRetryingInputStream(SwiftBlobStore blobStore, String key, long start, long end, @Nullable String etag)
+            throws IOException {
+        this.blobStore = blobStore;
+        this.key = key;
+        this.start = start;
+        this.end = end;
+        this.etag = etag;
+        this.maxRetries = blobStore.readMaxRetries();
+        this.openedAt = System.nanoTime();
+        try {
+            blobStore.retryPolicy().run(SwiftOperation.READ, key, () -> {
+                openStream();
+                return null;
+            }, null);
+        } catch (SwiftRestClient.ResponseException e) {
+            throw translate(e);
+        }
+        this.length = download.contentLength();
+    }
+
+    /**
+     * @return number of bytes this stream returns in total, or -1 if unknown
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * @return the ETag of the blob being read
+     */
+    String etag() {
+        return etag;
+    }
+
+    /**
+     * @return the Content-Type of the blob's object, or null if Swift sent none
+     */
+    @Nullable
+    String contentType() {
+        return contentType;
+    }
+
+    /**
+     * @return whether the blob is a large object, whose ETag is not the MD5 of its contents
+     */
+    boolean largeObject() {
+        return largeObject;
+    }
+
+    private void openStream() throws IOException {
+        final long offset = start + currentOffset;
+        final long bytes = end < 0 ? -1 : end - offset + 1;
+        final String container = blobStore.swift().getName();
+        final SwiftAsyncClient asyncClient = blobStore.asyncClient();
+        if (asyncClient != null) {
+            download = SwiftBlobStore.await(blobStore.limitedAsync(SwiftOperation.READ, key, bytes,
+                () -> asyncClient.getObject(container, key, offset, end, etag)));
+        } else {
+            download = blobStore.limited(SwiftOperation.READ, key, bytes,
+                () -> blobStore.restClient().getObject(container, key, offset, end, etag));
+        }
+        if (etag == null) {
+            etag = download.etag();
+            largeObject = download.header(STATIC_LARGE_OBJECT_HEADER) != null || download.header(DYNAMIC_LARGE_OBJECT_HEADER) != null;
+        }
+        if (contentType == null) {
+            contentType = download.header(HttpHeaders.CONTENT_TYPE);
+        }
+        if (transactionId == null && blobStore.slowLog().enabled()) {
+            transactionId = download.header(SwiftService.TRANS_ID_HEADER);
+        }
+        currentStream = download.content();
+    }
+
+    private IOException translate(SwiftRestClient.ResponseException e) {
+        if (e.status() == HttpStatus.SC_NOT_FOUND) {
+            NoSuchFileException e2 = new NoSuchFileException("Blob object [" + key + "] not found.");
+            e2.initCause(e);
+            return e2;
+        }
+        if (e.status() == HttpStatus.SC_PRECONDITION_FAILED) {
+            return new IOException("Blob object [" + key + "] changed while being read, expected ETag [" + etag + "]", e);
+        }
+        return e;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        while (true) {
+            try {
+                final int result = currentStream.read();
+                if (result == -1) {
+                    return -1;
+                }
+                currentOffset += 1;
+                blobStore.liveStats().downloaded(1);
+                return result;
+            } catch (IOException e) {
+                reopenStreamOrFail(e);
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (true) {
+            try {
+                final int bytesRead = currentStream.read(b, off, len);
+                if (bytesRead == -1) {
+                    return -1;
+                }
+                currentOffset += bytesRead;
+                blobStore.liveStats().downloaded(bytesRead);
+                return bytesRead;
+            } catch (IOException e) {
+                reopenStreamOrFail(e);
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            assert false : "using SwiftRetryingInputStream after close";
+            throw new IllegalStateException("using SwiftRetryingInputStream after close");
+        }
+    }
+
+    private void reopenStreamOrFail(IOException e) throws IOException {
+        closeDownload();
+        while (true) {
+            if (attempt > maxRetries) {
+                for (IOException failure : failures) {
+                    e.addSuppressed(failure);
+                }
+                throw e;
+            }
+            logger.debug(new ParameterizedMessage("failed reading [{}] at offset [{}], attempt [{}] of [{}], retrying",
+                                                  key, start + currentOffset, attempt, maxRetries), e);
+            if (failures.size() < MAX_SUPPRESSED_FAILURES) {
+                failures.add(e);
+            }
+            blobStore.retryPolicy().backoff(SwiftOperation.READ, attempt, key);
+            attempt += 1;
+            try {
+                openStream();
+                return;
+            } catch (SwiftRestClient.ResponseException next) {
+                if (next.status() == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && currentOffset > 0) {
+                    // the connection broke right after the last byte
+                    currentStream = new ByteArrayInputStream(new byte[0]);
+                    return;
+                }
+                if (next.status() < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                    throw translate(next);
+                }
+                e = next;
+            } catch (IOException next) {
+                e = next;
+            }
+        }
+    }
+
+    private void closeDownload() {
+        try {
+            currentStream = null;
+            download.close();
+        } catch (IOException e) {
+            // the connection is broken anyway
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            download.close();
+            // the GETs were logged on their own, this covers the time spent streaming
+            blobStore.slowLog().maybeLog(SwiftOperation.READ, key, currentOffset, System.nanoTime() - openedAt, transactionId,
+                                         null);
+        }
+    }
+}
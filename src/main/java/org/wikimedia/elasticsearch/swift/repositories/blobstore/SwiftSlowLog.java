@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+
+/**
+ * Logs the Swift requests and downloads taking longer than repository_swift.slow_log.threshold,
+ * with the Swift transaction ID needed to find them in the proxy logs. Costs a comparison per
+ * request when disabled.
+ */
+final class SwiftSlowLog {
+    private static final Logger logger = LogManager.getLogger(SwiftSlowLog.class);
+
+    // -1 when disabled
+    private final long thresholdNanos;
+
+    SwiftSlowLog(Settings settings) {
+        TimeValue threshold = SwiftRepository.Swift.SLOW_LOG_THRESHOLD_SETTING.get(settings);
+        this.thresholdNanos = threshold.nanos() < 0 ? -1 : threshold.nanos();
+    }
+
+    boolean enabled() {
+        return thresholdNanos >= 0;
+    }
+
+    /**
+     * Log an operation if it was slow
+     * @param operation class of the operation
+     * @param target object or prefix the operation was about
+     * @param bytes bytes sent or received, or -1 if unknown
+     * @param elapsedNanos duration of the operation
+     * @param transactionId Swift transaction ID of the response, or null if there was none
+     * @param failure what the operation failed with, or null if it succeeded
+     */
+    void maybeLog(SwiftOperation operation, String target, long bytes, long elapsedNanos, @Nullable String transactionId,
+                  @Nullable Exception failure) {
+        if (thresholdNanos < 0 || elapsedNanos < thresholdNanos) {
+            return;
+        }
+        logger.warn("{} of [{}] took [{}], bytes [{}], status [{}], x-trans-id [{}]", operation, target,
+                    TimeValue.timeValueNanos(elapsedNanos), bytes, SwiftStats.status(failure), transactionId);
+    }
+}
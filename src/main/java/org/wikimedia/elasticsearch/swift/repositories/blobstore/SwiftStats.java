@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.Nullable;
+import org.javaswift.joss.exception.CommandException;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the Swift requests made by a repository: requests by class and status,
+ * latencies, and bytes transferred. Updated without locking from the request threads.
+ */
+final class SwiftStats {
+    // Status reported for requests that got no HTTP response
+    static final String STATUS_ERROR = "error";
+
+    // Status reported for successful requests, whose exact status JOSS does not expose
+    static final String STATUS_SUCCESS = "2xx";
+
+    private final Map<SwiftOperation, OperationCounters> operations = new EnumMap<>(SwiftOperation.class);
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LongAdder bytesDownloaded = new LongAdder();
+
+    SwiftStats() {
+        for (SwiftOperation operation : SwiftOperation.values()) {
+            operations.put(operation, new OperationCounters());
+        }
+    }
+
+    /**
+     * Account for a completed request
+     * @param operation class of the request
+     * @param elapsedNanos time from sending the request to receiving the response
+     * @param failure what the request failed with, or null if it succeeded
+     */
+    void record(SwiftOperation operation, long elapsedNanos, @Nullable Exception failure) {
+        operations.get(operation).record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos), status(failure));
+    }
+
+    void uploaded(long bytes) {
+        bytesUploaded.add(bytes);
+    }
+
+    void downloaded(long bytes) {
+        bytesDownloaded.add(bytes);
+    }
+
+    /**
+     * @return a stream counting the bytes read from it as downloaded
+     */
+    InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    bytesDownloaded.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    bytesDownloaded.add(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                bytesDownloaded.add(skipped);
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Point in time copy of the counters
+     * @param retryPolicy policy counting the retries of the repository
+     * @param limiter limiter tracking the requests of the repository in flight
+     * @param transferBuffers pool of the repository's transfer buffers
+     */
+    SwiftRepositoryStats snapshot(SwiftRetryPolicy retryPolicy, SwiftRequestLimiter limiter, SwiftBufferPool transferBuffers) {
+        Map<SwiftOperation, SwiftRepositoryStats.OperationStats> snapshots = new EnumMap<>(SwiftOperation.class);
+        for (Map.Entry<SwiftOperation, OperationCounters> entry : operations.entrySet()) {
+            SwiftOperation operation = entry.getKey();
+            snapshots.put(operation, entry.getValue().snapshot(retryPolicy.retries(operation), limiter.inFlight(operation),
+                                                               limiter.limit(operation)));
+        }
+        SwiftRepositoryStats.BufferStats buffers = new SwiftRepositoryStats.BufferStats(transferBuffers.inUseBytes(),
+                                                                                        transferBuffers.allocatedBytes(),
+                                                                                        transferBuffers.limitBytes(),
+                                                                                        transferBuffers.exhausted());
+        return new SwiftRepositoryStats(bytesUploaded.sum(), bytesDownloaded.sum(), snapshots, buffers);
+    }
+
+    /**
+     * @return HTTP status of a failed request, or one of the pseudo statuses
+     */
+    static String status(@Nullable Exception failure) {
+        if (failure == null) {
+            return STATUS_SUCCESS;
+        }
+        int status = 0;
+        if (failure instanceof SwiftRestClient.ResponseException) {
+            status = ((SwiftRestClient.ResponseException) failure).status();
+        } else if (failure instanceof CommandException) {
+            status = ((CommandException) failure).getHttpStatusCode();
+        }
+        return status > 0 ? Integer.toString(status) : STATUS_ERROR;
+    }
+
+    private static final class OperationCounters {
+        private final ConcurrentMap<String, LongAdder> statuses = new ConcurrentHashMap<>();
+        private final LongAdder latencySumMillis = new LongAdder();
+        private final LongAdder[] latencyBuckets = new LongAdder[SwiftRepositoryStats.LATENCY_BUCKETS_MILLIS.length + 1];
+
+        OperationCounters() {
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                latencyBuckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long millis, String status) {
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+            latencySumMillis.add(millis);
+            latencyBuckets[SwiftRepositoryStats.latencyBucket(millis)].increment();
+        }
+
+        SwiftRepositoryStats.OperationStats snapshot(long retries, int inFlight, int inFlightLimit) {
+            Map<String, Long> statusCounts = new TreeMap<>();
+            long requests = 0;
+            for (Map.Entry<String, LongAdder> status : statuses.entrySet()) {
+                long count = status.getValue().sum();
+                statusCounts.put(status.getKey(), count);
+                requests += count;
+            }
+            long[] buckets = new long[latencyBuckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = latencyBuckets[i].sum();
+            }
+            return new SwiftRepositoryStats.OperationStats(requests, statusCounts, retries, inFlight, inFlightLimit,
+                                                           latencySumMillis.sum(), buckets);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Request body streaming a blob straight from its source to the connection, with a Content-Length
+ * header when its length is known and chunked encoding otherwise. Bytes are copied once, through
+ * a pooled transfer buffer, and the source is left open for the caller.
+ */
+final class SwiftUploadEntity extends AbstractHttpEntity {
+    // Size of the buffer used while the pool is exhausted
+    private static final int FALLBACK_BUFFER_SIZE = 8192;
+
+    private final InputStream source;
+    private final long length;
+    private final SwiftBufferPool buffers;
+
+    /**
+     * Constructor
+     * @param source blob contents, read exactly once per request sent
+     * @param length exact number of bytes to send, or -1 to send the source to its end
+     * @param buffers pool to borrow the transfer buffer from
+     */
+    SwiftUploadEntity(InputStream source, long length, SwiftBufferPool buffers) {
+        this.source = source;
+        this.length = length;
+        this.buffers = buffers;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return source;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        final byte[] pooled = buffers.tryAcquire();
+        final byte[] buffer = pooled == null ? new byte[FALLBACK_BUFFER_SIZE] : pooled;
+        try {
+            if (length < 0) {
+                int read;
+                while ((read = source.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return;
+            }
+            long remaining = length;
+            while (remaining > 0) {
+                final int read = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new IOException("Blob stream ended after [" + (length - remaining) + "] of [" + length + "] bytes");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            if (pooled != null) {
+                buffers.release(pooled);
+            }
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+}
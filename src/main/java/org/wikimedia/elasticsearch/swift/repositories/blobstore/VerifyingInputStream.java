@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.hash.MessageDigests;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Computes the MD5 of a blob as it is read, and checks it against the blob's ETag as soon as
+ * all of its bytes went through. Callers that stop reading early are not checked.
+ */
+class VerifyingInputStream extends FilterInputStream {
+    private final String key;
+    private final String etag;
+    private final long length;
+    private final MessageDigest md5 = MessageDigests.md5();
+    private long bytesRead;
+    private boolean verified;
+
+    /**
+     * Constructor
+     * @param in the blob contents
+     * @param key object key
+     * @param etag ETag of a plain object, the MD5 of its contents
+     * @param length size of the blob
+     */
+    VerifyingInputStream(InputStream in, String key, String etag, long length) {
+        super(in);
+        this.key = key;
+        this.etag = SwiftRestClient.unquote(etag);
+        this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = super.read();
+        if (b == -1) {
+            verify();
+        } else {
+            md5.update((byte) b);
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int read = super.read(b, off, len);
+        if (read == -1) {
+            verify();
+        } else if (read > 0) {
+            md5.update(b, off, read);
+            count(read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes must be hashed too
+        final byte[] buffer = new byte[(int) Math.min(8192, Math.max(n, 0))];
+        long skipped = 0;
+        while (skipped < n) {
+            final int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void count(int read) throws IOException {
+        bytesRead += read;
+        if (bytesRead == length) {
+            verify();
+        }
+    }
+
+    private void verify() throws IOException {
+        if (verified || bytesRead != length) {
+            // short reads are reported by the underlying stream
+            return;
+        }
+        verified = true;
+        final String actual = MessageDigests.toHexString(md5.digest());
+        if (!actual.equalsIgnoreCase(etag)) {
+            throw new SwiftCorruptionException(key, etag, actual);
+        }
+    }
+}
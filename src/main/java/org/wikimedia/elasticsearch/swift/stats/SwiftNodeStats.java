@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.stats;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftRepositoryStats;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Statistics of the Swift repositories of one node, by repository name
+ */
+public class SwiftNodeStats extends BaseNodeResponse implements ToXContentFragment {
+    private final Map<String, SwiftRepositoryStats> repositories;
+
+    public SwiftNodeStats(DiscoveryNode node, Map<String, SwiftRepositoryStats> repositories) {
+        super(node);
+        this.repositories = Collections.unmodifiableMap(repositories);
+    }
+
+    public SwiftNodeStats(StreamInput in) throws IOException {
+        super(in);
+        this.repositories = Collections.unmodifiableMap(in.readMap(StreamInput::readString, SwiftRepositoryStats::new));
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeMap(repositories, StreamOutput::writeString, (o, stats) -> stats.writeTo(o));
+    }
+
+    public Map<String, SwiftRepositoryStats> repositories() {
+        return repositories;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().getName());
+        builder.startObject("repositories");
+        for (Map.Entry<String, SwiftRepositoryStats> repository : repositories.entrySet()) {
+            builder.startObject(repository.getKey());
+            repository.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
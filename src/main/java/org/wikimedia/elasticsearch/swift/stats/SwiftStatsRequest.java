@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.stats;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+
+import java.io.IOException;
+
+/**
+ * Request for the Swift repository statistics of a set of nodes
+ */
+public class SwiftStatsRequest extends BaseNodesRequest<SwiftStatsRequest> {
+    public SwiftStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+
+    public SwiftStatsRequest(StreamInput in) throws IOException {
+        super(in);
+    }
+}
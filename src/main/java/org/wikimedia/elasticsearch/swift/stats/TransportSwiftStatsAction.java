@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift.stats;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.RepositoriesMetaData;
+import org.elasticsearch.cluster.metadata.RepositoryMetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.repositories.Repository;
+import org.elasticsearch.repositories.RepositoryMissingException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftRepositoryStats;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the statistics of the Swift repositories registered on each node
+ */
+public class TransportSwiftStatsAction extends TransportNodesAction<SwiftStatsRequest, SwiftStatsResponse,
+                                                                    TransportSwiftStatsAction.NodeRequest, SwiftNodeStats> {
+    private final RepositoriesService repositoriesService;
+
+    @Inject
+    public TransportSwiftStatsAction(ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                     ActionFilters actionFilters, RepositoriesService repositoriesService) {
+        super(SwiftStatsAction.NAME, threadPool, clusterService, transportService, actionFilters, SwiftStatsRequest::new,
+              NodeRequest::new, ThreadPool.Names.MANAGEMENT, SwiftNodeStats.class);
+        this.repositoriesService = repositoriesService;
+    }
+
+    @Override
+    protected SwiftStatsResponse newResponse(SwiftStatsRequest request, List<SwiftNodeStats> responses,
+                                             List<FailedNodeException> failures) {
+        return new SwiftStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(SwiftStatsRequest request) {
+        return new NodeRequest();
+    }
+
+    @Override
+    protected SwiftNodeStats newNodeResponse(StreamInput in) throws IOException {
+        return new SwiftNodeStats(in);
+    }
+
+    @Override
+    protected SwiftNodeStats nodeOperation(NodeRequest request) {
+        final Map<String, SwiftRepositoryStats> stats = new TreeMap<>();
+        final RepositoriesMetaData repositories = clusterService.state().metaData().custom(RepositoriesMetaData.TYPE);
+        if (repositories != null) {
+            for (RepositoryMetaData metaData : repositories.repositories()) {
+                if (!SwiftRepository.TYPE.equals(metaData.type())) {
+                    continue;
+                }
+                final Repository repository;
+                try {
+                    repository = repositoriesService.repository(metaData.name());
+                } catch (RepositoryMissingException e) {
+                    // registered in the cluster state, not yet on this node
+                    continue;
+                }
+                if (repository instanceof SwiftRepository) {
+                    final SwiftRepositoryStats repositoryStats = ((SwiftRepository) repository).stats();
+                    if (repositoryStats != null) {
+                        stats.put(metaData.name(), repositoryStats);
+                    }
+                }
+            }
+        }
+        return new SwiftNodeStats(clusterService.localNode(), stats);
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+        public NodeRequest() {
+        }
+
+        public NodeRequest(StreamInput in) throws IOException {
+            super(in);
+        }
+    }
+}
@@ -16,28 +16,41 @@
 package org.wikimedia.elasticsearch.swift;
 
 import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobMetaData;
 import org.elasticsearch.common.blobstore.BlobPath;
 import org.elasticsearch.common.blobstore.BlobStore;
+import org.elasticsearch.common.logging.Loggers;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.repositories.blobstore.ESBlobStoreRepositoryIntegTestCase;
+import org.elasticsearch.test.MockLogAppender;
 import org.javaswift.joss.client.mock.AccountMock;
 import org.javaswift.joss.exception.NotFoundException;
 import org.javaswift.joss.swift.Swift;
 import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftBlobContainer;
 import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftBlobStore;
 
+import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 @RunWith(RandomizedRunner.class)
 public class SwiftBlobContainerTests extends ESBlobStoreRepositoryIntegTestCase {
@@ -49,7 +62,10 @@ public class SwiftBlobContainerTests extends ESBlobStoreRepositoryIntegTestCase
     public void setup() {
         this.swift = new Swift();
         this.account = new AccountMock(swift);
-        blobStoreSettings = Settings.EMPTY;
+        // the JOSS mock is not thread safe
+        blobStoreSettings = Settings.builder()
+            .put(SwiftRepository.Swift.TRANSFER_THREADS_SETTING.getKey(), 1)
+            .build();
     }
 
     @Override
@@ -89,6 +105,7 @@ public class SwiftBlobContainerTests extends ESBlobStoreRepositoryIntegTestCase
 
     public void testBlobExistsCheckAllowed() throws IOException {
         blobStoreSettings = Settings.builder()
+            .put(blobStoreSettings)
             .put(SwiftRepository.Swift.MINIMIZE_BLOB_EXISTS_CHECKS_SETTING.getKey(), false)
             .build();
 
@@ -112,4 +129,225 @@ public class SwiftBlobContainerTests extends ESBlobStoreRepositoryIntegTestCase
             }
         }
     }
+
+    public void testDeleteBlobsIgnoringIfNotExistsInBatches() throws IOException {
+        blobStoreSettings = Settings.builder()
+            .put(blobStoreSettings)
+            .put(SwiftRepository.Swift.DELETE_CONCURRENCY_SETTING.getKey(), 3)
+            .build();
+
+        try(BlobStore store = newBlobStore()) {
+            final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+            final List<String> blobNames = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                final String blobName = "blob-" + i;
+                final byte[] data = randomByteArrayOfLength(8);
+                container.writeBlob(blobName, new ByteArrayInputStream(data), data.length, false);
+                blobNames.add(blobName);
+            }
+            blobNames.add("does-not-exist");
+
+            container.deleteBlobsIgnoringIfNotExists(blobNames);
+            assertTrue(container.listBlobs().isEmpty());
+        }
+    }
+
+    public void testReadBlobRange() throws IOException {
+        try(BlobStore store = newBlobStore()) {
+            final SwiftBlobContainer container = (SwiftBlobContainer) store.blobContainer(new BlobPath().add("path"));
+            final byte[] data = randomByteArrayOfLength(randomIntBetween(10, 100));
+            container.writeBlob("blob", new ByteArrayInputStream(data), data.length, false);
+
+            final int position = randomIntBetween(0, data.length - 1);
+            final int length = randomIntBetween(1, data.length - position);
+            try (InputStream in = container.readBlob("blob", position, length)) {
+                assertArrayEquals(Arrays.copyOfRange(data, position, position + length), in.readAllBytes());
+            }
+            try (InputStream in = container.readBlob("blob", position, 0)) {
+                assertEquals(-1, in.read());
+            }
+            expectThrows(NoSuchFileException.class, () -> container.readBlob("foobar", position, length));
+            // JOSS ranges are ints
+            expectThrows(IllegalArgumentException.class, () -> container.readBlob("blob", Integer.MAX_VALUE, 2));
+        }
+    }
+
+    public void testListBlobsByPrefix() throws IOException {
+        try(BlobStore store = newBlobStore()) {
+            final BlobPath path = new BlobPath().add("path");
+            final BlobContainer container = store.blobContainer(path);
+            container.writeBlob("foo-1", new ByteArrayInputStream(new byte[] { 1 }), 1, false);
+            container.writeBlob("foo-2", new ByteArrayInputStream(new byte[] { 1, 2 }), 2, false);
+            container.writeBlob("bar", new ByteArrayInputStream(new byte[] { 1 }), 1, false);
+            store.blobContainer(path.add("foo-child")).writeBlob("blob", new ByteArrayInputStream(new byte[] { 1 }), 1, false);
+
+            final Map<String, BlobMetaData> blobs = container.listBlobsByPrefix("foo");
+            assertEquals(new HashSet<>(Arrays.asList("foo-1", "foo-2")), blobs.keySet());
+            assertEquals(2, blobs.get("foo-2").length());
+            assertEquals(3, container.listBlobs().size());
+            assertEquals(Collections.singleton("foo-child"), container.children().keySet());
+        }
+    }
+
+    public void testListChildrenBlobs() throws IOException {
+        try(BlobStore store = newBlobStore()) {
+            final BlobPath indices = new BlobPath().add("indices");
+            final int children = randomIntBetween(1, 10);
+            for (int i = 0; i < children; i++) {
+                final BlobContainer child = store.blobContainer(indices.add("index-" + i));
+                for (int j = 0; j <= i; j++) {
+                    child.writeBlob("blob-" + j, new ByteArrayInputStream(new byte[] { 1 }), 1, false);
+                }
+            }
+
+            final Map<String, Map<String, BlobMetaData>> childrenBlobs =
+                ((SwiftBlobContainer) store.blobContainer(indices)).listChildrenBlobs();
+            assertEquals(children, childrenBlobs.size());
+            for (int i = 0; i < children; i++) {
+                assertEquals(i + 1, childrenBlobs.get("index-" + i).size());
+            }
+        }
+    }
+
+    public void testListingCacheInvalidatedByWrites() throws IOException {
+        blobStoreSettings = Settings.builder()
+            .put(blobStoreSettings)
+            .put(SwiftRepository.Swift.LISTING_CACHE_SIZE_SETTING.getKey(), 100)
+            .build();
+        try(BlobStore store = newBlobStore()) {
+            final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+            container.writeBlob("blob-1", new ByteArrayInputStream(new byte[] { 1 }), 1, false);
+            assertEquals(1, container.listBlobs().size());
+
+            // changes made behind the store's back are not seen until the listing expires
+            ((SwiftBlobStore) store).swift().getObject("path/other").uploadObject(new byte[] { 1 });
+            assertEquals(1, container.listBlobs().size());
+
+            container.writeBlob("blob-2", new ByteArrayInputStream(new byte[] { 1 }), 1, false);
+            assertEquals(3, container.listBlobs().size());
+            container.deleteBlobsIgnoringIfNotExists(Collections.singletonList("blob-1"));
+            assertEquals(2, container.listBlobs().size());
+            container.deleteBlobsIgnoringIfNotExists(Collections.singletonList("blob-2"));
+            assertEquals(Collections.singleton("other"), container.listBlobs().keySet());
+        }
+    }
+
+    public void testSlowLog() throws Exception {
+        blobStoreSettings = Settings.builder()
+            .put(blobStoreSettings)
+            .put(SwiftRepository.Swift.SLOW_LOG_THRESHOLD_SETTING.getKey(), "0ms")
+            .build();
+        final Logger slowLogger = LogManager.getLogger("org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftSlowLog");
+        final MockLogAppender appender = new MockLogAppender();
+        appender.start();
+        Loggers.addAppender(slowLogger, appender);
+        try(BlobStore store = newBlobStore()) {
+            appender.addExpectation(new MockLogAppender.SeenEventExpectation("slow write", slowLogger.getName(), Level.WARN,
+                                                                             "WRITE of [path/blob] took *, bytes [4]*"));
+            appender.addExpectation(new MockLogAppender.SeenEventExpectation("missing blob", slowLogger.getName(), Level.WARN,
+                                                                             "READ of [path/missing] took *, status [404]*"));
+            final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+            container.writeBlob("blob", new ByteArrayInputStream(new byte[4]), 4, false);
+            expectThrows(NoSuchFileException.class, () -> container.readBlob("missing"));
+            appender.assertAllExpectationsMatched();
+        } finally {
+            Loggers.removeAppender(slowLogger, appender);
+            appender.stop();
+        }
+    }
+
+    public void testTransferBuffersReturnedOnClose() throws IOException {
+        try(SwiftBlobStore store = (SwiftBlobStore) newBlobStore()) {
+            final BlobContainer container = store.blobContainer(new BlobPath().add("buffers"));
+            final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 64));
+            container.writeBlob("blob", new ByteArrayInputStream(data), data.length, false);
+            assertEquals(0, store.stats().transferBuffers().inUseBytes());
+            try (InputStream first = container.readBlob("blob"); InputStream second = container.readBlob("blob")) {
+                assertEquals(2L * store.bufferSizeInBytes(), store.stats().transferBuffers().inUseBytes());
+                assertArrayEquals(data, first.readAllBytes());
+                assertArrayEquals(data, second.readAllBytes());
+            }
+            assertEquals(0, store.stats().transferBuffers().inUseBytes());
+            assertEquals(2L * store.bufferSizeInBytes(), store.stats().transferBuffers().allocatedBytes());
+        }
+    }
+
+    public void testTransferMemoryExhausted() throws IOException {
+        blobStoreSettings = Settings.builder()
+            .put(blobStoreSettings)
+            .put(SwiftRepository.Swift.TRANSFER_MEMORY_SETTING.getKey(), "0b")
+            .build();
+        try(SwiftBlobStore store = (SwiftBlobStore) newBlobStore()) {
+            final BlobContainer container = store.blobContainer(new BlobPath().add("buffers"));
+            final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 64));
+            container.writeBlob("blob", new ByteArrayInputStream(data), data.length, false);
+            try (InputStream in = container.readBlob("blob")) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+            assertEquals(0, store.stats().transferBuffers().allocatedBytes());
+            assertEquals(1, store.stats().transferBuffers().exhausted());
+        }
+    }
+
+    public void testCompression() throws IOException {
+        blobStoreSettings = Settings.builder()
+            .put(blobStoreSettings)
+            .put(SwiftRepository.Swift.COMPRESSION_SETTING.getKey(), "deflate")
+            .build();
+        try(SwiftBlobStore store = (SwiftBlobStore) newBlobStore()) {
+            final SwiftBlobContainer container = (SwiftBlobContainer) store.blobContainer(new BlobPath().add("compressed"));
+            final byte[] data = new byte[randomIntBetween(1024, 8192)];
+            Arrays.fill(data, (byte) randomInt());
+            container.writeBlob("blob", new ByteArrayInputStream(data), data.length, false);
+            assertTrue(store.swift().getObject("compressed/blob").getContentLength() < data.length);
+
+            assertEquals(data.length, container.listBlobs().get("blob").length());
+            try (InputStream in = container.readBlob("blob")) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+            final int position = randomIntBetween(0, data.length - 1);
+            final int length = randomIntBetween(1, data.length);
+            try (InputStream in = container.readBlob("blob", position, length)) {
+                assertArrayEquals(Arrays.copyOfRange(data, position, Math.min(data.length, position + length)), in.readAllBytes());
+            }
+            try (InputStream in = container.readBlob("blob", data.length, 1)) {
+                assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    public void testEncryption() throws IOException {
+        blobStoreSettings = Settings.builder()
+            .put(blobStoreSettings)
+            .put(SwiftRepository.Swift.ENCRYPTION_FRAME_SIZE_SETTING.getKey(), "1kb")
+            .build();
+        final SecretKeySpec key = new SecretKeySpec(randomByteArrayOfLength(32), "AES");
+        try(SwiftBlobStore store = new SwiftBlobStore(blobStoreSettings, account, "encrypted", null, null, key)) {
+            final SwiftBlobContainer container = (SwiftBlobContainer) store.blobContainer(new BlobPath().add("blobs"));
+            final byte[] data = randomByteArrayOfLength(randomIntBetween(0, 8192));
+            container.writeBlob("blob", new ByteArrayInputStream(data), data.length, false);
+            // a 16 byte tag per frame
+            final long frames = Math.max(1, (data.length + 1023) / 1024);
+            assertEquals(data.length + 16 * frames, store.swift().getObject("blobs/blob").getContentLength());
+
+            assertEquals(data.length, container.listBlobs().get("blob").length());
+            try (InputStream in = container.readBlob("blob")) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+            final int position = randomIntBetween(0, data.length);
+            final int length = randomIntBetween(1, 4096);
+            try (InputStream in = container.readBlob("blob", position, length)) {
+                assertArrayEquals(Arrays.copyOfRange(data, position, Math.min(data.length, position + length)), in.readAllBytes());
+            }
+        }
+        final SecretKeySpec otherKey = new SecretKeySpec(randomByteArrayOfLength(32), "AES");
+        try(SwiftBlobStore store = new SwiftBlobStore(blobStoreSettings, account, "encrypted", null, null, otherKey)) {
+            final BlobContainer container = store.blobContainer(new BlobPath().add("blobs"));
+            expectThrows(IOException.class, () -> {
+                try (InputStream in = container.readBlob("blob")) {
+                    in.readAllBytes();
+                }
+            });
+        }
+    }
 }
@@ -17,7 +17,11 @@
 package org.wikimedia.elasticsearch.swift;
 
 import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
 import org.elasticsearch.common.blobstore.BlobStore;
+import org.elasticsearch.common.blobstore.DeleteResult;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.repositories.blobstore.ESBlobStoreRepositoryIntegTestCase;
@@ -27,7 +31,13 @@ import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
 import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftBlobStore;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftOperation;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftRepositoryStats;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Locale;
@@ -68,6 +78,64 @@ public class SwiftBlobStoreTests extends ESBlobStoreRepositoryIntegTestCase {
     @Override
     protected BlobStore newBlobStore() {
         String container = randomAlphaOfLength(randomIntBetween(1, 10)).toLowerCase(Locale.ROOT);
-        return new SwiftBlobStore(Settings.EMPTY, this.account, container);
+        // the JOSS mock is not thread safe
+        Settings settings = Settings.builder()
+            .put(SwiftRepository.Swift.TRANSFER_THREADS_SETTING.getKey(), 1)
+            .build();
+        return new SwiftBlobStore(settings, this.account, container);
+    }
+
+    public void testDeleteNestedPath() throws IOException {
+        try (BlobStore store = newBlobStore()) {
+            final BlobPath root = new BlobPath().add("indices");
+            long bytes = 0;
+            int blobs = 0;
+            for (int i = 0; i < 3; i++) {
+                final BlobContainer container = store.blobContainer(root.add("index-" + i).add("0"));
+                for (int j = 0; j < 5; j++) {
+                    final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 16));
+                    container.writeBlob("blob-" + j, new ByteArrayInputStream(data), data.length, false);
+                    bytes += data.length;
+                    blobs++;
+                }
+            }
+            final BlobContainer other = store.blobContainer(new BlobPath().add("other"));
+            other.writeBlob("blob", new ByteArrayInputStream(new byte[] { 1 }), 1, false);
+
+            final DeleteResult result = store.blobContainer(root).delete();
+            assertEquals(blobs, result.blobsDeleted());
+            assertEquals(bytes, result.bytesDeleted());
+            assertTrue(store.blobContainer(root).children().isEmpty());
+            assertEquals(1, other.listBlobs().size());
+        }
+    }
+
+    public void testStats() throws IOException {
+        try (BlobStore store = newBlobStore()) {
+            final BlobContainer container = store.blobContainer(new BlobPath().add("stats"));
+            final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 64));
+            container.writeBlob("blob", new ByteArrayInputStream(data), data.length, false);
+            try (InputStream in = container.readBlob("blob")) {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+            expectThrows(NoSuchFileException.class, () -> container.readBlob("missing"));
+
+            final SwiftRepositoryStats stats = ((SwiftBlobStore) store).stats();
+            assertEquals(data.length, stats.bytesUploaded());
+            assertEquals(data.length, stats.bytesDownloaded());
+            assertEquals(1, stats.operation(SwiftOperation.WRITE).requests());
+            assertEquals(Long.valueOf(1), stats.operation(SwiftOperation.READ).statuses().get("2xx"));
+            assertEquals(Long.valueOf(1), stats.operation(SwiftOperation.READ).statuses().get("404"));
+            assertEquals(0, stats.operation(SwiftOperation.READ).inFlight());
+            assertEquals(0, stats.transferBuffers().inUseBytes());
+            assertEquals(((SwiftBlobStore) store).bufferSizeInBytes(), stats.transferBuffers().allocatedBytes());
+
+            final BytesStreamOutput out = new BytesStreamOutput();
+            stats.writeTo(out);
+            final SwiftRepositoryStats copy = new SwiftRepositoryStats(out.bytes().streamInput());
+            assertEquals(stats.bytesUploaded(), copy.bytesUploaded());
+            assertEquals(stats.operation(SwiftOperation.READ).statuses(), copy.operation(SwiftOperation.READ).statuses());
+            assertEquals(stats.transferBuffers().allocatedBytes(), copy.transferBuffers().allocatedBytes());
+        }
     }
 }
@@ -0,0 +1,1043 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.wikimedia.elasticsearch.swift;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for a Swift proxy, serving the parts of the API the plugin uses:
+ * TempAuth (whose tokens it checks), /info, container HEAD/PUT/POST/GET listings, object GET (with Range and If-Match),
+ * HEAD, PUT (with ETag, If-None-Match and X-Copy-From), DELETE and bulk-delete, and Static Large
+ * Object manifests. Objects keep the Content-Type they were uploaded with.
+ *
+ * Every request is delayed by a fixed latency, and object bodies are paced to a bandwidth per
+ * request, so that benchmarks can approximate a remote cluster. Shared by the tests and the
+ * benchmarks.
+ */
+@SuppressForbidden(reason = "an http server stands in for the swift proxy")
+public class SwiftEmulator implements Closeable {
+    public static final String ACCOUNT = "AUTH_bench";
+    private static final String AUTH_PATH = "/auth/v1.0";
+    private static final String STORAGE_PATH = "/v1/" + ACCOUNT;
+    private static final int MAX_DELETES_PER_REQUEST = 10000;
+    private static final int CONTAINER_LISTING_LIMIT = 10000;
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    // bytes per second per request body, 0 for unlimited
+    private final long bandwidth;
+
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, StoredBlob>> containers = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final Queue<String> requestLog = new ConcurrentLinkedQueue<>();
+    private final AtomicLong chunkedRequests = new AtomicLong();
+
+    // objects per bulk-delete request advertised in /info, and accepted before reporting a 413
+    private volatile int maxDeletesPerRequest = MAX_DELETES_PER_REQUEST;
+    private volatile int acceptedDeletesPerRequest = MAX_DELETES_PER_REQUEST;
+
+    // entries per listing page, and whether /info announces it
+    private volatile int listingLimit = CONTAINER_LISTING_LIMIT;
+    private volatile boolean listingLimitAdvertised = true;
+
+    // failures injected into the next matching requests
+    private final Queue<Fault> faults = new ConcurrentLinkedQueue<>();
+
+    // released on close, for stalled responses to give up their connection
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    // tokens handed out by TempAuth, and when they expire
+    private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<>();
+    private final AtomicInteger tokenSequence = new AtomicInteger();
+    private final AtomicLong rejectedTokens = new AtomicLong();
+    private volatile long tokenLifetimeSeconds = TimeUnit.DAYS.toSeconds(1);
+
+    // container/key paths that bulk-delete reports as failed
+    private final Set<String> undeletable = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Start an emulator on an ephemeral loopback port
+     * @param latencyMillis delay added to every request
+     * @param bandwidth bytes per second each object upload or download is paced to, 0 for unlimited
+     */
+    public SwiftEmulator(long latencyMillis, long bandwidth) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.bandwidth = bandwidth;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "swift-emulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return the TempAuth url to configure as swift_url
+     */
+    public String authUrl() {
+        return baseUrl() + AUTH_PATH;
+    }
+
+    /**
+     * @return number of requests served so far
+     */
+    public long requests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the requests served so far, in order, as "METHOD /container/key?query" with the storage url left out
+     */
+    public List<String> requestLog() {
+        return new ArrayList<>(requestLog);
+    }
+
+    /**
+     * Store an object directly, without going through HTTP, e.g. to seed a benchmark
+     */
+    public void put(String container, String key, byte[] data) {
+        put(container, key, data, DEFAULT_CONTENT_TYPE);
+    }
+
+    /**
+     * Store an object directly, with a Content-Type
+     */
+    public void put(String container, String key, byte[] data, String contentType) {
+        containers.computeIfAbsent(container, name -> new ConcurrentSkipListMap<>()).put(key, new StoredBlob(data, contentType));
+    }
+
+    /**
+     * @return the contents of an object, the concatenated segments of a large object, or null if it does not exist
+     */
+    public byte[] get(String container, String key) {
+        final StoredBlob blob = blob(container, key);
+        return blob == null ? null : content(blob);
+    }
+
+    /**
+     * @return the Content-Type of an object, or null if it does not exist
+     */
+    public String contentType(String container, String key) {
+        final StoredBlob blob = blob(container, key);
+        return blob == null ? null : blob.contentType;
+    }
+
+    /**
+     * @return whether an object is a Static Large Object manifest
+     */
+    public boolean largeObject(String container, String key) {
+        final StoredBlob blob = blob(container, key);
+        return blob != null && blob.segments != null;
+    }
+
+    private StoredBlob blob(String container, String key) {
+        final ConcurrentSkipListMap<String, StoredBlob> objects = containers.get(container);
+        return objects == null ? null : objects.get(key);
+    }
+
+    /**
+     * @return the bytes of a blob, or null if a segment of a large object is missing
+     */
+    private byte[] content(StoredBlob blob) {
+        if (blob.segments == null) {
+            return blob.data;
+        }
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (String path : blob.segments) {
+            final int slash = path.indexOf('/');
+            final StoredBlob segment = blob(path.substring(0, slash), path.substring(slash + 1));
+            if (segment == null || segment.segments != null) {
+                return null;
+            }
+            content.writeBytes(segment.data);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * @return the names of the objects of a container, in order
+     */
+    public List<String> list(String container) {
+        final ConcurrentSkipListMap<String, StoredBlob> objects = containers.get(container);
+        return objects == null ? new ArrayList<>() : new ArrayList<>(objects.keySet());
+    }
+
+    /**
+     * Limit bulk-delete requests
+     * @param advertised objects per request announced in /info
+     * @param accepted objects per request accepted, larger requests being reported as 413 in a 200 response, like the middleware does
+     */
+    public void bulkDeleteLimits(int advertised, int accepted) {
+        this.maxDeletesPerRequest = advertised;
+        this.acceptedDeletesPerRequest = accepted;
+    }
+
+    /**
+     * Cap listing pages, whatever limit the requests ask for
+     * @param limit entries per listing page
+     * @param advertised whether /info announces the limit as container_listing_limit
+     */
+    public void listingLimit(int limit, boolean advertised) {
+        this.listingLimit = limit;
+        this.listingLimitAdvertised = advertised;
+    }
+
+    /**
+     * Answer the next requests matching a request line with an error status, without serving them
+     * @param request start of the request lines to fail, as logged by {@link #requestLog()}
+     * @param times number of requests to fail
+     * @param status status to answer
+     */
+    public void failRequests(String request, int times, int status) {
+        faults.add(new Fault(request, times, status, -1));
+    }
+
+    /**
+     * Serve the next requests matching a request line, then close their connection without
+     * responding, as if the responses were lost on the way back
+     * @param request start of the request lines whose responses are dropped, as logged by {@link #requestLog()}
+     * @param times number of responses to drop
+     */
+    public void dropResponses(String request, int times) {
+        faults.add(new Fault(request, times, 0, -1));
+    }
+
+    /**
+     * Serve the next requests matching a request line, but close their connection once some bytes of
+     * the response body are sent, as if it broke during the download
+     * @param request start of the request lines whose responses are cut, as logged by {@link #requestLog()}
+     * @param times number of responses to cut
+     * @param bytes bytes of each response body sent before the connection is closed
+     */
+    public void truncateResponses(String request, int times, long bytes) {
+        faults.add(new Fault(request, times, 0, bytes));
+    }
+
+    /**
+     * Serve the next requests matching a request line, but stop sending their response once some bytes
+     * of the body are sent, holding the connection open until the emulator is closed
+     * @param request start of the request lines whose responses stall, as logged by {@link #requestLog()}
+     * @param times number of responses to stall
+     * @param bytes bytes of each response body sent before stalling, -1 to send not even the headers
+     */
+    public void stallResponses(String request, int times, long bytes) {
+        faults.add(new Fault(request, times, 0, bytes, true, false));
+    }
+
+    /**
+     * Serve the next requests matching a request line, but answer them with an ETag that is not the one of the
+     * object, as if its contents were corrupted on the way
+     * @param request start of the request lines whose ETags are corrupted, as logged by {@link #requestLog()}
+     * @param times number of responses to corrupt
+     */
+    public void corruptEtags(String request, int times) {
+        faults.add(new Fault(request, times, 0, Long.MAX_VALUE, false, true));
+    }
+
+    /**
+     * @return number of requests whose body was sent with chunked encoding, without a Content-Length
+     */
+    public long chunkedRequests() {
+        return chunkedRequests.get();
+    }
+
+    /**
+     * Set the lifetime of the tokens handed out from now on, announced in X-Auth-Token-Expires
+     */
+    public void tokenLifetime(long seconds) {
+        this.tokenLifetimeSeconds = seconds;
+    }
+
+    /**
+     * Invalidate every token handed out so far, as if they had all expired
+     */
+    public void expireTokens() {
+        tokens.clear();
+    }
+
+    /**
+     * @return number of requests rejected with a 401 for a missing, unknown or expired token
+     */
+    public long rejectedTokens() {
+        return rejectedTokens.get();
+    }
+
+    /**
+     * @return number of tokens handed out
+     */
+    public long authentications() {
+        return tokenSequence.get();
+    }
+
+    private boolean validToken(String token) {
+        final Long expiresAt = token == null ? null : tokens.get(token);
+        return expiresAt != null && expiresAt > System.currentTimeMillis();
+    }
+
+    /**
+     * Make bulk-delete report an object as failed, and keep it
+     */
+    public void failBulkDelete(String container, String key) {
+        undeletable.add(container + "/" + key);
+    }
+
+    private String baseUrl() {
+        InetSocketAddress address = server.getAddress();
+        return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    @Override
+    public void close() {
+        closed.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final String request = describe(exchange);
+        requestLog.add(request);
+        if ("chunked".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Transfer-Encoding"))) {
+            chunkedRequests.incrementAndGet();
+        }
+        try {
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+            final Fault fault = fault(request);
+            if (fault == null) {
+                route(exchange);
+            } else if (fault.status > 0) {
+                drain(exchange);
+                exchange.sendResponseHeaders(fault.status, -1);
+            } else {
+                // closing an exchange that did not send all of its response closes the connection
+                route(new FaultyExchange(exchange, fault.bodyBytes, fault.corruptEtag));
+                if (fault.stall) {
+                    closed.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            send(exchange, 500, e.toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getRawPath();
+        final String method = exchange.getRequestMethod();
+        if (path.equals(AUTH_PATH)) {
+            final long lifetime = tokenLifetimeSeconds;
+            final String token = "AUTH_tk" + Long.toHexString(System.nanoTime()) + Integer.toHexString(tokenSequence.incrementAndGet());
+            tokens.put(token, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(lifetime));
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("X-Storage-Url", baseUrl() + STORAGE_PATH);
+            headers.set("X-Auth-Token", token);
+            headers.set("X-Auth-Token-Expires", Long.toString(lifetime));
+            exchange.sendResponseHeaders(200, -1);
+        } else if (path.startsWith(STORAGE_PATH) && !validToken(exchange.getRequestHeaders().getFirst("X-Auth-Token"))) {
+            rejectedTokens.incrementAndGet();
+            drain(exchange);
+            exchange.sendResponseHeaders(401, -1);
+        } else if (path.equals("/info")) {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject().startObject("swift").field("version", "emulator");
+            if (listingLimitAdvertised) {
+                builder.field("container_listing_limit", listingLimit);
+            }
+            builder.endObject()
+                .startObject("bulk_delete").field("max_deletes_per_request", maxDeletesPerRequest).endObject()
+                .endObject();
+            send(exchange, 200, BytesReference.toBytes(BytesReference.bytes(builder)));
+        } else if (path.equals(STORAGE_PATH) || path.equals(STORAGE_PATH + "/")) {
+            if (method.equals("POST") && parameters(exchange).containsKey("bulk-delete")) {
+                bulkDelete(exchange);
+            } else {
+                exchange.sendResponseHeaders(204, -1);
+            }
+        } else if (path.startsWith(STORAGE_PATH + "/")) {
+            final String rest = path.substring(STORAGE_PATH.length() + 1);
+            final int slash = rest.indexOf('/');
+            final String container = decode(slash < 0 ? rest : rest.substring(0, slash));
+            if (slash < 0 || slash == rest.length() - 1) {
+                container(exchange, method, container);
+            } else {
+                object(exchange, method, container, decode(rest.substring(slash + 1)));
+            }
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+    private void container(HttpExchange exchange, String method, String name) throws IOException {
+        ConcurrentSkipListMap<String, StoredBlob> container = containers.get(name);
+        switch (method) {
+            case "PUT":
+                exchange.sendResponseHeaders(containers.putIfAbsent(name, new ConcurrentSkipListMap<>()) == null ? 201 : 202, -1);
+                return;
+            case "HEAD":
+                if (container == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                long bytes = 0;
+                for (StoredBlob blob : container.values()) {
+                    bytes += blob.length;
+                }
+                exchange.getResponseHeaders().set("X-Container-Object-Count", Integer.toString(container.size()));
+                exchange.getResponseHeaders().set("X-Container-Bytes-Used", Long.toString(bytes));
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            case "POST":
+                exchange.sendResponseHeaders(container == null ? 404 : 204, -1);
+                return;
+            case "DELETE":
+                if (container == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else if (!container.isEmpty()) {
+                    exchange.sendResponseHeaders(409, -1);
+                } else {
+                    containers.remove(name);
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                return;
+            case "GET":
+                if (container == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                list(exchange, container);
+                return;
+            default:
+                exchange.sendResponseHeaders(405, -1);
+        }
+    }
+
+    /**
+     * Container listing, rolling names up into subdirs on the delimiter the way Swift does
+     */
+    private void list(HttpExchange exchange, ConcurrentSkipListMap<String, StoredBlob> container) throws IOException {
+        final Map<String, String> parameters = parameters(exchange);
+        final String prefix = parameters.getOrDefault("prefix", "");
+        final String marker = parameters.get("marker");
+        final String delimiter = parameters.get("delimiter");
+        final int limit = Math.min(listingLimit, Integer.parseInt(parameters.getOrDefault("limit", Integer.toString(listingLimit))));
+        final boolean json = "json".equals(parameters.get("format"));
+
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startArray();
+        final StringBuilder plain = new StringBuilder();
+        int count = 0;
+        String next = marker != null && marker.compareTo(prefix) >= 0 ? container.higherKey(marker) : container.ceilingKey(prefix);
+        while (next != null && next.startsWith(prefix) && count < limit) {
+            if (delimiter != null && !delimiter.isEmpty()) {
+                final int end = next.indexOf(delimiter.charAt(0), prefix.length());
+                if (end >= 0) {
+                    final String subdir = next.substring(0, end + 1);
+                    if (!subdir.equals(marker)) {
+                        builder.startObject().field("subdir", subdir).endObject();
+                        plain.append(subdir).append('\n');
+                        count++;
+                    }
+                    next = container.ceilingKey(next.substring(0, end) + (char) (delimiter.charAt(0) + 1));
+                    continue;
+                }
+            }
+            final StoredBlob blob = container.get(next);
+            if (blob != null) {
+                builder.startObject()
+                    .field("name", next)
+                    .field("bytes", blob.length)
+                    .field("hash", blob.etag)
+                    .field("content_type", blob.contentType)
+                    .endObject();
+                plain.append(next).append('\n');
+                count++;
+            }
+            next = container.higherKey(next);
+        }
+        builder.endArray();
+        if (json) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            send(exchange, 200, BytesReference.toBytes(BytesReference.bytes(builder)));
+        } else if (count == 0) {
+            exchange.sendResponseHeaders(204, -1);
+        } else {
+            send(exchange, 200, plain.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void object(HttpExchange exchange, String method, String containerName, String key) throws IOException {
+        final ConcurrentSkipListMap<String, StoredBlob> container = containers.get(containerName);
+        if (container == null) {
+            drain(exchange);
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        final StoredBlob blob = container.get(key);
+        switch (method) {
+            case "PUT":
+                put(exchange, container, key);
+                return;
+            case "GET":
+            case "HEAD":
+                if (blob == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                get(exchange, blob, method.equals("HEAD"));
+                return;
+            case "POST":
+                exchange.sendResponseHeaders(blob == null ? 404 : 202, -1);
+                return;
+            case "DELETE":
+                final StoredBlob deleted = container.remove(key);
+                if (deleted != null && deleted.segments != null && parameters(exchange).containsKey("multipart-manifest")) {
+                    for (String path : deleted.segments) {
+                        final int slash = path.indexOf('/');
+                        final ConcurrentSkipListMap<String, StoredBlob> segments = containers.get(path.substring(0, slash));
+                        if (segments != null) {
+                            segments.remove(path.substring(slash + 1));
+                        }
+                    }
+                }
+                exchange.sendResponseHeaders(deleted == null ? 404 : 204, -1);
+                return;
+            default:
+                exchange.sendResponseHeaders(405, -1);
+        }
+    }
+
+    private void put(HttpExchange exchange, ConcurrentSkipListMap<String, StoredBlob> container, String key) throws IOException {
+        final Headers request = exchange.getRequestHeaders();
+        final String copyFrom = request.getFirst("X-Copy-From");
+        final String contentType = request.getFirst("Content-Type");
+        final StoredBlob blob;
+        if ("put".equals(parameters(exchange).get("multipart-manifest"))) {
+            blob = manifest(exchange, contentType == null ? DEFAULT_CONTENT_TYPE : contentType);
+            if (blob == null) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+        } else if (copyFrom != null) {
+            drain(exchange);
+            final String source = decode(copyFrom.startsWith("/") ? copyFrom.substring(1) : copyFrom);
+            final int slash = source.indexOf('/');
+            final StoredBlob sourceBlob = slash < 0 ? null : blob(source.substring(0, slash), source.substring(slash + 1));
+            final byte[] data = sourceBlob == null ? null : content(sourceBlob);
+            if (data == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            blob = new StoredBlob(data, contentType == null ? sourceBlob.contentType : contentType);
+        } else {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            copy(exchange.getRequestBody(), body);
+            blob = new StoredBlob(body.toByteArray(), contentType == null ? DEFAULT_CONTENT_TYPE : contentType);
+        }
+        final String expected = request.getFirst("ETag");
+        if (expected != null && blob.segments == null && !expected.equals(blob.etag)) {
+            exchange.sendResponseHeaders(422, -1);
+            return;
+        }
+        if ("*".equals(request.getFirst("If-None-Match"))) {
+            if (container.putIfAbsent(key, blob) != null) {
+                exchange.sendResponseHeaders(412, -1);
+                return;
+            }
+        } else {
+            container.put(key, blob);
+        }
+        exchange.getResponseHeaders().set("ETag", blob.responseEtag());
+        exchange.getResponseHeaders().set("Last-Modified", blob.lastModified);
+        exchange.sendResponseHeaders(201, -1);
+    }
+
+    /**
+     * Read a Static Large Object manifest, checking its segments the way Swift does
+     * @return the large object, or null if a segment is missing or does not match its description
+     */
+    private StoredBlob manifest(HttpExchange exchange, String contentType) throws IOException {
+        final List<Object> entries;
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, exchange.getRequestBody())) {
+            entries = parser.list();
+        }
+        final List<String> segments = new ArrayList<>();
+        final MessageDigest etags = MessageDigests.md5();
+        long length = 0;
+        for (Object entry : entries) {
+            final Map<?, ?> description = (Map<?, ?>) entry;
+            String path = decode((String) description.get("path"));
+            path = path.startsWith("/") ? path.substring(1) : path;
+            final int slash = path.indexOf('/');
+            final StoredBlob segment = slash < 0 ? null : blob(path.substring(0, slash), path.substring(slash + 1));
+            final Object etag = description.get("etag");
+            final Object size = description.get("size_bytes");
+            if (segment == null || segment.segments != null
+                    || (etag != null && !segment.etag.equals(etag))
+                    || (size != null && ((Number) size).longValue() != segment.length)) {
+                return null;
+            }
+            segments.add(path);
+            etags.update(segment.etag.getBytes(StandardCharsets.US_ASCII));
+            length += segment.length;
+        }
+        return new StoredBlob(segments, MessageDigests.toHexString(etags.digest()), length, contentType);
+    }
+
+    private void get(HttpExchange exchange, StoredBlob blob, boolean head) throws IOException {
+        final Headers request = exchange.getRequestHeaders();
+        final Headers response = exchange.getResponseHeaders();
+        final String ifMatch = request.getFirst("If-Match");
+        if (ifMatch != null && !unquote(ifMatch).equals(blob.etag)) {
+            exchange.sendResponseHeaders(412, -1);
+            return;
+        }
+        final byte[] data = content(blob);
+        if (data == null) {
+            // a segment is gone
+            exchange.sendResponseHeaders(409, -1);
+            return;
+        }
+        response.set("ETag", blob.responseEtag());
+        response.set("Last-Modified", blob.lastModified);
+        response.set("Content-Type", blob.contentType);
+        response.set("Accept-Ranges", "bytes");
+        if (blob.segments != null) {
+            response.set("X-Static-Large-Object", "True");
+        }
+
+        final int length = data.length;
+        int start = 0;
+        int end = length - 1;
+        int status = 200;
+        final String range = request.getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+            }
+            if (start >= length || start > end) {
+                response.set("Content-Range", "bytes */" + length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            response.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            status = 206;
+        }
+        final int contentLength = end - start + 1;
+        if (head) {
+            response.set("Content-Length", Integer.toString(contentLength));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, contentLength == 0 ? -1 : contentLength);
+        try (OutputStream out = exchange.getResponseBody()) {
+            copy(new ByteArrayInputStream(data, start, contentLength), out);
+        }
+    }
+
+    private void bulkDelete(HttpExchange exchange) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        copy(exchange.getRequestBody(), body);
+        final List<String> paths = new ArrayList<>();
+        for (String line : body.toString(StandardCharsets.UTF_8).split("\n")) {
+            String path = decode(line.trim());
+            if (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            if (!path.isEmpty()) {
+                paths.add(path);
+            }
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (paths.size() > acceptedDeletesPerRequest) {
+            // the middleware answers 200 before it looks at the request, and reports its outcome in the body
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject()
+                .field("Number Deleted", 0)
+                .field("Number Not Found", 0)
+                .field("Response Status", "413 Request Entity Too Large")
+                .field("Response Body", "Maximum Bulk Deletes: " + acceptedDeletesPerRequest + " per request")
+                .startArray("Errors").endArray()
+                .endObject();
+            send(exchange, 200, BytesReference.toBytes(BytesReference.bytes(builder)));
+            return;
+        }
+        long deleted = 0;
+        long notFound = 0;
+        final List<String> errors = new ArrayList<>();
+        for (String path : paths) {
+            final int slash = path.indexOf('/');
+            final ConcurrentSkipListMap<String, StoredBlob> container = slash < 0 ? null : containers.get(path.substring(0, slash));
+            if (undeletable.contains(path)) {
+                errors.add(path);
+            } else if (container != null && container.remove(path.substring(slash + 1)) != null) {
+                deleted++;
+            } else {
+                notFound++;
+            }
+        }
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject()
+            .field("Number Deleted", deleted)
+            .field("Number Not Found", notFound)
+            .field("Response Status", errors.isEmpty() ? "200 OK" : "400 Bad Request")
+            .startArray("Errors");
+        for (String error : errors) {
+            builder.startArray().value("/" + error).value("403 Forbidden").endArray();
+        }
+        builder.endArray().endObject();
+        send(exchange, 200, BytesReference.toBytes(BytesReference.bytes(builder)));
+    }
+
+    private Fault fault(String request) {
+        for (Fault fault : faults) {
+            if (request.startsWith(fault.request) && fault.remaining.getAndDecrement() > 0) {
+                return fault;
+            }
+        }
+        return null;
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Copy a body, no faster than the configured bandwidth
+     */
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[64 * 1024];
+        final long start = System.nanoTime();
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            total += read;
+            if (bandwidth > 0) {
+                final long due = start + (long) (total * 1e9 / bandwidth);
+                final long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while pacing a transfer");
+                    }
+                }
+            }
+        }
+    }
+
+    private static String describe(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getRawPath();
+        if (path.startsWith(STORAGE_PATH)) {
+            path = path.substring(STORAGE_PATH.length());
+        }
+        final String query = exchange.getRequestURI().getRawQuery();
+        return exchange.getRequestMethod() + " " + decode(path) + (query == null ? "" : "?" + decode(query));
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange) {
+        final Map<String, String> parameters = new HashMap<>();
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            final int equals = parameter.indexOf('=');
+            if (equals < 0) {
+                parameters.put(decode(parameter), "");
+            } else {
+                parameters.put(decode(parameter.substring(0, equals)), decode(parameter.substring(equals + 1)));
+            }
+        }
+        return parameters;
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String unquote(String etag) {
+        return etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"") ? etag.substring(1, etag.length() - 1) : etag;
+    }
+
+    private static final class Fault {
+        final String request;
+        final AtomicInteger remaining;
+        // status to answer, 0 to serve the request and break its response
+        final int status;
+        // bytes of the response body sent before the connection is closed, -1 to send no response at all
+        final long bodyBytes;
+        // whether to hold the connection open once the bytes are sent, rather than close it
+        final boolean stall;
+        // whether to send an ETag that does not match the object
+        final boolean corruptEtag;
+
+        Fault(String request, int times, int status, long bodyBytes) {
+            this(request, times, status, bodyBytes, false, false);
+        }
+
+        Fault(String request, int times, int status, long bodyBytes, boolean stall, boolean corruptEtag) {
+            this.request = request;
+            this.remaining = new AtomicInteger(times);
+            this.status = status;
+            this.bodyBytes = bodyBytes;
+            this.stall = stall;
+            this.corruptEtag = corruptEtag;
+        }
+    }
+
+    /**
+     * Serves a request without sending back its response, or only the start of its body, or with a wrong ETag
+     */
+    private static final class FaultyExchange extends HttpExchange {
+        private final HttpExchange exchange;
+        // bytes of the body to send, -1 to send nothing
+        private final long limit;
+        private final boolean corruptEtag;
+        private final Headers responseHeaders;
+        private int responseCode = -1;
+
+        FaultyExchange(HttpExchange exchange, long limit, boolean corruptEtag) {
+            this.exchange = exchange;
+            this.limit = limit;
+            this.corruptEtag = corruptEtag;
+            this.responseHeaders = limit < 0 ? new Headers() : exchange.getResponseHeaders();
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return exchange.getRequestHeaders();
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return exchange.getRequestURI();
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return exchange.getRequestMethod();
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return exchange.getHttpContext();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return exchange.getRequestBody();
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            if (limit < 0) {
+                return OutputStream.nullOutputStream();
+            }
+            final OutputStream body = exchange.getResponseBody();
+            return new OutputStream() {
+                private long left = limit;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    final int sent = (int) Math.min(len, left);
+                    if (sent > 0) {
+                        body.write(b, off, sent);
+                        body.flush();
+                        left -= sent;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    // left incomplete, for the exchange to close the connection
+                }
+            };
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            responseCode = rCode;
+            final String etag = responseHeaders.getFirst("ETag");
+            if (corruptEtag && etag != null) {
+                // the MD5 of the ETag itself, quoted like the original
+                final String corrupted = MessageDigests.toHexString(MessageDigests.md5().digest(etag.getBytes(StandardCharsets.US_ASCII)));
+                responseHeaders.set("ETag", etag.startsWith("\"") ? "\"" + corrupted + "\"" : corrupted);
+            }
+            if (limit >= 0) {
+                exchange.sendResponseHeaders(rCode, responseLength);
+            }
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return exchange.getRemoteAddress();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return exchange.getLocalAddress();
+        }
+
+        @Override
+        public String getProtocol() {
+            return exchange.getProtocol();
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return exchange.getAttribute(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            exchange.setAttribute(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return exchange.getPrincipal();
+        }
+    }
+
+    private static final class StoredBlob {
+        // contents of a plain object, null for a large object
+        final byte[] data;
+        // container/key paths of the segments of a large object, null for a plain object
+        final List<String> segments;
+        // MD5 of the contents, or of the concatenated segment ETags for a large object
+        final String etag;
+        final long length;
+        final String contentType;
+        final String lastModified;
+
+        StoredBlob(byte[] data, String contentType) {
+            this(data, null, MessageDigests.toHexString(MessageDigests.md5().digest(data)), data.length, contentType);
+        }
+
+        StoredBlob(List<String> segments, String etag, long length, String contentType) {
+            this(null, segments, etag, length, contentType);
+        }
+
+        private StoredBlob(byte[] data, List<String> segments, String etag, long length, String contentType) {
+            this.data = data;
+            this.segments = segments;
+            this.etag = etag;
+            this.length = length;
+            this.contentType = contentType;
+            this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+        }
+
+        /**
+         * @return the ETag header, quoted for large objects as Swift does
+         */
+        String responseEtag() {
+            return segments == null ? etag : "\"" + etag + "\"";
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift;
+
+import com.carrotsearch.randomizedtesting.annotations.ThreadLeakFilters;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.internal.io.IOUtils;
+import org.elasticsearch.test.ESTestCase;
+import org.javaswift.joss.model.Account;
+import org.junit.After;
+import org.junit.Before;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAccountFactory;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftService;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftBlobStore;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Base class of the tests sending requests to a {@link SwiftEmulator} through the plugin's HTTP clients
+ */
+@ThreadLeakFilters(filters = SwiftThreadFilter.class)
+public abstract class SwiftEmulatorTestCase extends ESTestCase {
+    protected static final String CONTAINER = "test";
+
+    protected SwiftEmulator emulator;
+
+    // closed after each test, last opened first
+    private final Deque<Closeable> resources = new ArrayDeque<>();
+
+    @Before
+    public void startEmulator() throws IOException {
+        emulator = new SwiftEmulator(0, 0);
+    }
+
+    @After
+    public void stopEmulator() throws IOException {
+        try {
+            IOUtils.close(resources);
+        } finally {
+            resources.clear();
+            emulator.close();
+        }
+    }
+
+    /**
+     * @return a service for the emulator, closed after the test
+     */
+    protected SwiftService newService(Settings settings) {
+        final SwiftService service = new SwiftService(settings);
+        resources.addFirst(service);
+        return service;
+    }
+
+    /**
+     * @return an account of the emulator, authenticated through the service
+     */
+    protected Account newAccount(SwiftService service) {
+        return SwiftAccountFactory.createAccount(service, emulator.authUrl(), "test:tester", "testing", null, "TEMPAUTH", null);
+    }
+
+    /**
+     * @return a store on the emulator's test container, with its own service, closed after the test
+     */
+    protected SwiftBlobStore newBlobStore(Settings settings) {
+        return newBlobStore(settings, null);
+    }
+
+    /**
+     * @return a store on the emulator's test container, with its own service, closed after the test
+     */
+    protected SwiftBlobStore newBlobStore(Settings settings, @Nullable SecretKey encryptionKey) {
+        final SwiftService service = newService(settings);
+        final Account account = newAccount(service);
+        SwiftAsyncClient asyncClient = null;
+        if (service.asyncHttpClient() != null) {
+            asyncClient = new SwiftAsyncClient(account, service.asyncHttpClient(),
+                                               SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING.get(settings));
+        }
+        final SwiftBlobStore store = new SwiftBlobStore(settings, account, CONTAINER,
+                                                        new SwiftRestClient(account, service.httpClient(), false), asyncClient,
+                                                        encryptionKey);
+        resources.addFirst(store);
+        return store;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift;
+
+import com.carrotsearch.randomizedtesting.ThreadFilter;
+
+/**
+ * Threads of the JDK that outlive the tests using the async transport: the selector of each
+ * java.net.http client, which stops once its client is collected, and the shared pools of the futures
+ */
+public class SwiftThreadFilter implements ThreadFilter {
+    @Override
+    public boolean reject(Thread t) {
+        final String name = t.getName();
+        return (name.startsWith("HttpClient-") && name.endsWith("-SelectorManager"))
+            || name.equals("CompletableFutureDelayScheduler")
+            || name.startsWith("ForkJoinPool.commonPool-worker");
+    }
+}
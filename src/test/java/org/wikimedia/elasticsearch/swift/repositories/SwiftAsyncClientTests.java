@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.runner.RunWith;
+import org.wikimedia.elasticsearch.swift.SwiftEmulatorTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The non-blocking client against the Swift emulator
+ */
+@RunWith(RandomizedRunner.class)
+public class SwiftAsyncClientTests extends SwiftEmulatorTestCase {
+    private static final TimeValue TIMEOUT = TimeValue.timeValueMillis(300);
+
+    private static Settings settings() {
+        return Settings.builder()
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING.getKey(), TIMEOUT)
+            .put(SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING.getKey(), "1ms")
+            .build();
+    }
+
+    private SwiftAsyncClient newClient() {
+        final SwiftService service = newService(settings());
+        return new SwiftAsyncClient(newAccount(service), service.asyncHttpClient(), TIMEOUT);
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        final ExecutionException e = expectThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        return SwiftAsyncClient.unwrap(e);
+    }
+
+    public void testStalledDownloadTimesOut() throws Exception {
+        final SwiftAsyncClient client = newClient();
+        emulator.put(CONTAINER, "blob", randomByteArrayOfLength(10000));
+        emulator.stallResponses("GET /" + CONTAINER + "/blob", 1, 100);
+
+        try (SwiftRestClient.ObjectDownload download = client.getObject(CONTAINER, "blob", 0, -1, null).get(10, TimeUnit.SECONDS).value()) {
+            final InputStream content = download.content();
+            assertEquals(100, content.readNBytes(100).length);
+            final long start = System.nanoTime();
+            expectThrows(HttpTimeoutException.class, content::read);
+            assertTrue(System.nanoTime() - start >= TIMEOUT.nanos());
+        }
+        // the connection was given up, the next request gets another one
+        assertTrue(client.objectExists(CONTAINER, "blob").get(10, TimeUnit.SECONDS).value());
+    }
+
+    public void testDownloadNotReadDoesNotTimeOut() throws Exception {
+        final SwiftAsyncClient client = newClient();
+        final byte[] data = randomByteArrayOfLength(10000);
+        emulator.put(CONTAINER, "blob", data);
+
+        try (SwiftRestClient.ObjectDownload download = client.getObject(CONTAINER, "blob", 0, -1, null).get(10, TimeUnit.SECONDS).value()) {
+            // only waits for bytes count against the timeout
+            Thread.sleep(3 * TIMEOUT.millis());
+            assertArrayEquals(data, download.content().readAllBytes());
+        }
+    }
+
+    public void testStalledHeadersTimeOut() throws Exception {
+        final SwiftAsyncClient client = newClient();
+        emulator.put(CONTAINER, "blob", randomByteArrayOfLength(100));
+        emulator.stallResponses("GET /" + CONTAINER + "/blob", 1, -1);
+        assertTrue(failure(client.getObject(CONTAINER, "blob", 0, -1, null)) instanceof HttpTimeoutException);
+    }
+
+    public void testStalledUploadTimesOut() throws Exception {
+        final SwiftAsyncClient client = newClient();
+        emulator.stallResponses("PUT /" + CONTAINER + "/blob", 1, -1);
+        final byte[] data = randomByteArrayOfLength(1000);
+        final CompletableFuture<?> put = client.putObject(CONTAINER, "blob", () -> new ByteArrayInputStream(data), data.length, null,
+                                                          false, null);
+        assertTrue(failure(put) instanceof HttpTimeoutException);
+    }
+
+    public void testSlowUploadDoesNotTimeOut() throws Exception {
+        final SwiftAsyncClient client = newClient();
+        // objects can only be stored in an existing container
+        emulator.put(CONTAINER, "other", new byte[0]);
+        final byte[] data = randomByteArrayOfLength(10);
+        // the upload takes longer than the timeout, but its bytes keep coming
+        final long pause = TIMEOUT.millis() / 4;
+        final CompletableFuture<SwiftAsyncClient.Response<String>> put = client.putObject(CONTAINER, "blob",
+            () -> new SlowInputStream(data, pause), data.length, null, false, null);
+        assertNotNull(put.get(10, TimeUnit.SECONDS).value());
+        assertArrayEquals(data, emulator.get(CONTAINER, "blob"));
+    }
+
+    public void testCancelAbortsUpload() throws Exception {
+        final SwiftAsyncClient client = newClient();
+        final AtomicLong reads = new AtomicLong();
+        // an endless body, sent chunked
+        final CompletableFuture<?> put = client.putObject(CONTAINER, "blob", () -> new InputStream() {
+            @Override
+            public int read() {
+                reads.incrementAndGet();
+                return 0;
+            }
+        }, -1, null, false, null);
+        assertBusy(() -> assertTrue(reads.get() > 0));
+
+        assertTrue(put.cancel(true));
+        expectThrows(CancellationException.class, put::join);
+        assertBusy(() -> {
+            final long before = reads.get();
+            Thread.sleep(100);
+            assertEquals(before, reads.get());
+        });
+    }
+
+    public void testCancelReleasesResultCompletedAnyway() {
+        final AtomicBoolean closed = new AtomicBoolean();
+        final CompletableFuture<Closeable> request = CompletableFuture.completedFuture(() -> closed.set(true));
+        final CompletableFuture<Closeable> dependent = SwiftAsyncClient.cancelling(new CompletableFuture<>(), request);
+        assertTrue(dependent.cancel(true));
+        assertTrue(closed.get());
+
+        final CompletableFuture<Closeable> pending = new CompletableFuture<>();
+        final CompletableFuture<Closeable> waiting = SwiftAsyncClient.cancelling(new CompletableFuture<>(), pending);
+        assertTrue(waiting.cancel(true));
+        assertTrue(pending.isCancelled());
+    }
+
+    public void testStalledDownloadIsResumed() throws IOException {
+        final BlobContainer container = newBlobStore(settings()).blobContainer(new BlobPath().add("path"));
+        final byte[] data = randomByteArrayOfLength(10000);
+        emulator.put(CONTAINER, "path/blob", data);
+        emulator.stallResponses("GET /" + CONTAINER + "/path/blob", 1, 1000);
+        try (InputStream in = container.readBlob("blob")) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        assertEquals(2, emulator.requestLog().stream().filter(request -> request.equals("GET /" + CONTAINER + "/path/blob")).count());
+    }
+
+    /**
+     * Returns one byte per read, after a pause
+     */
+    private static final class SlowInputStream extends InputStream {
+        private final byte[] data;
+        private final long pauseMillis;
+        private int position;
+
+        SlowInputStream(byte[] data, long pauseMillis) {
+            this.data = data;
+            this.pauseMillis = pauseMillis;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == data.length) {
+                return -1;
+            }
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return data[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final int read = read();
+            if (read == -1) {
+                return -1;
+            }
+            b[off] = (byte) read;
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.wikimedia.elasticsearch.swift.repositories.blobstore.SwiftCompression;
+
+public class SwiftRepositoryTests extends ESTestCase {
+
+    public void testCompressionDefaultsToNone() {
+        assertEquals(SwiftCompression.NONE, SwiftRepository.compression(Settings.EMPTY, Settings.EMPTY));
+    }
+
+    public void testCompressionFallsBackToNodeSetting() {
+        final Settings node = Settings.builder().put(SwiftRepository.Swift.COMPRESSION_SETTING.getKey(), "deflate").build();
+        assertEquals(SwiftCompression.DEFLATE, SwiftRepository.compression(Settings.EMPTY, node));
+    }
+
+    public void testRepositoryCompressionOverridesNodeSetting() {
+        final Settings node = Settings.builder().put(SwiftRepository.Swift.COMPRESSION_SETTING.getKey(), "deflate").build();
+        final Settings none = Settings.builder().put(SwiftRepository.Swift.REPOSITORY_COMPRESSION_SETTING.getKey(), "none").build();
+        assertEquals(SwiftCompression.NONE, SwiftRepository.compression(none, node));
+
+        final Settings deflate = Settings.builder().put(SwiftRepository.Swift.REPOSITORY_COMPRESSION_SETTING.getKey(), "deflate").build();
+        assertEquals(SwiftCompression.DEFLATE, SwiftRepository.compression(deflate, Settings.EMPTY));
+    }
+
+    public void testUnknownRepositoryCompressionRejected() {
+        final Settings settings = Settings.builder().put(SwiftRepository.Swift.REPOSITORY_COMPRESSION_SETTING.getKey(), "lz4").build();
+        expectThrows(IllegalArgumentException.class, () -> SwiftRepository.compression(settings, Settings.EMPTY));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.settings.Settings;
+import org.javaswift.joss.model.Account;
+import org.junit.runner.RunWith;
+import org.wikimedia.elasticsearch.swift.SwiftEmulatorTestCase;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accounts and tokens of the service, against the Swift emulator
+ */
+@RunWith(RandomizedRunner.class)
+public class SwiftServiceTests extends SwiftEmulatorTestCase {
+
+    private static String token(Account account) {
+        return account.getAccess().getToken();
+    }
+
+    public void testAccountsSharedUntilLastRelease() {
+        final SwiftService service = newService(Settings.EMPTY);
+        final Account first = newAccount(service);
+        final Account second = newAccount(service);
+        assertSame(first, second);
+        assertEquals(1, emulator.authentications());
+
+        service.releaseAccount(first);
+        assertSame(first, newAccount(service));
+        service.releaseAccount(first);
+        service.releaseAccount(first);
+
+        // authenticated again once every user let go of it
+        final Account third = newAccount(service);
+        assertNotSame(first, third);
+        assertEquals(2, emulator.authentications());
+    }
+
+    public void testTokenRenewedBeforeExpiry() throws Exception {
+        emulator.tokenLifetime(2);
+        final SwiftService service = newService(Settings.EMPTY);
+        final Account account = newAccount(service);
+        final String token = token(account);
+        assertBusy(() -> assertNotEquals(token, token(account)), 10, TimeUnit.SECONDS);
+    }
+
+    public void testTokenRenewedWhileInUse() throws Exception {
+        emulator.tokenLifetime(2);
+        final SwiftService service = newService(Settings.EMPTY);
+        final Account account = newAccount(service);
+        final SwiftRestClient client = new SwiftRestClient(account, service.httpClient(), false);
+        emulator.put(CONTAINER, "blob", new byte[10]);
+
+        // requests only, the account is not looked up again
+        final long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < until) {
+            assertNotNull(client.headObject(CONTAINER, "blob"));
+            Thread.sleep(50);
+        }
+        assertTrue(emulator.authentications() > 2);
+        assertEquals(0, emulator.rejectedTokens());
+    }
+
+    public void testReleasedAccountNoLongerRenewed() throws Exception {
+        emulator.tokenLifetime(1);
+        final SwiftService service = newService(Settings.EMPTY);
+        final Account account = newAccount(service);
+        assertBusy(() -> assertTrue(emulator.authentications() > 1), 10, TimeUnit.SECONDS);
+
+        service.releaseAccount(account);
+        // a renewal may have been in flight
+        Thread.sleep(500);
+        final long authentications = emulator.authentications();
+        Thread.sleep(2000);
+        assertEquals(authentications, emulator.authentications());
+    }
+
+    public void testRequestRetriedOnceWithFreshToken() throws Exception {
+        final boolean async = randomBoolean();
+        final SwiftService service = newService(Settings.builder()
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), async)
+            .build());
+        final Account account = newAccount(service);
+        final SwiftRestClient restClient = new SwiftRestClient(account, service.httpClient(), false);
+        final SwiftAsyncClient asyncClient = async ? new SwiftAsyncClient(account, service.asyncHttpClient(),
+                                                                          SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING.get(
+                                                                              Settings.EMPTY)) : null;
+        emulator.put(CONTAINER, "blob", new byte[10]);
+        final String request = "HEAD /" + CONTAINER + "/blob";
+
+        // the token expired: renewed, and the request sent again
+        emulator.expireTokens();
+        final String token = token(account);
+        assertTrue(exists(restClient, asyncClient));
+        assertEquals(1, emulator.rejectedTokens());
+        assertEquals(2, emulator.authentications());
+        assertNotEquals(token, token(account));
+        assertEquals(2, emulator.requestLog().stream().filter(request::equals).count());
+
+        // rejected again with the fresh token: given up
+        emulator.failRequests(request, 2, 401);
+        final SwiftRestClient.ResponseException e = expectThrows(SwiftRestClient.ResponseException.class,
+                                                                   () -> exists(restClient, asyncClient));
+        assertEquals(401, e.status());
+        assertEquals(4, emulator.requestLog().stream().filter(request::equals).count());
+    }
+
+    private static boolean exists(SwiftRestClient restClient, SwiftAsyncClient asyncClient) throws Exception {
+        if (asyncClient == null) {
+            return restClient.headObject(CONTAINER, "blob") != null;
+        }
+        try {
+            return asyncClient.objectExists(CONTAINER, "blob").get(10, TimeUnit.SECONDS).value();
+        } catch (java.util.concurrent.ExecutionException e) {
+            final Throwable cause = SwiftAsyncClient.unwrap(e);
+            throw cause instanceof Exception ? (Exception) cause : new IOException(cause);
+        }
+    }
+
+    public void testKeystoneExpiry() {
+        final Instant expiry = Instant.ofEpochSecond(randomLongBetween(0, 4_000_000_000L));
+        // v3
+        assertEquals(expiry.toEpochMilli(), SwiftService.keystoneExpiry(
+            Map.of("token", Map.of("expires_at", expiry.toString()))));
+        assertEquals(expiry.toEpochMilli(), SwiftService.keystoneExpiry(
+            Map.of("token", Map.of("expires_at", LocalDateTime.ofInstant(expiry, ZoneOffset.UTC) + ".000000Z"))));
+        // v2, with and without an offset
+        assertEquals(expiry.toEpochMilli(), SwiftService.keystoneExpiry(
+            Map.of("access", Map.of("token", Map.of("id", "token", "expires", expiry.toString())))));
+        assertEquals(expiry.toEpochMilli(), SwiftService.keystoneExpiry(
+            Map.of("access", Map.of("token", Map.of("expires", LocalDateTime.ofInstant(expiry, ZoneOffset.UTC).toString())))));
+        // not told
+        assertEquals(-1, SwiftService.keystoneExpiry(Collections.emptyMap()));
+        assertEquals(-1, SwiftService.keystoneExpiry(Map.of("access", Map.of("token", Map.of("id", "token")))));
+        assertEquals(-1, SwiftService.keystoneExpiry(Map.of("token", Map.of("expires_at", "tomorrow"))));
+    }
+}
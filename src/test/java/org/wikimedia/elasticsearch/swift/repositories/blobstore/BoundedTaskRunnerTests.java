@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BoundedTaskRunnerTests extends ESTestCase {
+    private ExecutorService executor;
+
+    @Before
+    public void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void stopExecutor() throws InterruptedException {
+        assertTrue(terminate(executor));
+    }
+
+    public void testCollectsAllResults() throws IOException {
+        final BoundedTaskRunner<Integer> runner = new BoundedTaskRunner<>(executor, randomIntBetween(1, 4));
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final int value = i;
+            expected.add(value);
+            if (randomBoolean()) {
+                runner.submit(() -> value);
+            } else {
+                runner.submitAsync(() -> CompletableFuture.supplyAsync(() -> value, executor));
+            }
+        }
+        final List<Integer> results = new ArrayList<>(runner.awaitAll());
+        results.sort(Integer::compare);
+        assertEquals(expected, results);
+    }
+
+    public void testBoundsTasksInFlight() throws IOException {
+        final int maxInFlight = randomIntBetween(1, 3);
+        final BoundedTaskRunner<Integer> runner = new BoundedTaskRunner<>(executor, maxInFlight);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            runner.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(randomIntBetween(0, 5));
+                running.decrementAndGet();
+                return 0;
+            });
+        }
+        assertEquals(20, runner.awaitAll().size());
+        assertTrue(maxRunning.get() <= maxInFlight);
+    }
+
+    public void testFailureThrownByAwaitAll() throws IOException {
+        final BoundedTaskRunner<Integer> runner = new BoundedTaskRunner<>(executor, 4);
+        final IOException first = new IOException("first");
+        final CountDownLatch failed = new CountDownLatch(1);
+        runner.submit(() -> {
+            failed.countDown();
+            throw first;
+        });
+        runner.submit(() -> {
+            failed.await();
+            throw new IOException("second");
+        });
+        runner.submit(() -> 1);
+
+        final IOException e = expectThrows(IOException.class, runner::awaitAll);
+        // the first failure collected, with the others suppressed
+        if (e == first) {
+            assertEquals(1, e.getSuppressed().length);
+            assertEquals("second", e.getSuppressed()[0].getMessage());
+        } else {
+            assertEquals("second", e.getMessage());
+            assertSame(first, e.getSuppressed()[0]);
+        }
+    }
+
+    public void testFailureThrownByNextSubmit() throws IOException {
+        final BoundedTaskRunner<Integer> runner = new BoundedTaskRunner<>(executor, 1);
+        final IOException failure = new IOException("failed");
+        runner.submit(() -> {
+            throw failure;
+        });
+        // waits for the failed task to free its slot, and gives up
+        final AtomicInteger ran = new AtomicInteger();
+        assertSame(failure, expectThrows(IOException.class, () -> runner.submit(ran::incrementAndGet)));
+        assertEquals(0, ran.get());
+    }
+
+    public void testRuntimeExceptionWrapped() throws IOException {
+        final BoundedTaskRunner<Integer> runner = new BoundedTaskRunner<>(executor, 2);
+        final IllegalStateException failure = new IllegalStateException("failed");
+        runner.submit(() -> {
+            throw failure;
+        });
+        final IOException e = expectThrows(IOException.class, runner::awaitAll);
+        assertSame(failure, e.getCause());
+    }
+
+    public void testAsyncFailuresUnwrapped() throws IOException {
+        final BoundedTaskRunner<Integer> runner = new BoundedTaskRunner<>(executor, 2);
+        final IOException failure = new IOException("failed");
+        runner.submitAsync(() -> CompletableFuture.failedFuture(new CompletionException(failure)));
+        assertSame(failure, expectThrows(IOException.class, runner::awaitAll));
+
+        // a task failing to start counts as a failed task
+        final BoundedTaskRunner<Integer> other = new BoundedTaskRunner<>(executor, 2);
+        final IllegalArgumentException rejected = new IllegalArgumentException("rejected");
+        other.submitAsync(() -> {
+            throw rejected;
+        });
+        other.submit(() -> 1);
+        assertSame(rejected, expectThrows(IOException.class, other::awaitAll).getCause());
+    }
+}
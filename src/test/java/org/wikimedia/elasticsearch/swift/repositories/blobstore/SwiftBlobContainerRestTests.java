@@ -0,0 +1,389 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobMetaData;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.runner.RunWith;
+import org.wikimedia.elasticsearch.swift.SwiftEmulatorTestCase;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blob containers against the Swift emulator, through the rest client
+ */
+@RunWith(RandomizedRunner.class)
+public class SwiftBlobContainerRestTests extends SwiftEmulatorTestCase {
+
+    private void seed(String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            emulator.put(CONTAINER, prefix + String.format("%03d", i), randomByteArrayOfLength(randomIntBetween(1, 16)));
+        }
+    }
+
+    /**
+     * @return settings for conditional PUTs, retried without delay, through a random transport
+     */
+    private static Settings.Builder conditionalPutSettings() {
+        return Settings.builder()
+            .put(SwiftRepository.Swift.CONDITIONAL_PUT_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING.getKey(), "1ms")
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), randomBoolean());
+    }
+
+    private static byte[] write(BlobContainer container, String name, int length, boolean failIfAlreadyExists) throws IOException {
+        final byte[] data = randomByteArrayOfLength(length);
+        container.writeBlob(name, new ByteArrayInputStream(data), data.length, failIfAlreadyExists);
+        return data;
+    }
+
+    private long requests(String request) {
+        return emulator.requestLog().stream().filter(line -> line.equals(request)).count();
+    }
+
+    private void assertListsEverything(boolean advertised) throws IOException {
+        emulator.listingLimit(3, advertised);
+        final SwiftBlobStore store = newBlobStore(Settings.EMPTY);
+        seed("path/blob-", 10);
+        seed("path/dir-a/blob-", 2);
+        seed("path/dir-b/blob-", 2);
+        seed("path/dir-c/blob-", 2);
+        seed("path/dir-d/blob-", 2);
+
+        final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+        final Map<String, BlobMetaData> blobs = container.listBlobs();
+        assertEquals(10, blobs.size());
+        assertTrue(blobs.containsKey("blob-009"));
+        assertEquals(4, container.children().size());
+        assertEquals(10, container.listBlobsByPrefix("blob-").size());
+    }
+
+    public void testListingPagesUpToAdvertisedLimit() throws IOException {
+        assertListsEverything(true);
+        // every page was asked for at the announced limit
+        assertTrue(emulator.requestLog().stream().filter(request -> request.startsWith("GET /" + CONTAINER + "?"))
+            .allMatch(request -> request.contains("limit=3")));
+    }
+
+    public void testListingPagesPastShortPagesWithoutAdvertisedLimit() throws IOException {
+        assertListsEverything(false);
+    }
+
+    public void testConditionalWriteRejectsExistingBlob() throws IOException {
+        final BlobContainer container = newBlobStore(conditionalPutSettings().build()).blobContainer(new BlobPath().add("path"));
+        final byte[] data = write(container, "blob", 100, true);
+        expectThrows(FileAlreadyExistsException.class, () -> write(container, "blob", 100, true));
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/blob"));
+        // overwrites are still allowed
+        final byte[] overwritten = write(container, "blob", 100, false);
+        assertArrayEquals(overwritten, emulator.get(CONTAINER, "path/blob"));
+    }
+
+    public void testConditionalWriteSurvivesLostResponse() throws IOException {
+        final BlobContainer container = newBlobStore(conditionalPutSettings().build()).blobContainer(new BlobPath().add("path"));
+        emulator.dropResponses("PUT /" + CONTAINER + "/path/blob", 1);
+
+        final byte[] data = write(container, "blob", randomIntBetween(1, 1024), true);
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/blob"));
+        assertEquals(2, requests("PUT /" + CONTAINER + "/path/blob"));
+        assertEquals(1, requests("HEAD /" + CONTAINER + "/path/blob"));
+    }
+
+    public void testConditionalWriteRetriedOntoAnotherBlob() throws IOException {
+        final BlobContainer container = newBlobStore(conditionalPutSettings().build()).blobContainer(new BlobPath().add("path"));
+        final byte[] existing = randomByteArrayOfLength(100);
+        emulator.put(CONTAINER, "path/blob", existing);
+        emulator.failRequests("PUT /" + CONTAINER + "/path/blob", 1, 503);
+
+        expectThrows(FileAlreadyExistsException.class, () -> write(container, "blob", 100, true));
+        assertArrayEquals(existing, emulator.get(CONTAINER, "path/blob"));
+        assertEquals(1, requests("HEAD /" + CONTAINER + "/path/blob"));
+    }
+
+    public void testConditionalLargeObjectSurvivesLostManifestResponse() throws IOException {
+        final SwiftBlobStore store = newBlobStore(conditionalPutSettings()
+            .put(SwiftRepository.Swift.SEGMENTED_UPLOAD_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.SEGMENT_SIZE_SETTING.getKey(), new ByteSizeValue(1, ByteSizeUnit.MB))
+            .build());
+        final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+        emulator.dropResponses("PUT /" + CONTAINER + "/path/blob?multipart-manifest=put", 1);
+
+        final byte[] data = write(container, "blob", 2 * 1024 * 1024 + 1, true);
+        assertTrue(emulator.largeObject(CONTAINER, "path/blob"));
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/blob"));
+        assertEquals(1, requests("HEAD /" + CONTAINER + "/path/blob"));
+        expectThrows(FileAlreadyExistsException.class, () -> write(container, "blob", 2 * 1024 * 1024 + 1, true));
+    }
+
+    public void testAtomicWriteSurvivesLostCopyResponse() throws IOException {
+        final BlobContainer container = newBlobStore(conditionalPutSettings().build()).blobContainer(new BlobPath().add("path"));
+        // the temporary blob is named pending-..., only the copy matches
+        emulator.dropResponses("PUT /" + CONTAINER + "/path/blob", 1);
+
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 1024));
+        container.writeBlobAtomic("blob", new ByteArrayInputStream(data), data.length, true);
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/blob"));
+        assertEquals(2, requests("PUT /" + CONTAINER + "/path/blob"));
+        assertEquals(Collections.singletonList("path/blob"), emulator.list(CONTAINER));
+    }
+
+    public void testAtomicWriteRejectsExistingBlob() throws IOException {
+        final BlobContainer container = newBlobStore(conditionalPutSettings().build()).blobContainer(new BlobPath().add("path"));
+        final byte[] existing = randomByteArrayOfLength(100);
+        emulator.put(CONTAINER, "path/blob", existing);
+        // the retried copy is answered 412 for an object that is not ours
+        emulator.failRequests("PUT /" + CONTAINER + "/path/blob", 1, 503);
+
+        final byte[] data = randomByteArrayOfLength(100);
+        expectThrows(FileAlreadyExistsException.class,
+            () -> container.writeBlobAtomic("blob", new ByteArrayInputStream(data), data.length, true));
+        assertArrayEquals(existing, emulator.get(CONTAINER, "path/blob"));
+        assertEquals(Collections.singletonList("path/blob"), emulator.list(CONTAINER));
+    }
+
+    public void testAtomicWriteRemovesStaleTempBlobs() throws IOException {
+        final BlobContainer container = newBlobStore(Settings.EMPTY).blobContainer(new BlobPath().add("path"));
+        final long now = System.currentTimeMillis();
+        final String stale = "pending-" + (now - SwiftBlobContainer.STALE_TEMP_BLOB_AGE_MILLIS - 1000) + "-index-5-uuid";
+        final String recent = SwiftBlobContainer.tempBlobName("index-6");
+        emulator.put(CONTAINER, "path/" + stale, new byte[1]);
+        emulator.put(CONTAINER, "path/" + recent, new byte[1]);
+        emulator.put(CONTAINER, "path/pending-blob", new byte[1]);
+        emulator.put(CONTAINER, "path/blob", new byte[1]);
+        emulator.put(CONTAINER, "other/" + stale, new byte[1]);
+
+        // deletes do not list anything
+        container.deleteBlobsIgnoringIfNotExists(Collections.singletonList("blob"));
+        assertTrue(emulator.requestLog().stream().noneMatch(request -> request.startsWith("GET /" + CONTAINER + "?")));
+        assertNotNull(emulator.get(CONTAINER, "path/" + stale));
+
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 1024));
+        container.writeBlobAtomic("index-7", new ByteArrayInputStream(data), data.length, false);
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/index-7"));
+        assertNull(emulator.get(CONTAINER, "path/" + stale));
+        assertNotNull(emulator.get(CONTAINER, "path/" + recent));
+        // not written by writeBlobAtomic
+        assertNotNull(emulator.get(CONTAINER, "path/pending-blob"));
+        // other directories are left to their own atomic writes
+        assertNotNull(emulator.get(CONTAINER, "other/" + stale));
+    }
+
+    public void testTempBlobCreationTime() {
+        final long before = System.currentTimeMillis();
+        final long created = SwiftBlobContainer.tempBlobCreationMillis(SwiftBlobContainer.tempBlobName("index-" + randomInt()));
+        assertTrue(created >= before && created <= System.currentTimeMillis());
+        assertEquals(-1, SwiftBlobContainer.tempBlobCreationMillis("index-5"));
+        assertEquals(-1, SwiftBlobContainer.tempBlobCreationMillis("pending-index-5-uuid"));
+        assertEquals(-1, SwiftBlobContainer.tempBlobCreationMillis("pending-"));
+    }
+
+    public void testSmallUploadRetriedWhileTransferMemoryExhausted() throws IOException {
+        final SwiftBlobStore store = newBlobStore(Settings.builder()
+            .put(SwiftRepository.Swift.TRANSFER_MEMORY_SETTING.getKey(), "0b")
+            .put(SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING.getKey(), "1ms")
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), randomBoolean())
+            .build());
+        final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+        emulator.failRequests("PUT /" + CONTAINER + "/path/blob", 1, 503);
+
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(0, 1024));
+        // a stream that cannot be rewound by itself
+        final InputStream in = new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        container.writeBlob("blob", in, data.length, false);
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/blob"));
+        assertEquals(2, requests("PUT /" + CONTAINER + "/path/blob"));
+        assertTrue(store.stats().transferBuffers().exhausted() > 0);
+    }
+
+    public void testLargeUploadStreamedWithContentLength() throws IOException {
+        final SwiftBlobStore store = newBlobStore(Settings.EMPTY);
+        final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+        // too large to be buffered for retries, so sent as it is read
+        final byte[] data = randomByteArrayOfLength(store.bufferSizeInBytes() + randomIntBetween(1, 64 * 1024));
+        final InputStream in = new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        container.writeBlob("blob", in, data.length, false);
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/blob"));
+        assertEquals(1, requests("PUT /" + CONTAINER + "/path/blob"));
+        assertEquals(0, emulator.chunkedRequests());
+        assertEquals(0, store.transferBuffers().inUseBytes());
+    }
+
+    public void testReadResumesTruncatedDownloads() throws IOException {
+        final SwiftBlobStore store = newBlobStore(Settings.builder()
+            .put(SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING.getKey(), "1ms")
+            .put(SwiftRepository.Swift.READ_MAX_RETRIES_SETTING.getKey(), 2)
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), randomBoolean())
+            .build());
+        final SwiftBlobContainer container = (SwiftBlobContainer) store.blobContainer(new BlobPath().add("path"));
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(1024, 64 * 1024));
+        emulator.put(CONTAINER, "path/blob", data);
+        final String get = "GET /" + CONTAINER + "/path/blob";
+
+        // each attempt resumes where the last one broke off
+        emulator.truncateResponses(get, 2, randomIntBetween(0, data.length - 1));
+        try (InputStream in = container.readBlob("blob")) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        assertEquals(3, requests(get));
+
+        // within the range of a ranged read
+        emulator.truncateResponses(get, 1, 10);
+        try (InputStream in = container.readBlob("blob", 100, 500)) {
+            assertArrayEquals(Arrays.copyOfRange(data, 100, 600), in.readAllBytes());
+        }
+        assertEquals(5, requests(get));
+
+        // up to read_max_retries times
+        emulator.truncateResponses(get, 3, 10);
+        expectThrows(IOException.class, () -> {
+            try (InputStream in = container.readBlob("blob")) {
+                in.readAllBytes();
+            }
+        });
+    }
+
+    /**
+     * @return number of buffers left in the download memory budget of a store
+     */
+    private static int freeDownloadBuffers(SwiftBlobStore store) {
+        final int free = store.reserveDownloadBuffers(100);
+        store.releaseDownloadBuffers(free);
+        return free;
+    }
+
+    public void testClosedParallelDownloadKeepsBuffersOfRunningChunks() throws Exception {
+        final SwiftBlobStore store = newBlobStore(Settings.builder()
+            .put(SwiftRepository.Swift.PARALLEL_DOWNLOAD_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.PARALLEL_DOWNLOAD_THRESHOLD_SETTING.getKey(), "0b")
+            .put(SwiftRepository.Swift.DOWNLOAD_CHUNK_SIZE_SETTING.getKey(), "1mb")
+            .put(SwiftRepository.Swift.DOWNLOAD_CONCURRENCY_SETTING.getKey(), 2)
+            .put(SwiftRepository.Swift.DOWNLOAD_MEMORY_SETTING.getKey(), "3mb")
+            .put(SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING.getKey(), "2s")
+            .build());
+        emulator.put(CONTAINER, "path/blob", randomByteArrayOfLength(3 * 1024 * 1024));
+        final SwiftRetryingInputStream head = new SwiftRetryingInputStream(store, "path/blob", 0, -1, null);
+        // the ranged GETs of the other two chunks hang
+        emulator.stallResponses("GET /" + CONTAINER + "/path/blob", 2, 100);
+        final InputStream in = ParallelDownloadInputStream.tryOpen(store, "path/blob", head);
+        assertNotNull(in);
+        assertEquals(0, freeDownloadBuffers(store));
+        assertBusy(() -> assertEquals(3, requests("GET /" + CONTAINER + "/path/blob")));
+
+        in.close();
+        // the chunks still downloading keep their buffer until their task ends
+        assertEquals(1, freeDownloadBuffers(store));
+        assertBusy(() -> assertEquals(3, freeDownloadBuffers(store)), 30, TimeUnit.SECONDS);
+    }
+
+    public void testParallelDownloadGivesBackAllBuffers() throws Exception {
+        final SwiftBlobStore store = newBlobStore(Settings.builder()
+            .put(SwiftRepository.Swift.PARALLEL_DOWNLOAD_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.PARALLEL_DOWNLOAD_THRESHOLD_SETTING.getKey(), "0b")
+            .put(SwiftRepository.Swift.DOWNLOAD_CHUNK_SIZE_SETTING.getKey(), "1mb")
+            .put(SwiftRepository.Swift.DOWNLOAD_CONCURRENCY_SETTING.getKey(), 2)
+            .put(SwiftRepository.Swift.DOWNLOAD_MEMORY_SETTING.getKey(), "3mb")
+            .build());
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(3 * 1024 * 1024, 5 * 1024 * 1024));
+        emulator.put(CONTAINER, "path/blob", data);
+        final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+        try (InputStream in = container.readBlob("blob")) {
+            // read partly or fully
+            final byte[] read = in.readNBytes(randomBoolean() ? data.length : randomIntBetween(0, data.length));
+            assertArrayEquals(Arrays.copyOf(data, read.length), read);
+        }
+        // once the chunks cancelled mid-download are done
+        assertBusy(() -> assertEquals(3, freeDownloadBuffers(store)));
+    }
+
+    public void testReadDetectsCorruptedBlob() throws IOException {
+        final boolean verify = randomBoolean();
+        final BlobContainer container = newBlobStore(Settings.builder()
+            .put(SwiftRepository.Swift.VERIFY_CHECKSUMS_SETTING.getKey(), verify)
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), randomBoolean())
+            .build()).blobContainer(new BlobPath().add("path"));
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 1024));
+        emulator.put(CONTAINER, "path/blob", data);
+        emulator.corruptEtags("GET /" + CONTAINER + "/path/blob", 1);
+
+        try (InputStream in = container.readBlob("blob")) {
+            if (verify) {
+                final SwiftCorruptionException e = expectThrows(SwiftCorruptionException.class, in::readAllBytes);
+                assertEquals("path/blob", e.key());
+            } else {
+                assertArrayEquals(data, in.readAllBytes());
+            }
+        }
+        // the next download is fine
+        try (InputStream in = container.readBlob("blob")) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+
+    public void testWriteDetectsCorruptedUpload() throws IOException {
+        final BlobContainer container = newBlobStore(Settings.builder()
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), randomBoolean())
+            .build()).blobContainer(new BlobPath().add("path"));
+        emulator.corruptEtags("PUT /" + CONTAINER + "/path/blob", 1);
+
+        final SwiftCorruptionException e = expectThrows(SwiftCorruptionException.class,
+            () -> write(container, "blob", randomIntBetween(1, 1024), false));
+        assertEquals("path/blob", e.key());
+        assertEquals(1, requests("PUT /" + CONTAINER + "/path/blob"));
+    }
+
+    public void testLargeObjectManifestEtagChecked() throws IOException {
+        final BlobContainer container = newBlobStore(Settings.builder()
+            .put(SwiftRepository.Swift.SEGMENTED_UPLOAD_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.SEGMENT_SIZE_SETTING.getKey(), new ByteSizeValue(1, ByteSizeUnit.MB))
+            .build()).blobContainer(new BlobPath().add("path"));
+        emulator.corruptEtags("PUT /" + CONTAINER + "/path/blob?multipart-manifest=put", 1);
+
+        final SwiftCorruptionException e = expectThrows(SwiftCorruptionException.class,
+            () -> write(container, "blob", 2 * 1024 * 1024 + 1, false));
+        assertEquals("path/blob", e.key());
+        assertNotEquals(e.expected(), SwiftRestClient.unquote(e.actual()));
+
+        // a manifest answered with its own ETag goes through
+        final byte[] data = write(container, "blob", 2 * 1024 * 1024 + 1, false);
+        assertTrue(emulator.largeObject(CONTAINER, "path/blob"));
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/blob"));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.blobstore.DeleteResult;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.runner.RunWith;
+import org.wikimedia.elasticsearch.swift.SwiftEmulatorTestCase;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The blob store against the Swift emulator, through the rest client
+ */
+@RunWith(RandomizedRunner.class)
+public class SwiftBlobStoreRestTests extends SwiftEmulatorTestCase {
+
+    private Map<String, Long> seed(String prefix, int count) {
+        final Map<String, Long> objects = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 16));
+            emulator.put(CONTAINER, prefix + i, data);
+            objects.put(prefix + i, (long) data.length);
+        }
+        return objects;
+    }
+
+    private static final String SEGMENTS = CONTAINER + SwiftBlobStore.SEGMENTS_CONTAINER_SUFFIX;
+
+    private SwiftBlobStore newSegmentedBlobStore() {
+        return newBlobStore(Settings.builder()
+            .put(SwiftRepository.Swift.SEGMENTED_UPLOAD_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.SEGMENT_SIZE_SETTING.getKey(), new ByteSizeValue(1, ByteSizeUnit.MB))
+            .build());
+    }
+
+    private static byte[] writeLargeBlob(BlobContainer container, String name) throws IOException {
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(1024 * 1024 + 1, 3 * 1024 * 1024));
+        container.writeBlob(name, new ByteArrayInputStream(data), data.length, false);
+        return data;
+    }
+
+    private static long bytes(Map<String, Long> objects) {
+        return objects.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    private long bulkDeletes() {
+        return emulator.requestLog().stream().filter(request -> request.startsWith("POST ?bulk-delete")).count();
+    }
+
+    public void testBulkDeleteInBatches() throws IOException {
+        emulator.bulkDeleteLimits(5, 5);
+        final SwiftBlobStore store = newBlobStore(Settings.EMPTY);
+        final Map<String, Long> objects = seed("path/blob-", 12);
+
+        final DeleteResult result = store.deleteObjects(objects);
+        assertEquals(12, result.blobsDeleted());
+        assertEquals(bytes(objects), result.bytesDeleted());
+        assertEquals(3, bulkDeletes());
+        assertTrue(emulator.list(CONTAINER).isEmpty());
+    }
+
+    public void testBulkDeleteSplitsBatchesTooLarge() throws IOException {
+        emulator.bulkDeleteLimits(8, 2);
+        final SwiftBlobStore store = newBlobStore(Settings.EMPTY);
+        final Map<String, Long> objects = seed("path/blob-", 8);
+
+        // 8 rejected, then 4 and 4 rejected, then 4 batches of 2
+        DeleteResult result = store.deleteObjects(objects);
+        assertEquals(8, result.blobsDeleted());
+        assertEquals(bytes(objects), result.bytesDeleted());
+        assertEquals(7, bulkDeletes());
+
+        // later batches are sized like the halves that went through
+        final Map<String, Long> more = seed("path/more-", 8);
+        result = store.deleteObjects(more);
+        assertEquals(8, result.blobsDeleted());
+        assertEquals(7 + 4, bulkDeletes());
+        assertTrue(emulator.list(CONTAINER).isEmpty());
+    }
+
+    public void testBulkDeleteFallsBackToSingleDeletes() throws IOException {
+        emulator.bulkDeleteLimits(4, 0);
+        final SwiftBlobStore store = newBlobStore(Settings.EMPTY);
+        final Map<String, Long> objects = seed("path/blob-", 3);
+
+        final DeleteResult result = store.deleteObjects(objects);
+        assertEquals(3, result.blobsDeleted());
+        assertEquals(bytes(objects), result.bytesDeleted());
+        for (String key : objects.keySet()) {
+            assertTrue(emulator.requestLog().contains("DELETE /" + CONTAINER + "/" + key));
+        }
+        assertTrue(emulator.list(CONTAINER).isEmpty());
+    }
+
+    public void testBulkDeleteOnlyCountsDeletedBytes() throws IOException {
+        final SwiftBlobStore store = newBlobStore(Settings.EMPTY);
+        emulator.put(CONTAINER, "path/blob", new byte[10]);
+        final Map<String, Long> objects = new LinkedHashMap<>();
+        objects.put("path/blob", 10L);
+        objects.put("path/missing", 100L);
+
+        final DeleteResult result = store.deleteObjects(objects);
+        assertEquals(1, result.blobsDeleted());
+        assertEquals(10, result.bytesDeleted());
+    }
+
+    public void testBulkDeleteReportsFailedObjects() throws IOException {
+        final SwiftBlobStore store = newBlobStore(Settings.EMPTY);
+        final Map<String, Long> objects = seed("path/blob-", 3);
+        emulator.failBulkDelete(CONTAINER, "path/blob-1");
+
+        final IOException e = expectThrows(IOException.class, () -> store.deleteObjects(objects));
+        assertTrue(e.getMessage(), e.getMessage().contains("path/blob-1"));
+        assertEquals(1, emulator.list(CONTAINER).size());
+        assertNotNull(emulator.get(CONTAINER, "path/blob-1"));
+    }
+
+    public void testDeletePathPagesPastShortPages() throws IOException {
+        emulator.listingLimit(3, randomBoolean());
+        final SwiftBlobStore store = newBlobStore(Settings.EMPTY);
+        final Map<String, Long> objects = seed("path/blob-", 10);
+        objects.putAll(seed("path/dir/blob-", 4));
+        emulator.put(CONTAINER, "other/blob", new byte[1]);
+
+        final DeleteResult result = store.delete(new BlobPath().add("path"));
+        assertEquals(14, result.blobsDeleted());
+        assertEquals(bytes(objects), result.bytesDeleted());
+        assertEquals(1, emulator.list(CONTAINER).size());
+    }
+
+    public void testDeleteSegmentsAcrossDirectories() throws IOException {
+        final SwiftBlobStore store = newSegmentedBlobStore();
+        final BlobContainer first = store.blobContainer(new BlobPath().add("first"));
+        final BlobContainer second = store.blobContainer(new BlobPath().add("second").add("nested"));
+        writeLargeBlob(first, "blob");
+        writeLargeBlob(second, "blob");
+        writeLargeBlob(second, "kept");
+        final BlobContainer root = store.blobContainer(new BlobPath());
+        writeLargeBlob(root, "blob");
+        assertTrue(emulator.largeObject(CONTAINER, "first/blob"));
+
+        final Map<String, Long> objects = new LinkedHashMap<>();
+        objects.put("first/blob", 0L);
+        objects.put("second/nested/blob", 0L);
+        objects.put("blob", 0L);
+        final DeleteResult result = store.deleteObjects(objects);
+        assertEquals(3, result.blobsDeleted());
+        assertEquals(1, emulator.list(CONTAINER).size());
+        assertTrue(emulator.list(SEGMENTS).stream().allMatch(segment -> segment.startsWith("second/nested/kept/")));
+        assertNotNull(emulator.get(CONTAINER, "second/nested/kept"));
+    }
+
+    public void testOverwriteDeletesStaleSegments() throws IOException {
+        final SwiftBlobStore store = newSegmentedBlobStore();
+        final BlobContainer container = store.blobContainer(new BlobPath().add("path"));
+        final byte[] other = writeLargeBlob(container, "other");
+        writeLargeBlob(container, "blob");
+        final byte[] data = writeLargeBlob(container, "blob");
+
+        assertArrayEquals(data, emulator.get(CONTAINER, "path/blob"));
+        assertArrayEquals(other, emulator.get(CONTAINER, "path/other"));
+        final long uploads = emulator.list(SEGMENTS).stream()
+            .filter(segment -> segment.startsWith("path/blob/"))
+            .map(segment -> segment.substring(0, segment.lastIndexOf('/')))
+            .distinct()
+            .count();
+        assertEquals(1, uploads);
+    }
+}
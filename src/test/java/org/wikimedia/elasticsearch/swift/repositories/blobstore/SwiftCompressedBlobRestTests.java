@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobMetaData;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.runner.RunWith;
+import org.wikimedia.elasticsearch.swift.SwiftEmulatorTestCase;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compressed blobs against the Swift emulator, through the rest client
+ */
+@RunWith(RandomizedRunner.class)
+public class SwiftCompressedBlobRestTests extends SwiftEmulatorTestCase {
+    private static final String GET = "GET /" + CONTAINER + "/path/blob";
+    private static final String HEAD = "HEAD /" + CONTAINER + "/path/blob";
+
+    /**
+     * @return settings for compression, retried without delay, through the given transport
+     */
+    private static Settings.Builder compressionSettings(boolean async) {
+        return Settings.builder()
+            .put(SwiftRepository.Swift.COMPRESSION_SETTING.getKey(), "deflate")
+            .put(SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING.getKey(), "1ms")
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), async);
+    }
+
+    private SwiftBlobContainer container(Settings.Builder settings) {
+        return (SwiftBlobContainer) newBlobStore(settings.build()).blobContainer(new BlobPath().add("path"));
+    }
+
+    /**
+     * @return runs of repeated bytes, that compress well
+     */
+    private static byte[] compressible(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; ) {
+            final int run = Math.min(length - i, randomIntBetween(1, 64));
+            Arrays.fill(data, i, i + run, randomByte());
+            i += run;
+        }
+        return data;
+    }
+
+    private static byte[] write(BlobContainer container, String name, byte[] data) throws IOException {
+        container.writeBlob(name, new ByteArrayInputStream(data), data.length, false);
+        return data;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private static void assertRange(byte[] data, SwiftBlobContainer container, String name, long position, long length) throws IOException {
+        final int from = (int) Math.min(position, data.length);
+        final int to = (int) Math.min(position + length, data.length);
+        assertArrayEquals("range [" + position + "] of [" + length + "] bytes", Arrays.copyOfRange(data, from, to),
+                          read(container.readBlob(name, position, length)));
+    }
+
+    private long requests(String request) {
+        return emulator.requestLog().stream().filter(line -> line.equals(request)).count();
+    }
+
+    public void testStreamedUploads() throws IOException {
+        // the encoded length is not known up front: a chunked PUT on the rest client, no length on the async one
+        for (boolean async : new boolean[] { false, true }) {
+            final SwiftBlobContainer container = container(compressionSettings(async));
+            for (int length : new int[] { 0, 1, randomIntBetween(2, 64 * 1024) }) {
+                final long chunked = emulator.chunkedRequests();
+                final byte[] data = write(container, "blob", compressible(length));
+                assertEquals(chunked + 1, emulator.chunkedRequests());
+                assertArrayEquals(data, read(container.readBlob("blob")));
+                final String contentType = emulator.contentType(CONTAINER, "path/blob");
+                assertTrue(contentType, contentType.contains("es_codec=deflate"));
+                assertTrue(contentType, contentType.contains("es_length=" + length));
+            }
+        }
+        assertTrue(emulator.get(CONTAINER, "path/blob").length < 64 * 1024);
+    }
+
+    public void testRangedReads() throws IOException {
+        final SwiftBlobContainer container = container(compressionSettings(randomBoolean()));
+        final byte[] data = write(container, "blob", compressible(randomIntBetween(16 * 1024, 64 * 1024)));
+        final long[][] ranges = {
+            { 0, 1 },
+            { 1000, 10 },
+            { data.length - 1, 10 },
+            { data.length, 5 },
+            // past the end of the stored bytes, not of the blob
+            { emulator.get(CONTAINER, "path/blob").length + 1, 100 },
+            { 10L * data.length, 5 },
+        };
+        for (long[] range : ranges) {
+            assertRange(data, container, "blob", range[0], range[1]);
+        }
+
+        // the encoding is known from a HEAD: a single GET, from the start
+        final long gets = requests(GET);
+        final long heads = requests(HEAD);
+        assertRange(data, container, "blob", randomIntBetween(1, data.length - 1), randomIntBetween(1, 1024));
+        assertEquals(gets + 1, requests(GET));
+        assertEquals(heads + 1, requests(HEAD));
+    }
+
+    public void testRangedReadsOfPlainBlobInCompressingRepository() throws IOException {
+        final SwiftBlobContainer container = container(compressionSettings(randomBoolean()));
+        // stored before compression was enabled
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 4096));
+        emulator.put(CONTAINER, "path/blob", data);
+        assertRange(data, container, "blob", randomIntBetween(0, data.length - 1), randomIntBetween(1, 100));
+        assertRange(data, container, "blob", data.length + 1, 10);
+        assertArrayEquals(data, read(container.readBlob("blob")));
+    }
+
+    public void testSegmentedUpload() throws IOException {
+        final SwiftBlobContainer container = container(compressionSettings(randomBoolean())
+            .put(SwiftRepository.Swift.SEGMENTED_UPLOAD_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.SEGMENT_SIZE_SETTING.getKey(), new ByteSizeValue(1, ByteSizeUnit.MB)));
+        // barely compressible, so that the encoded blob spans several segments
+        final byte[] data = write(container, "blob", randomByteArrayOfLength(randomIntBetween(2 * 1024 * 1024, 3 * 1024 * 1024)));
+        assertTrue(emulator.largeObject(CONTAINER, "path/blob"));
+        assertArrayEquals(data, read(container.readBlob("blob")));
+        assertRange(data, container, "blob", 1024 * 1024 - 10, 20);
+        assertEquals(data.length, container.listBlobs().get("blob").length());
+    }
+
+    public void testListingReportsBlobSizes() throws IOException {
+        final SwiftBlobContainer container = container(compressionSettings(randomBoolean()));
+        final byte[] data = write(container, "blob", compressible(randomIntBetween(1024, 64 * 1024)));
+        assertTrue(emulator.get(CONTAINER, "path/blob").length < data.length);
+        emulator.put(CONTAINER, "path/plain", new byte[7], "text/plain; charset=UTF-8");
+        emulator.put(CONTAINER, "path/other", new byte[7], "application/octet-stream; es_length=oops");
+
+        final Map<String, BlobMetaData> blobs = container.listBlobs();
+        assertEquals(data.length, blobs.get("blob").length());
+        assertEquals(7, blobs.get("plain").length());
+        // not one of ours: the stored size
+        assertEquals(7, blobs.get("other").length());
+        assertEquals(data.length, container.listBlobsByPrefix("bl").get("blob").length());
+    }
+
+    public void testRetryingStreamContentType() throws IOException {
+        final SwiftBlobStore store = newBlobStore(compressionSettings(randomBoolean()).build());
+        emulator.put(CONTAINER, "path/blob", new byte[10], "text/plain; charset=UTF-8");
+        try (SwiftRetryingInputStream in = new SwiftRetryingInputStream(store, "path/blob", 0, -1, null)) {
+            assertEquals("text/plain; charset=UTF-8", in.contentType());
+        }
+        // kept from the first response when the download is resumed
+        emulator.truncateResponses(GET, 1, 5);
+        try (SwiftRetryingInputStream in = new SwiftRetryingInputStream(store, "path/blob", 0, -1, null)) {
+            assertEquals(10, in.readAllBytes().length);
+            assertEquals("text/plain; charset=UTF-8", in.contentType());
+        }
+        assertEquals(3, requests(GET));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.blobstore.BlobContainer;
+import org.elasticsearch.common.blobstore.BlobPath;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.runner.RunWith;
+import org.wikimedia.elasticsearch.swift.SwiftEmulatorTestCase;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Encrypted blobs against the Swift emulator, through the rest client
+ */
+@RunWith(RandomizedRunner.class)
+public class SwiftEncryptedBlobRestTests extends SwiftEmulatorTestCase {
+    private static final int FRAME_SIZE = SwiftEncryption.MIN_FRAME_SIZE;
+
+    private final SecretKey key = new SecretKeySpec(randomByteArrayOfLength(32), "AES");
+
+    /**
+     * @return settings for small frames, retried without delay, through a random transport
+     */
+    private static Settings.Builder encryptionSettings() {
+        return Settings.builder()
+            .put(SwiftRepository.Swift.ENCRYPTION_FRAME_SIZE_SETTING.getKey(), new ByteSizeValue(FRAME_SIZE, ByteSizeUnit.BYTES))
+            .put(SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING.getKey(), "1ms")
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), randomBoolean());
+    }
+
+    private SwiftBlobContainer container(Settings.Builder settings) {
+        return (SwiftBlobContainer) newBlobStore(settings.build(), key).blobContainer(new BlobPath().add("path"));
+    }
+
+    private static byte[] write(BlobContainer container, String name, int length) throws IOException {
+        final byte[] data = randomByteArrayOfLength(length);
+        container.writeBlob(name, new ByteArrayInputStream(data), data.length, false);
+        return data;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private static void assertRange(byte[] data, SwiftBlobContainer container, String name, long position, long length) throws IOException {
+        final int from = (int) Math.min(position, data.length);
+        final int to = (int) Math.min(position + length, data.length);
+        assertArrayEquals("range [" + position + "] of [" + length + "] bytes", Arrays.copyOfRange(data, from, to),
+                          read(container.readBlob(name, position, length)));
+    }
+
+    private static void assertRanges(byte[] data, SwiftBlobContainer container, String name) throws IOException {
+        final long[][] ranges = {
+            { 0, 1 },
+            { FRAME_SIZE - 1, 1 },
+            // across a frame boundary
+            { FRAME_SIZE - 1, 2 },
+            // a whole frame
+            { FRAME_SIZE, FRAME_SIZE },
+            { 2 * FRAME_SIZE - 1, 1 },
+            { data.length - 1, 10 },
+            { data.length, 5 },
+            { 10L * data.length, 5 },
+        };
+        for (long[] range : ranges) {
+            assertRange(data, container, name, range[0], range[1]);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertRange(data, container, name, randomIntBetween(0, data.length), randomIntBetween(1, 3 * FRAME_SIZE));
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        final SwiftBlobContainer container = container(encryptionSettings());
+        for (int length : new int[] { 0, 1, FRAME_SIZE, FRAME_SIZE + 1, randomIntBetween(1, 10 * FRAME_SIZE) }) {
+            final byte[] data = write(container, "blob", length);
+            assertArrayEquals(data, read(container.readBlob("blob")));
+            assertEquals(SwiftEncryption.encryptedLength(length, FRAME_SIZE), emulator.get(CONTAINER, "path/blob").length);
+            assertTrue(emulator.contentType(CONTAINER, "path/blob").contains("es_cipher=" + SwiftEncryption.CIPHER));
+        }
+    }
+
+    public void testRangedReads() throws IOException {
+        final SwiftBlobContainer container = container(encryptionSettings());
+        // a partial last frame, then whole frames only, where no byte follows the last frame
+        assertRanges(write(container, "blob", 5 * FRAME_SIZE + randomIntBetween(1, FRAME_SIZE - 1)), container, "blob");
+        assertRanges(write(container, "whole", 5 * FRAME_SIZE), container, "whole");
+    }
+
+    public void testRangedReadsOfBlobOfUnknownLength() throws IOException {
+        final SwiftBlobStore store = newBlobStore(encryptionSettings().build(), key);
+        final SwiftBlobContainer container = (SwiftBlobContainer) store.blobContainer(new BlobPath().add("path"));
+        // as streamed uploads store it
+        final byte[] data = randomByteArrayOfLength(2 * FRAME_SIZE);
+        final SwiftBlobEncoding encoding = SwiftBlobEncoding.of(SwiftCompression.NONE, store.encryption(), -1);
+        emulator.put(CONTAINER, "path/blob", read(encoding.encode(new ByteArrayInputStream(data), store.encryption())),
+                     encoding.contentType());
+
+        assertArrayEquals(data, read(container.readBlob("blob")));
+        assertRanges(data, container, "blob");
+        // within the stored bytes, but past the last frame: the frames' GET is answered with a 416
+        assertRange(data, container, "blob", data.length + 2, 5);
+    }
+
+    public void testResumedDownloadsMidFrame() throws IOException {
+        final SwiftBlobContainer container = container(encryptionSettings());
+        final byte[] data = write(container, "blob", 4 * FRAME_SIZE + randomIntBetween(0, FRAME_SIZE));
+        emulator.truncateResponses("GET /" + CONTAINER + "/path/blob", 2, FRAME_SIZE + FRAME_SIZE / 2);
+        assertArrayEquals(data, read(container.readBlob("blob")));
+
+        emulator.truncateResponses("GET /" + CONTAINER + "/path/blob", 2, FRAME_SIZE / 2);
+        assertRange(data, container, "blob", FRAME_SIZE - 10, 2 * FRAME_SIZE);
+    }
+
+    public void testParallelDownload() throws IOException {
+        final SwiftBlobContainer container = container(encryptionSettings()
+            .put(SwiftRepository.Swift.PARALLEL_DOWNLOAD_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.PARALLEL_DOWNLOAD_THRESHOLD_SETTING.getKey(), new ByteSizeValue(0))
+            .put(SwiftRepository.Swift.DOWNLOAD_CHUNK_SIZE_SETTING.getKey(), new ByteSizeValue(1, ByteSizeUnit.MB)));
+        final byte[] data = write(container, "blob", randomIntBetween(2 * 1024 * 1024 + 1, 3 * 1024 * 1024));
+        assertArrayEquals(data, read(container.readBlob("blob")));
+        assertTrue(emulator.requestLog().stream().filter(request -> request.equals("GET /" + CONTAINER + "/path/blob")).count() > 1);
+    }
+
+    public void testSegmentedUpload() throws IOException {
+        final SwiftBlobContainer container = container(encryptionSettings()
+            .put(SwiftRepository.Swift.SEGMENTED_UPLOAD_SETTING.getKey(), true)
+            .put(SwiftRepository.Swift.SEGMENT_SIZE_SETTING.getKey(), new ByteSizeValue(1, ByteSizeUnit.MB)));
+        final byte[] data = write(container, "blob", randomIntBetween(1024 * 1024 + 1, 3 * 1024 * 1024));
+        assertTrue(emulator.largeObject(CONTAINER, "path/blob"));
+        assertArrayEquals(data, read(container.readBlob("blob")));
+        // a range across the first segment boundary, whose frames span two segments
+        assertRange(data, container, "blob", 1024 * 1024 - FRAME_SIZE / 2, 2 * FRAME_SIZE);
+        assertRange(data, container, "blob", data.length - 1, 10);
+    }
+
+    public void testCompressedAndEncrypted() throws IOException {
+        final SwiftBlobContainer container = container(encryptionSettings()
+            .put(SwiftRepository.Swift.COMPRESSION_SETTING.getKey(), "deflate"));
+        // compressible
+        final byte[] data = new byte[10 * FRAME_SIZE];
+        Arrays.fill(data, (byte) randomInt());
+        container.writeBlob("blob", new ByteArrayInputStream(data), data.length, false);
+
+        final String contentType = emulator.contentType(CONTAINER, "path/blob");
+        assertTrue(contentType, contentType.contains("es_codec=deflate"));
+        assertTrue(contentType, contentType.contains("es_cipher=" + SwiftEncryption.CIPHER));
+        assertTrue(emulator.get(CONTAINER, "path/blob").length < data.length);
+        assertArrayEquals(data, read(container.readBlob("blob")));
+        assertRange(data, container, "blob", FRAME_SIZE + 3, 2 * FRAME_SIZE);
+        assertRange(data, container, "blob", data.length + 1, 5);
+    }
+
+    public void testEncryptionRequiredRejectsPlainBlobs() throws IOException {
+        final SwiftBlobContainer container = container(encryptionSettings()
+            .put(SwiftRepository.Swift.ENCRYPTION_REQUIRED_SETTING.getKey(), true));
+        final byte[] data = write(container, "encrypted", randomIntBetween(1, 3 * FRAME_SIZE));
+        assertArrayEquals(data, read(container.readBlob("encrypted")));
+        assertRange(data, container, "encrypted", 1, FRAME_SIZE);
+
+        emulator.put(CONTAINER, "path/plain", randomByteArrayOfLength(100));
+        IOException e = expectThrows(IOException.class, () -> container.readBlob("plain"));
+        assertTrue(e.getMessage(), e.getMessage().contains("is not encrypted"));
+        e = expectThrows(IOException.class, () -> container.readBlob("plain", 10, 20));
+        assertTrue(e.getMessage(), e.getMessage().contains("is not encrypted"));
+    }
+
+    public void testEncryptionRequiredNeedsKey() {
+        final Settings settings = encryptionSettings().put(SwiftRepository.Swift.ENCRYPTION_REQUIRED_SETTING.getKey(), true).build();
+        expectThrows(IllegalArgumentException.class, () -> newBlobStore(settings, null));
+    }
+}
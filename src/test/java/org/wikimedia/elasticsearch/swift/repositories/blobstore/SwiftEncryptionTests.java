@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.test.ESTestCase;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class SwiftEncryptionTests extends ESTestCase {
+    private static final int FRAME_SIZE = SwiftEncryption.MIN_FRAME_SIZE;
+
+    private final SwiftEncryption encryption = new SwiftEncryption(new SecretKeySpec(randomByteArrayOfLength(32), "AES"), FRAME_SIZE);
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private byte[] encrypt(byte[] plaintext, byte[] salt, boolean knownLength) throws IOException {
+        return read(encryption.encrypt(new ByteArrayInputStream(plaintext), knownLength ? plaintext.length : -1, salt, FRAME_SIZE));
+    }
+
+    private byte[] decrypt(byte[] ciphertext, byte[] salt) throws IOException {
+        return read(encryption.decrypt(new ByteArrayInputStream(ciphertext), salt, FRAME_SIZE, 0, -1));
+    }
+
+    private static int frameOffset(int frame) {
+        return frame * SwiftEncryption.sealedFrameSize(FRAME_SIZE);
+    }
+
+    public void testRoundTrip() throws IOException {
+        final int[] lengths = { 0, 1, FRAME_SIZE - 1, FRAME_SIZE, FRAME_SIZE + 1, 3 * FRAME_SIZE, randomIntBetween(0, 10 * FRAME_SIZE) };
+        for (int length : lengths) {
+            final byte[] plaintext = randomByteArrayOfLength(length);
+            final byte[] salt = encryption.newSalt();
+            final boolean knownLength = randomBoolean();
+            final byte[] ciphertext = encrypt(plaintext, salt, knownLength);
+            assertEquals("length " + length, SwiftEncryption.encryptedLength(length, FRAME_SIZE), ciphertext.length);
+            assertArrayEquals("length " + length, plaintext, decrypt(ciphertext, salt));
+        }
+    }
+
+    public void testSameLengthWhetherKnownOrNot() throws IOException {
+        final byte[] plaintext = randomByteArrayOfLength(randomIntBetween(0, 5 * FRAME_SIZE));
+        final byte[] salt = encryption.newSalt();
+        assertArrayEquals(encrypt(plaintext, salt, true), encrypt(plaintext, salt, false));
+    }
+
+    public void testDecryptFramesInTheMiddle() throws IOException {
+        final byte[] plaintext = randomByteArrayOfLength(5 * FRAME_SIZE + 7);
+        final byte[] salt = encryption.newSalt();
+        final byte[] ciphertext = encrypt(plaintext, salt, true);
+
+        // frames 1 and 2, with the first byte of frame 3 telling that frame 2 is not the last
+        final byte[] middle = Arrays.copyOfRange(ciphertext, frameOffset(1), frameOffset(3) + 1);
+        assertArrayEquals(Arrays.copyOfRange(plaintext, FRAME_SIZE, 3 * FRAME_SIZE),
+                          read(encryption.decrypt(new ByteArrayInputStream(middle), salt, FRAME_SIZE, 1, 2)));
+
+        // the last frame, on its own
+        final byte[] last = Arrays.copyOfRange(ciphertext, frameOffset(5), ciphertext.length);
+        assertArrayEquals(Arrays.copyOfRange(plaintext, 5 * FRAME_SIZE, plaintext.length),
+                          read(encryption.decrypt(new ByteArrayInputStream(last), salt, FRAME_SIZE, 5, -1)));
+    }
+
+    public void testTruncationAtFrameBoundaryFails() throws IOException {
+        final byte[] plaintext = randomByteArrayOfLength(4 * FRAME_SIZE);
+        final byte[] salt = encryption.newSalt();
+        final byte[] ciphertext = encrypt(plaintext, salt, randomBoolean());
+
+        // the frame before the cut was not sealed as the last one
+        final byte[] truncated = Arrays.copyOf(ciphertext, frameOffset(randomIntBetween(1, 3)));
+        final IOException e = expectThrows(IOException.class, () -> decrypt(truncated, salt));
+        assertTrue(e.getMessage(), e.getMessage().contains("failed authentication"));
+    }
+
+    public void testReorderedFramesFail() throws IOException {
+        final byte[] plaintext = randomByteArrayOfLength(3 * FRAME_SIZE + 1);
+        final byte[] salt = encryption.newSalt();
+        final byte[] ciphertext = encrypt(plaintext, salt, true);
+
+        final int sealed = SwiftEncryption.sealedFrameSize(FRAME_SIZE);
+        final ByteArrayOutputStream reordered = new ByteArrayOutputStream();
+        reordered.write(ciphertext, frameOffset(1), sealed);
+        reordered.write(ciphertext, frameOffset(0), sealed);
+        reordered.write(ciphertext, frameOffset(2), ciphertext.length - frameOffset(2));
+        expectThrows(IOException.class, () -> decrypt(reordered.toByteArray(), salt));
+    }
+
+    public void testTamperingFails() throws IOException {
+        final byte[] plaintext = randomByteArrayOfLength(randomIntBetween(1, 3 * FRAME_SIZE));
+        final byte[] salt = encryption.newSalt();
+        final byte[] ciphertext = encrypt(plaintext, salt, true);
+        ciphertext[randomIntBetween(0, ciphertext.length - 1)] ^= 1;
+        expectThrows(IOException.class, () -> decrypt(ciphertext, salt));
+    }
+
+    public void testOtherKeyOrSaltFails() throws IOException {
+        final byte[] plaintext = randomByteArrayOfLength(randomIntBetween(0, 2 * FRAME_SIZE));
+        final byte[] salt = encryption.newSalt();
+        final byte[] ciphertext = encrypt(plaintext, salt, true);
+        expectThrows(IOException.class, () -> decrypt(ciphertext, encryption.newSalt()));
+        final SwiftEncryption other = new SwiftEncryption(new SecretKeySpec(randomByteArrayOfLength(32), "AES"), FRAME_SIZE);
+        expectThrows(IOException.class, () -> read(other.decrypt(new ByteArrayInputStream(ciphertext), salt, FRAME_SIZE, 0, -1)));
+    }
+
+    public void testEncodingFrameSizeBounds() throws IOException {
+        final SwiftBlobEncoding encoding = SwiftBlobEncoding.of(SwiftCompression.NONE, encryption, 100);
+        assertTrue(SwiftBlobEncoding.parse(encoding.contentType()).encrypted());
+        for (int frameSize : new int[] { 0, -1, SwiftEncryption.MIN_FRAME_SIZE - 1, SwiftEncryption.MAX_FRAME_SIZE + 1 }) {
+            final String contentType = encoding.contentType().replace("es_frame=" + FRAME_SIZE, "es_frame=" + frameSize);
+            expectThrows(IOException.class, () -> SwiftBlobEncoding.parse(contentType));
+        }
+    }
+}
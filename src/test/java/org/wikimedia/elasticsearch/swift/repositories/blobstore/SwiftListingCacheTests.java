@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.common.blobstore.BlobMetaData;
+import org.elasticsearch.common.blobstore.support.PlainBlobMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SwiftListingCacheTests extends ESTestCase {
+
+    private static SwiftListingCache newCache(int size) {
+        return new SwiftListingCache(Settings.builder()
+            .put(SwiftRepository.Swift.LISTING_CACHE_SIZE_SETTING.getKey(), size)
+            .build());
+    }
+
+    private static Map<String, BlobMetaData> blobs(String... names) {
+        final Map<String, BlobMetaData> blobs = new HashMap<>();
+        for (String name : names) {
+            blobs.put(name, new PlainBlobMetaData(name, 1));
+        }
+        return Collections.unmodifiableMap(blobs);
+    }
+
+    public void testDisabledByDefault() {
+        final SwiftListingCache cache = new SwiftListingCache(Settings.EMPTY);
+        cache.put("path/", "path/", blobs("blob"), cache.version());
+        assertNull(cache.get("path/", "path/"));
+    }
+
+    public void testInvalidatesOnlyTheObjectDirectory() {
+        final SwiftListingCache cache = newCache(10);
+        cache.put("a/", "a/", blobs("blob"), cache.version());
+        cache.put("a/", "a/bl", blobs("blob"), cache.version());
+        cache.put("a/b/", "a/b/", blobs("blob"), cache.version());
+
+        cache.invalidate("a/b/other");
+        assertNull(cache.get("a/b/", "a/b/"));
+        assertNotNull(cache.get("a/", "a/"));
+        assertNotNull(cache.get("a/", "a/bl"));
+
+        cache.invalidate("a/new");
+        assertNull(cache.get("a/", "a/"));
+        assertNull(cache.get("a/", "a/bl"));
+    }
+
+    public void testInvalidatesDirectoriesUnderAPath() {
+        final SwiftListingCache cache = newCache(10);
+        cache.put("a/", "a/", blobs("blob"), cache.version());
+        cache.put("a/b/", "a/b/", blobs("blob"), cache.version());
+        cache.put("a/b/c/", "a/b/c/", blobs("blob"), cache.version());
+
+        cache.invalidatePrefix("a/b/");
+        assertNotNull(cache.get("a/", "a/"));
+        assertNull(cache.get("a/b/", "a/b/"));
+        assertNull(cache.get("a/b/c/", "a/b/c/"));
+
+        cache.invalidatePrefix("a/blob");
+        assertNull(cache.get("a/", "a/"));
+    }
+
+    public void testSkipsListingsRacingWithChanges() {
+        final SwiftListingCache cache = newCache(10);
+        final long version = cache.version();
+        cache.invalidate("elsewhere/blob");
+        cache.put("a/", "a/", blobs("blob"), version);
+        assertNull(cache.get("a/", "a/"));
+    }
+
+    public void testNeverCachesGenerations() {
+        final SwiftListingCache cache = newCache(10);
+        cache.put("", "", blobs("index-3", "index.latest"), cache.version());
+        assertNull(cache.get("", ""));
+        cache.put("", "index-", blobs(), cache.version());
+        assertNull(cache.get("", "index-"));
+        cache.put("indices/x/0/", "indices/x/0/", blobs("index-abc", "__1"), cache.version());
+        assertNull(cache.get("indices/x/0/", "indices/x/0/"));
+        cache.put("", "meta-", blobs("meta-1.dat"), cache.version());
+        assertNotNull(cache.get("", "meta-"));
+    }
+
+    public void testEvictsLeastRecentlyUsedDirectories() {
+        final SwiftListingCache cache = newCache(2);
+        cache.put("a/", "a/", blobs("blob"), cache.version());
+        cache.put("b/", "b/", blobs("blob"), cache.version());
+        assertNotNull(cache.get("a/", "a/"));
+        cache.put("c/", "c/", blobs("blob"), cache.version());
+        assertNotNull(cache.get("a/", "a/"));
+        assertNull(cache.get("b/", "b/"));
+        assertNotNull(cache.get("c/", "c/"));
+    }
+}
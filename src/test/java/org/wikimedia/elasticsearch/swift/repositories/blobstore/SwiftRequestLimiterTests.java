@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.settings.Settings;
+import org.javaswift.joss.model.Account;
+import org.junit.runner.RunWith;
+import org.wikimedia.elasticsearch.swift.SwiftEmulatorTestCase;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftService;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The request limiter, fed with responses of the Swift emulator
+ */
+@RunWith(RandomizedRunner.class)
+public class SwiftRequestLimiterTests extends SwiftEmulatorTestCase {
+    private static final String HEAD = "HEAD /" + CONTAINER + "/blob";
+
+    private SwiftRestClient restClient;
+    private SwiftAsyncClient asyncClient;
+
+    private SwiftRequestLimiter newLimiter(Settings settings) {
+        final SwiftService service = newService(Settings.builder()
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), true)
+            .build());
+        final Account account = newAccount(service);
+        restClient = new SwiftRestClient(account, service.httpClient(), false);
+        asyncClient = new SwiftAsyncClient(account, service.asyncHttpClient(),
+                                           SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING.get(Settings.EMPTY));
+        emulator.put(CONTAINER, "blob", new byte[16]);
+        return new SwiftRequestLimiter(settings);
+    }
+
+    private static Settings maxReads(int reads) {
+        return Settings.builder().put(SwiftRepository.Swift.MAX_IN_FLIGHT_READS_SETTING.getKey(), reads).build();
+    }
+
+    private void head(SwiftRequestLimiter limiter, String key) throws IOException {
+        limiter.execute(SwiftOperation.READ, () -> restClient.headObject(CONTAINER, key));
+    }
+
+    private void throttle(SwiftRequestLimiter limiter) {
+        emulator.failRequests(HEAD, 1, randomFrom(429, 503));
+        final SwiftRestClient.ResponseException e = expectThrows(SwiftRestClient.ResponseException.class,
+                                                                   () -> head(limiter, "blob"));
+        assertTrue(SwiftRequestLimiter.isThrottled(e));
+    }
+
+    public void testTokenBucketPacesRequests() throws IOException {
+        final SwiftRequestLimiter limiter = newLimiter(Settings.builder()
+            .put(SwiftRepository.Swift.MAX_REQUESTS_PER_SEC_SETTING.getKey(), 20)
+            .build());
+        // a second worth of requests goes out right away
+        for (int i = 0; i < 20; i++) {
+            head(limiter, "blob");
+        }
+        // then they are spaced by 50ms
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            head(limiter, "blob");
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    public void testThrottlingSlowsTheRate() throws IOException {
+        final SwiftRequestLimiter limiter = newLimiter(Settings.builder()
+            .put(SwiftRepository.Swift.MAX_REQUESTS_PER_SEC_SETTING.getKey(), 20)
+            .build());
+        throttle(limiter);
+        for (int i = 0; i < 20; i++) {
+            head(limiter, "blob");
+        }
+        // 10 requests per second, recovering by 2 per second: well above the 500ms of the full rate
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            head(limiter, "blob");
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(600));
+    }
+
+    public void testThrottlingHalvesTheInFlightCap() throws Exception {
+        final SwiftRequestLimiter limiter = newLimiter(maxReads(8));
+        throttle(limiter);
+        assertEquals(4, limiter.limit(SwiftOperation.READ));
+        // throttling responses in a burst count as one
+        throttle(limiter);
+        assertEquals(4, limiter.limit(SwiftOperation.READ));
+        // other classes keep their cap
+        assertEquals((int) SwiftRepository.Swift.MAX_IN_FLIGHT_WRITES_SETTING.get(Settings.EMPTY), limiter.limit(SwiftOperation.WRITE));
+
+        Thread.sleep(600);
+        throttle(limiter);
+        assertEquals(2, limiter.limit(SwiftOperation.READ));
+    }
+
+    public void testOnlySuccessesRaiseTheInFlightCap() throws IOException {
+        final SwiftRequestLimiter limiter = newLimiter(maxReads(8));
+        throttle(limiter);
+        assertEquals(4, limiter.limit(SwiftOperation.READ));
+
+        // a 404 the caller expects, or a server error, is no sign the proxies recovered
+        for (int i = 0; i < 8; i++) {
+            head(limiter, "missing");
+        }
+        emulator.failRequests(HEAD, 8, 500);
+        for (int i = 0; i < 8; i++) {
+            expectThrows(SwiftRestClient.ResponseException.class, () -> head(limiter, "blob"));
+        }
+        assertEquals(4, limiter.limit(SwiftOperation.READ));
+
+        // as many successes as the cap raise it by one
+        for (int i = 0; i < 3; i++) {
+            head(limiter, "blob");
+        }
+        assertEquals(4, limiter.limit(SwiftOperation.READ));
+        head(limiter, "blob");
+        assertEquals(5, limiter.limit(SwiftOperation.READ));
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(limiter.executeAsync(SwiftOperation.READ, () -> asyncClient.objectExists(CONTAINER, "blob")).join());
+        }
+        assertEquals(6, limiter.limit(SwiftOperation.READ));
+        assertEquals(0, limiter.inFlight(SwiftOperation.READ));
+    }
+
+    public void testDownloadGivesItsSlotBackOnceStarted() throws IOException {
+        final SwiftRequestLimiter limiter = newLimiter(maxReads(1));
+        final SwiftRestClient.ObjectDownload download;
+        if (randomBoolean()) {
+            download = limiter.execute(SwiftOperation.READ, () -> restClient.getObject(CONTAINER, "blob", 0, -1, null));
+        } else {
+            download = limiter.executeAsync(SwiftOperation.READ, () -> asyncClient.getObject(CONTAINER, "blob", 0, -1, null))
+                .join().value();
+        }
+        // the ranged GETs of a parallel download are sent while its first response streams
+        assertEquals(0, limiter.inFlight(SwiftOperation.READ));
+        try (SwiftRestClient.ObjectDownload range = limiter.execute(SwiftOperation.READ,
+                () -> restClient.getObject(CONTAINER, "blob", 8, 15, null))) {
+            assertEquals(8, range.content().readAllBytes().length);
+        }
+        assertEquals(16, download.content().readAllBytes().length);
+        download.close();
+        assertEquals(0, limiter.inFlight(SwiftOperation.READ));
+    }
+
+    public void testWaitForSlotIsBounded() throws IOException {
+        final SwiftRequestLimiter limiter = newLimiter(Settings.builder()
+            .put(maxReads(1))
+            .put(SwiftRepository.Swift.MAX_IN_FLIGHT_WAIT_SETTING.getKey(), "100ms")
+            .build());
+        final CompletableFuture<SwiftAsyncClient.Response<Boolean>> request = new CompletableFuture<>();
+        final CompletableFuture<SwiftAsyncClient.Response<Boolean>> pending = limiter.executeAsync(SwiftOperation.READ, () -> request);
+
+        final IOException e = expectThrows(IOException.class, () -> head(limiter, "blob"));
+        assertTrue(e.getMessage(), e.getMessage().contains("READ"));
+        assertFalse(emulator.requestLog().contains(HEAD));
+        // other classes have their own slots
+        limiter.execute(SwiftOperation.LIST, () -> restClient.headObject(CONTAINER, "blob"));
+
+        pending.cancel(true);
+        head(limiter, "blob");
+        assertEquals(0, limiter.inFlight(SwiftOperation.READ));
+    }
+
+    public void testCancelledRequestGivesItsSlotBack() throws IOException {
+        final SwiftRequestLimiter limiter = newLimiter(maxReads(2));
+        final CompletableFuture<SwiftAsyncClient.Response<Boolean>> request = new CompletableFuture<>();
+        final CompletableFuture<SwiftAsyncClient.Response<Boolean>> result = limiter.executeAsync(SwiftOperation.READ, () -> request);
+        assertEquals(1, limiter.inFlight(SwiftOperation.READ));
+
+        assertTrue(result.cancel(true));
+        assertTrue(request.isCancelled());
+        assertEquals(0, limiter.inFlight(SwiftOperation.READ));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import com.carrotsearch.randomizedtesting.RandomizedRunner;
+import org.elasticsearch.common.settings.Settings;
+import org.javaswift.joss.exception.CommandException;
+import org.javaswift.joss.model.Account;
+import org.junit.runner.RunWith;
+import org.wikimedia.elasticsearch.swift.SwiftEmulatorTestCase;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftAsyncClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRepository;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftRestClient;
+import org.wikimedia.elasticsearch.swift.repositories.SwiftService;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Which failures the retry policy retries, against the Swift emulator
+ */
+@RunWith(RandomizedRunner.class)
+public class SwiftRetryPolicyTests extends SwiftEmulatorTestCase {
+    private static final String HEAD = "HEAD /" + CONTAINER + "/blob";
+
+    private SwiftRestClient restClient;
+    private SwiftAsyncClient asyncClient;
+
+    private SwiftRetryPolicy newPolicy() {
+        final SwiftService service = newService(Settings.builder()
+            .put(SwiftRepository.Swift.ASYNC_TRANSPORT_SETTING.getKey(), true)
+            .build());
+        final Account account = newAccount(service);
+        restClient = new SwiftRestClient(account, service.httpClient(), false);
+        asyncClient = new SwiftAsyncClient(account, service.asyncHttpClient(),
+                                           SwiftRepository.Swift.HTTP_SOCKET_TIMEOUT_SETTING.get(Settings.EMPTY));
+        emulator.put(CONTAINER, "blob", new byte[10]);
+        return new SwiftRetryPolicy(Settings.builder()
+            .put(SwiftRepository.Swift.RETRY_MAX_RETRIES_SETTING.getKey(), 3)
+            .put(SwiftRepository.Swift.RETRY_BASE_DELAY_SETTING.getKey(), "1ms")
+            .build());
+    }
+
+    private long heads() {
+        return emulator.requestLog().stream().filter(HEAD::equals).count();
+    }
+
+    /**
+     * @return what Swift answering a HEAD with a status fails with
+     */
+    private SwiftRestClient.ResponseException failure(int status) {
+        emulator.failRequests(HEAD, 1, status);
+        return expectThrows(SwiftRestClient.ResponseException.class, () -> restClient.headObject(CONTAINER, "blob"));
+    }
+
+    public void testRetryableFailures() {
+        newPolicy();
+        // broken connections and timeouts
+        assertTrue(SwiftRetryPolicy.isRetryable(new IOException("connection reset")));
+        assertTrue(SwiftRetryPolicy.isRetryable(new ConnectException("refused")));
+        assertTrue(SwiftRetryPolicy.isRetryable(new SocketTimeoutException("read timed out")));
+        assertTrue(SwiftRetryPolicy.isRetryable(new HttpTimeoutException("no progress")));
+        assertTrue(SwiftRetryPolicy.isRetryable(new CommandException("I/O error", new IOException("connection reset"))));
+        // overloaded or failing proxies
+        for (int status : new int[] { 429, 500, 502, 503, 504 }) {
+            assertTrue("status [" + status + "]", SwiftRetryPolicy.isRetryable(failure(status)));
+        }
+    }
+
+    public void testNonRetryableFailures() {
+        newPolicy();
+        for (int status : new int[] { 400, 403, 409, 412, 416, 422 }) {
+            assertFalse("status [" + status + "]", SwiftRetryPolicy.isRetryable(failure(status)));
+        }
+        assertFalse(SwiftRetryPolicy.isRetryable(new InterruptedIOException("interrupted")));
+        assertFalse(SwiftRetryPolicy.isRetryable(new NoSuchFileException("blob")));
+        assertFalse(SwiftRetryPolicy.isRetryable(new FileAlreadyExistsException("blob")));
+        assertFalse(SwiftRetryPolicy.isRetryable(new IllegalArgumentException("bad request")));
+        assertFalse(SwiftRetryPolicy.isRetryable(new CommandException("bad request")));
+    }
+
+    public void testRetriesUntilSuccess() throws IOException {
+        final SwiftRetryPolicy policy = newPolicy();
+        emulator.failRequests(HEAD, 2, randomFrom(429, 500, 503));
+        assertNotNull(policy.run(SwiftOperation.READ, "blob", () -> restClient.headObject(CONTAINER, "blob"), null));
+        assertEquals(3, heads());
+        assertEquals(2, policy.retries(SwiftOperation.READ));
+        assertEquals(0, policy.retries(SwiftOperation.WRITE));
+    }
+
+    public void testGivesUpOnNonRetryableFailure() {
+        final SwiftRetryPolicy policy = newPolicy();
+        emulator.failRequests(HEAD, 1, 403);
+        final SwiftRestClient.ResponseException e = expectThrows(SwiftRestClient.ResponseException.class,
+            () -> policy.run(SwiftOperation.READ, "blob", () -> restClient.headObject(CONTAINER, "blob"), null));
+        assertEquals(403, e.status());
+        assertEquals(1, heads());
+        assertEquals(0, policy.retries(SwiftOperation.READ));
+    }
+
+    public void testGivesUpAfterMaxRetries() {
+        final SwiftRetryPolicy policy = newPolicy();
+        emulator.failRequests(HEAD, 10, 503);
+        final SwiftRestClient.ResponseException e = expectThrows(SwiftRestClient.ResponseException.class,
+            () -> policy.run(SwiftOperation.READ, "blob", () -> restClient.headObject(CONTAINER, "blob"), null));
+        assertEquals(503, e.status());
+        assertEquals(4, heads());
+        assertEquals(3, policy.retries(SwiftOperation.READ));
+    }
+
+    public void testAsyncRetries() throws Exception {
+        final SwiftRetryPolicy policy = newPolicy();
+        emulator.failRequests(HEAD, 2, randomFrom(429, 500, 503));
+        final CompletableFuture<Boolean> exists = policy.runAsync(SwiftOperation.READ, "blob",
+            () -> asyncClient.objectExists(CONTAINER, "blob").thenApply(SwiftAsyncClient.Response::value), null, Runnable::run);
+        assertTrue(exists.get());
+        assertEquals(3, heads());
+        assertEquals(2, policy.retries(SwiftOperation.READ));
+
+        emulator.failRequests(HEAD, 1, 403);
+        final ExecutionException e = expectThrows(ExecutionException.class, () -> policy.runAsync(SwiftOperation.READ, "blob",
+            () -> asyncClient.objectExists(CONTAINER, "blob").thenApply(SwiftAsyncClient.Response::value), null, Runnable::run).get());
+        assertEquals(403, ((SwiftRestClient.ResponseException) e.getCause()).status());
+        assertEquals(4, heads());
+    }
+}
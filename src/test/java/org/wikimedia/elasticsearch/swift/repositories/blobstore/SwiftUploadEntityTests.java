@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Wikimedia and BigData Boutique
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.elasticsearch.swift.repositories.blobstore;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SwiftUploadEntityTests extends ESTestCase {
+
+    /**
+     * Source that records whether it was closed
+     */
+    private static final class Source extends FilterInputStream {
+        boolean closed;
+
+        Source(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private static SwiftBufferPool newPool() {
+        // buffers smaller than the blobs, so that each takes several reads
+        return new SwiftBufferPool(randomIntBetween(1, 64), 1024);
+    }
+
+    public void testStreamsKnownLength() throws IOException {
+        final SwiftBufferPool buffers = newPool();
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 4096));
+        final int length = randomIntBetween(0, data.length);
+        final Source source = new Source(data);
+        final SwiftUploadEntity entity = new SwiftUploadEntity(source, length, buffers);
+        assertEquals(length, entity.getContentLength());
+        assertFalse(entity.isRepeatable());
+        assertTrue(entity.isStreaming());
+        assertSame(source, entity.getContent());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        // only the announced bytes are sent, the rest of the source is left unread
+        assertArrayEquals(Arrays.copyOf(data, length), out.toByteArray());
+        assertEquals(data.length - length, source.available());
+        assertFalse(source.closed);
+        assertEquals(0, buffers.inUseBytes());
+    }
+
+    public void testStreamsToEndWhenLengthUnknown() throws IOException {
+        final SwiftBufferPool buffers = newPool();
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(0, 4096));
+        final Source source = new Source(data);
+        final SwiftUploadEntity entity = new SwiftUploadEntity(source, -1, buffers);
+        assertEquals(-1, entity.getContentLength());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertArrayEquals(data, out.toByteArray());
+        assertFalse(source.closed);
+        assertEquals(0, buffers.inUseBytes());
+    }
+
+    public void testFailsOnShortSource() {
+        final SwiftBufferPool buffers = newPool();
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(0, 1024));
+        final SwiftUploadEntity entity = new SwiftUploadEntity(new Source(data), data.length + 1, buffers);
+
+        final IOException e = expectThrows(IOException.class, () -> entity.writeTo(new ByteArrayOutputStream()));
+        assertEquals("Blob stream ended after [" + data.length + "] of [" + (data.length + 1) + "] bytes", e.getMessage());
+        assertEquals(0, buffers.inUseBytes());
+    }
+
+    public void testStreamsWithoutPooledBuffer() throws IOException {
+        final SwiftBufferPool buffers = new SwiftBufferPool(64, 0);
+        final byte[] data = randomByteArrayOfLength(randomIntBetween(1, 20000));
+        final SwiftUploadEntity entity = new SwiftUploadEntity(new Source(data), randomBoolean() ? data.length : -1, buffers);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(1, buffers.exhausted());
+        assertEquals(0, buffers.allocatedBytes());
+    }
+}